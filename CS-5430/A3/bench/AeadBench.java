@@ -0,0 +1,63 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Compares the throughput of AES-GCM (AEAD) against AES-CBC followed by HMAC (MAC_ENCRYPTION)
+ * for a range of message sizes, sending and receiving over the binary wire format
+ * Call as
+ * AeadBench [iterations]
+ */
+public class AeadBench {
+	private static final int[] SIZES = {64, 1024, 16384, 262144};
+	
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		
+		KeyGenerator aes = KeyGenerator.getInstance("AES");
+		aes.init(128);
+		KeyGenerator hmac = KeyGenerator.getInstance("HmacSHA256");
+		byte[] ivBytes = new byte[16];
+		new SecureRandom().nextBytes(ivBytes);
+		SessionKeys keys = new SessionKeys(aes.generateKey(), new IvParameterSpec(ivBytes),
+				hmac.generateKey());
+		
+		System.out.format("%-16s %10s %12s %12s\n", "mode", "size", "send MB/s", "receive MB/s");
+		for (int size : SIZES) {
+			char[] chars = new char[size];
+			Arrays.fill(chars, 'a');
+			final String message = new String(chars);
+			int count = (int)Math.max(100, (long)iterations * 1024 / Math.max(size, 1024));
+			for (Mode mode : new Mode[] {Mode.MAC_ENCRYPTION, Mode.AEAD}) {
+				final MessageCodec sender = MessageCodec.create(WireFormat.BINARY, mode, keys, true);
+				final MessageCodec receiver = MessageCodec.create(WireFormat.BINARY, mode, keys, false);
+				
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				final DataOutputStream output = new DataOutputStream(bytes);
+				sender.writeMessage(1, message, output);
+				final byte[] encoded = bytes.toByteArray();
+				
+				double send = Bench.nanosPerOp(count, new Bench.Op() {
+					int messageNumber = 1;
+					public void run() throws Exception {
+						bytes.reset();
+						sender.writeMessage(++messageNumber, message, output);
+					}
+				});
+				double receive = Bench.nanosPerOp(count, new Bench.Op() {
+					public void run() throws Exception {
+						receiver.readMessages(new DataInputStream(new ByteArrayInputStream(encoded)));
+					}
+				});
+				System.out.format("%-16s %10d %12.1f %12.1f\n", mode.name(), size,
+						size * 1e3 / send, size * 1e3 / receive);
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.JsonWriter;
+
+/**
+ * Minimal timing harness shared by the benchmark programs
+ * Runs an operation for a warmup period and then reports the mean time per operation, or with
+ * measure, the latency distribution as well. Results can be saved as JSON and compared with a
+ * saved baseline so that regressions show up between versions.
+ */
+public class Bench {
+	private static final int WARMUP_ITERATIONS = 20000;
+
+	//Percentiles reported by measure, as fractions and as names
+	public static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+	private static final JsonValue PERCENTILE_NAMES = Json.createArrayBuilder()
+			.add("p50").add("p90").add("p99").add("p99.9").add("max").build();
+
+	/**
+	 * An operation to time
+	 */
+	public interface Op {
+		void run() throws Exception;
+	}
+
+	/**
+	 * The measurements of one operation
+	 */
+	public static class Result {
+		private final String name;
+		private final int iterations;
+		private final double meanNanos;
+		private final long[] percentiles;
+
+		/**
+		 * Constructor
+		 * @param name The name of the measurement, unique within a run
+		 * @param iterations The number of measured iterations
+		 * @param meanNanos Mean nanoseconds per operation
+		 * @param percentiles Nanoseconds at each of PERCENTILES
+		 */
+		private Result(String name, int iterations, double meanNanos, long[] percentiles) {
+			this.name = name;
+			this.iterations = iterations;
+			this.meanNanos = meanNanos;
+			this.percentiles = percentiles;
+		}
+
+		/**
+		 * @return The name of the measurement
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return Mean nanoseconds per operation
+		 */
+		public double getMeanNanos() {
+			return meanNanos;
+		}
+
+		/**
+		 * @return Operations per second
+		 */
+		public double getOpsPerSecond() {
+			return 1e9 / meanNanos;
+		}
+
+		/**
+		 * @param index An index into PERCENTILES
+		 * @return The latency at that percentile in nanoseconds
+		 */
+		public long getPercentile(int index) {
+			return percentiles[index];
+		}
+
+		/**
+		 * @return The result as a JSON object
+		 */
+		public JsonObject toJson() {
+			JsonArrayBuilder latencies = Json.createArrayBuilder();
+			for (long latency : percentiles) {
+				latencies.add(latency);
+			}
+			return Json.createObjectBuilder()
+					.add("name", name)
+					.add("iterations", iterations)
+					.add("meanNanos", meanNanos)
+					.add("opsPerSecond", getOpsPerSecond())
+					.add("percentiles", PERCENTILE_NAMES)
+					.add("percentileNanos", latencies)
+					.build();
+		}
+	}
+
+	/**
+	 * Times op and returns the mean nanoseconds per operation
+	 * @param iterations The number of measured iterations
+	 * @param op The operation
+	 * @return Mean nanoseconds per operation
+	 * @throws Exception If the operation fails
+	 */
+	public static double nanosPerOp(int iterations, Op op) throws Exception {
+		for (int i = 0; i < Math.min(iterations, WARMUP_ITERATIONS); i++) {
+			op.run();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			op.run();
+		}
+		return (System.nanoTime() - start) / (double)iterations;
+	}
+
+	/**
+	 * Times each run of op separately, giving the latency distribution as well as the mean
+	 * The latencies go into a LatencyHistogram, so the percentiles are within 12.5% whatever
+	 * the number of iterations. The clock is read around every operation, which adds a few
+	 * tens of nanoseconds to each
+	 * @param name The name of the measurement
+	 * @param iterations The number of measured iterations
+	 * @param op The operation
+	 * @return The measurements
+	 * @throws Exception If the operation fails
+	 */
+	public static Result measure(String name, int iterations, Op op) throws Exception {
+		for (int i = 0; i < Math.min(iterations, WARMUP_ITERATIONS); i++) {
+			op.run();
+		}
+		LatencyHistogram latencies = new LatencyHistogram();
+		long start = System.nanoTime();
+		long last = start;
+		for (int i = 0; i < iterations; i++) {
+			op.run();
+			long now = System.nanoTime();
+			latencies.record(now - last);
+			last = now;
+		}
+		double mean = (last - start) / (double)iterations;
+		long[] percentiles = new long[PERCENTILES.length];
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			percentiles[i] = latencies.getPercentileNanos(PERCENTILES[i]);
+		}
+		return new Result(name, iterations, mean, percentiles);
+	}
+
+	/**
+	 * Saves the results of a run as JSON
+	 * @param file The file to write
+	 * @param benchmark The name of the benchmark program
+	 * @param results The results
+	 * @throws IOException If the file cannot be written
+	 */
+	public static void writeJson(File file, String benchmark, List<Result> results) throws IOException {
+		JsonArrayBuilder array = Json.createArrayBuilder();
+		for (Result result : results) {
+			array.add(result.toJson());
+		}
+		JsonObject document = Json.createObjectBuilder()
+				.add("benchmark", benchmark)
+				.add("timestamp", System.currentTimeMillis())
+				.add("java", System.getProperty("java.version"))
+				.add("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"))
+				.add("processors", Runtime.getRuntime().availableProcessors())
+				.add("results", array)
+				.build();
+		try (JsonWriter writer = Json.createWriter(new FileWriter(file))) {
+			writer.writeObject(document);
+		}
+	}
+
+	/**
+	 * Reads the mean times from results saved by writeJson
+	 * @param file The file to read
+	 * @return Mean nanoseconds per operation by measurement name
+	 * @throws IOException If the file cannot be read
+	 */
+	public static Map<String,Double> readJson(File file) throws IOException {
+		Map<String,Double> means = new HashMap<>();
+		try (Reader reader = new FileReader(file)) {
+			for (JsonValue value : Json.createReader(reader).readObject().getJsonArray("results")) {
+				JsonObject result = (JsonObject)value;
+				means.put(result.getString("name"), result.getJsonNumber("meanNanos").doubleValue());
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Not a benchmark result file: " + file);
+		}
+		return Collections.unmodifiableMap(means);
+	}
+
+	/**
+	 * Prints how each result compares with a baseline run
+	 * @param baseline Mean nanoseconds per operation by name, from readJson
+	 * @param results The results of this run
+	 * @param threshold The percentage slowdown counted as a regression
+	 * @return The number of regressions
+	 */
+	public static int compare(Map<String,Double> baseline, List<Result> results, double threshold) {
+		int regressions = 0;
+		System.out.format("%-40s %14s %14s %9s\n", "measurement", "baseline ns", "current ns", "change");
+		for (Result result : results) {
+			Double before = baseline.get(result.getName());
+			if (before == null) {
+				continue;
+			}
+			double change = 100 * (result.getMeanNanos() - before) / before;
+			boolean regression = change > threshold;
+			if (regression) {
+				regressions++;
+			}
+			System.out.format("%-40s %14.0f %14.0f %+8.1f%%%s\n", result.getName(), before,
+					result.getMeanNanos(), change, regression ? "  REGRESSION" : "");
+		}
+		return regressions;
+	}
+}
@@ -0,0 +1,271 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Repeatable throughput and latency numbers for the whole channel, for comparing versions
+ * Measures, for every mode and wire format at several message sizes, the cost of Alice
+ * sending a message, of Bob receiving one and of a round trip over a loopback connection,
+ * where Bob acknowledges each message with one byte. Also measures each kind of handshake.
+ * Prints the mean, throughput and latency percentiles of each and can save them as JSON
+ * and compare them with a saved baseline, exiting with status 1 if anything got slower by
+ * more than threshold percent.
+ * Call as
+ * ChannelBench [iterations] [sizes=<n,n,...>] [handshakes=<n>] [roundtrips=<n>]
+ *              [out=<file>] [baseline=<file>] [threshold=<percent>]
+ */
+public class ChannelBench {
+	private static final String DEFAULT_SIZES = "16,256,4096,65536";
+
+	//writeUTF cannot send a JSON message much larger than this once it is encrypted and encoded
+	private static final int JSON_SIZE_LIMIT = 16384;
+
+	private static final List<Bench.Result> results = new ArrayList<>();
+
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0 && !args[0].contains("=")) ? Integer.parseInt(args[0]) : 20000;
+		Options options = new Options(args, (args.length > 0 && !args[0].contains("=")) ? 1 : 0);
+		String[] sizeList = options.get("sizes", DEFAULT_SIZES).split(",");
+		int[] sizes = new int[sizeList.length];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = Integer.parseInt(sizeList[i].trim());
+		}
+		int handshakes = options.getInt("handshakes", 200);
+		int roundTrips = options.getInt("roundtrips", 5000);
+
+		KeyGenerator aes = KeyGenerator.getInstance("AES");
+		aes.init(128);
+		KeyGenerator hmac = KeyGenerator.getInstance("HmacSHA256");
+		byte[] ivBytes = new byte[16];
+		new SecureRandom().nextBytes(ivBytes);
+		SessionKeys keys = new SessionKeys(aes.generateKey(), new IvParameterSpec(ivBytes),
+				hmac.generateKey());
+
+		System.out.format("%-40s %12s %12s %10s %10s %10s %10s\n", "measurement", "mean ns",
+				"ops/sec", "p50 ns", "p99 ns", "p99.9 ns", "max ns");
+		for (Mode mode : Mode.values()) {
+			for (WireFormat format : WireFormat.values()) {
+				for (int size : sizes) {
+					if (format == WireFormat.JSON && size > JSON_SIZE_LIMIT) {
+						continue;
+					}
+					benchCodec(mode, format, size, keys, iterations);
+					benchRoundTrip(mode, format, size, keys, roundTrips);
+				}
+			}
+		}
+		benchHandshakes(handshakes);
+
+		if (options.has("out")) {
+			File out = new File(options.get("out", "channel.json"));
+			Bench.writeJson(out, "ChannelBench", results);
+			System.out.println("Results written to " + out);
+		}
+		if (options.has("baseline")) {
+			System.out.println();
+			int regressions = Bench.compare(Bench.readJson(new File(options.get("baseline", "channel.json"))),
+					results, options.getInt("threshold", 10));
+			System.out.format("%d regressions\n", regressions);
+			if (regressions > 0) {
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * Measures encoding a message on Alice's side and decoding it on Bob's
+	 * @param mode The mode
+	 * @param format The wire format
+	 * @param size The message size in characters
+	 * @param keys The session keys
+	 * @param iterations The number of measured iterations
+	 * @throws Exception If the codec fails
+	 */
+	private static void benchCodec(Mode mode, WireFormat format, int size, SessionKeys keys,
+			int iterations) throws Exception {
+		final String message = message(size);
+		final MessageCodec sender = MessageCodec.create(format, mode, keys, true);
+		final MessageCodec receiver = MessageCodec.create(format, mode, keys, false);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream output = new DataOutputStream(bytes);
+		sender.writeMessage(1, message, output);
+		final byte[] encoded = bytes.toByteArray();
+
+		report(Bench.measure(name("send", mode, format, size), iterations, new Bench.Op() {
+			int messageNumber = 1;
+			public void run() throws Exception {
+				bytes.reset();
+				sender.writeMessage(++messageNumber, message, output);
+			}
+		}));
+		report(Bench.measure(name("receive", mode, format, size), iterations, new Bench.Op() {
+			public void run() throws Exception {
+				if (receiver.readMessages(new DataInputStream(new ByteArrayInputStream(encoded))).isEmpty()) {
+					throw new IllegalStateException("Message was not recovered");
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Measures sending a message over a loopback connection and waiting for Bob to
+	 * acknowledge it once he has decoded it
+	 * @param mode The mode
+	 * @param format The wire format
+	 * @param size The message size in characters
+	 * @param keys The session keys
+	 * @param iterations The number of measured round trips
+	 * @throws Exception If the connection or codec fails
+	 */
+	private static void benchRoundTrip(Mode mode, WireFormat format, int size, SessionKeys keys,
+			int iterations) throws Exception {
+		final String message = message(size);
+		final MessageCodec sender = MessageCodec.create(format, mode, keys, true);
+		final MessageCodec receiver = MessageCodec.create(format, mode, keys, false);
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+				Socket alice = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+				final Socket bob = server.accept()) {
+			alice.setTcpNoDelay(true);
+			bob.setTcpNoDelay(true);
+			Thread echo = new Thread(new Runnable() {
+				public void run() {
+					try {
+						DataInputStream incoming = new DataInputStream(
+								new BufferedInputStream(bob.getInputStream()));
+						OutputStream acknowledgements = bob.getOutputStream();
+						while(true) {
+							for (int i = receiver.readMessages(incoming).size(); i > 0; i--) {
+								acknowledgements.write(1);
+							}
+						}
+					} catch (IOException e) {
+						//Alice closed the connection
+					}
+				}
+			});
+			echo.start();
+			final DataOutputStream output = new DataOutputStream(
+					new BufferedOutputStream(alice.getOutputStream()));
+			final InputStream acknowledgements = alice.getInputStream();
+			report(Bench.measure(name("roundtrip", mode, format, size), iterations, new Bench.Op() {
+				int messageNumber = 0;
+				public void run() throws Exception {
+					sender.writeMessage(++messageNumber, message, output);
+					output.flush();
+					if (acknowledgements.read() < 0) {
+						throw new IOException("Bob closed the connection");
+					}
+				}
+			}));
+			alice.shutdownOutput();
+			echo.join();
+		}
+	}
+
+	/**
+	 * Measures full RSA/DSA, X25519/Ed25519 and resumed handshakes run in process
+	 * @param iterations The number of measured handshakes of each kind
+	 * @throws Exception If a handshake fails
+	 */
+	private static void benchHandshakes(int iterations) throws Exception {
+		KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+		rsa.initialize(2048);
+		final KeyPair bobRSA = rsa.generateKeyPair();
+		KeyPairGenerator dsa = KeyPairGenerator.getInstance("DSA");
+		dsa.initialize(1024);
+		final KeyPair aliceDSA = dsa.generateKeyPair();
+		final KeyPair aliceEd25519 = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+		final KeyPair bobX25519 = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+
+		//The handshakes report their progress on System.out
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {public void write(int b) {}}));
+		List<Bench.Result> handshakeResults = new ArrayList<>();
+		try {
+			final AliceHandshake full = new AliceHandshake(aliceDSA.getPrivate(), bobRSA.getPublic());
+			handshakeResults.add(Bench.measure("handshake/rsa", iterations, new Bench.Op() {
+				public void run() throws Exception {
+					HandshakeBench.handshake(full, new BobHandshake(bobRSA.getPrivate(), aliceDSA.getPublic(), null));
+				}
+			}));
+
+			final AliceHandshake ecdh = new AliceHandshake(aliceDSA.getPrivate(), bobRSA.getPublic());
+			ecdh.enableEcdh(aliceEd25519.getPrivate(), bobX25519.getPublic());
+			final BobHandshake ecdhBob = new BobHandshake(bobRSA.getPrivate(), aliceDSA.getPublic(), null);
+			ecdhBob.enableEcdh(bobX25519.getPrivate(), aliceEd25519.getPublic());
+			handshakeResults.add(Bench.measure("handshake/ecdh", iterations, new Bench.Op() {
+				public void run() throws Exception {
+					HandshakeBench.handshake(ecdh, ecdhBob);
+				}
+			}));
+
+			final ResumptionCache cache = new ResumptionCache(1000, 3600000);
+			final AliceHandshake resuming = new AliceHandshake(aliceDSA.getPrivate(), bobRSA.getPublic());
+			resuming.enableResumption(null, 3600000);
+			HandshakeBench.handshake(resuming, new BobHandshake(bobRSA.getPrivate(), aliceDSA.getPublic(), cache));
+			handshakeResults.add(Bench.measure("handshake/resumed", iterations, new Bench.Op() {
+				public void run() throws Exception {
+					HandshakeBench.handshake(resuming, new BobHandshake(bobRSA.getPrivate(), aliceDSA.getPublic(), cache));
+				}
+			}));
+		} finally {
+			System.setOut(console);
+		}
+		for (Bench.Result result : handshakeResults) {
+			report(result);
+		}
+	}
+
+	/**
+	 * Prints a result and keeps it for the JSON output
+	 * @param result The result
+	 */
+	private static void report(Bench.Result result) {
+		results.add(result);
+		System.out.format("%-40s %12.0f %12.0f %10d %10d %10d %10d\n", result.getName(),
+				result.getMeanNanos(), result.getOpsPerSecond(), result.getPercentile(0),
+				result.getPercentile(2), result.getPercentile(3), result.getPercentile(4));
+	}
+
+	/**
+	 * @param operation What was measured
+	 * @param mode The mode
+	 * @param format The wire format
+	 * @param size The message size
+	 * @return The name of the measurement
+	 */
+	private static String name(String operation, Mode mode, WireFormat format, int size) {
+		return String.format("%s/%s/%s/%d", operation, mode.name().toLowerCase(),
+				format.name().toLowerCase(), size);
+	}
+
+	/**
+	 * @param size The number of characters
+	 * @return A message of that size
+	 */
+	private static String message(int size) {
+		char[] chars = new char[size];
+		Arrays.fill(chars, 'a');
+		return new String(chars);
+	}
+}
@@ -0,0 +1,86 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+/**
+ * Measures the latency and bytes exchanged of a full RSA/DSA key transport handshake, an
+ * X25519/Ed25519 key agreement handshake and a resumed one
+ * Both sides run in process over in-memory streams, so the numbers are pure CPU cost
+ * Call as
+ * HandshakeBench [iterations]
+ */
+public class HandshakeBench {
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+		
+		KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+		rsa.initialize(2048);
+		final KeyPair bobRSA = rsa.generateKeyPair();
+		KeyPairGenerator dsa = KeyPairGenerator.getInstance("DSA");
+		dsa.initialize(1024);
+		final KeyPair aliceDSA = dsa.generateKeyPair();
+		final KeyPair aliceEd25519 = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+		final KeyPair bobX25519 = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+		
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {public void write(int b) {}}));
+		
+		final AliceHandshake full = new AliceHandshake(aliceDSA.getPrivate(), bobRSA.getPublic());
+		double fullNanos = Bench.nanosPerOp(iterations, new Bench.Op() {
+			public void run() throws Exception {
+				handshake(full, new BobHandshake(bobRSA.getPrivate(), aliceDSA.getPublic(), null));
+			}
+		});
+		
+		final AliceHandshake ecdh = new AliceHandshake(aliceDSA.getPrivate(), bobRSA.getPublic());
+		ecdh.enableEcdh(aliceEd25519.getPrivate(), bobX25519.getPublic());
+		final BobHandshake ecdhBob = new BobHandshake(bobRSA.getPrivate(), aliceDSA.getPublic(), null);
+		ecdhBob.enableEcdh(bobX25519.getPrivate(), aliceEd25519.getPublic());
+		double ecdhNanos = Bench.nanosPerOp(iterations, new Bench.Op() {
+			public void run() throws Exception {
+				handshake(ecdh, ecdhBob);
+			}
+		});
+		
+		final ResumptionCache cache = new ResumptionCache(1000, 3600000);
+		final AliceHandshake resuming = new AliceHandshake(aliceDSA.getPrivate(), bobRSA.getPublic());
+		resuming.enableResumption(null, 3600000);
+		handshake(resuming, new BobHandshake(bobRSA.getPrivate(), aliceDSA.getPublic(), cache));
+		int resumedBytes = handshake(resuming, new BobHandshake(bobRSA.getPrivate(), aliceDSA.getPublic(), cache));
+		double resumedNanos = Bench.nanosPerOp(iterations, new Bench.Op() {
+			public void run() throws Exception {
+				handshake(resuming, new BobHandshake(bobRSA.getPrivate(), aliceDSA.getPublic(), cache));
+			}
+		});
+		
+		int fullBytes = handshake(full, new BobHandshake(bobRSA.getPrivate(), aliceDSA.getPublic(), null));
+		int ecdhBytes = handshake(ecdh, ecdhBob);
+		System.setOut(console);
+		System.out.format("%-22s %10s %8s\n", "handshake", "ms", "bytes");
+		System.out.format("%-22s %10.3f %8d\n", "RSA/DSA transport", fullNanos / 1e6, fullBytes);
+		System.out.format("%-22s %10.3f %8d\n", "X25519/Ed25519", ecdhNanos / 1e6, ecdhBytes);
+		System.out.format("%-22s %10.3f %8d\n", "resumed", resumedNanos / 1e6, resumedBytes);
+		System.out.println(CryptoContext.summary());
+	}
+	
+	/**
+	 * Runs both sides of a handshake over an in-memory stream
+	 * @param alice Alice's side
+	 * @param bob Bob's side
+	 * @return The number of bytes Alice sent
+	 * @throws Exception If the handshake fails
+	 */
+	static int handshake(AliceHandshake alice, BobHandshake bob) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		alice.perform(new DataOutputStream(bytes));
+		if (bob.perform(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) == null) {
+			throw new IllegalStateException("Handshake failed");
+		}
+		return bytes.size();
+	}
+}
@@ -0,0 +1,73 @@
+import java.util.Random;
+
+/**
+ * Measures the cost of Bob's replay window check per message for in order, reordered and
+ * replayed traffic at several window sizes
+ * Call as
+ * ReplayWindowBench [iterations]
+ */
+public class ReplayWindowBench {
+	private static final int[] SIZES = {64, 1024, 65536};
+	
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 10000000;
+		
+		//Message numbers in the order they arrive
+		int[] inOrder = new int[iterations];
+		for (int i = 0; i < iterations; i++) {
+			inOrder[i] = i + 1;
+		}
+		int[] reordered = inOrder.clone();
+		Random random = new Random(5430);
+		for (int block = 0; block + 32 <= iterations; block += 32) {
+			for (int i = block + 31; i > block; i--) {
+				int j = block + random.nextInt(i - block + 1);
+				int swap = reordered[i];
+				reordered[i] = reordered[j];
+				reordered[j] = swap;
+			}
+		}
+		int[] replayed = new int[iterations];
+		for (int i = 0; i < iterations; i++) {
+			replayed[i] = i / 2 + 1;
+		}
+		
+		System.out.format("%-10s %10s %10s %10s\n", "traffic", "window", "ns/check", "accepted");
+		for (int size : SIZES) {
+			run("in order", size, inOrder);
+			run("reordered", size, reordered);
+			run("replayed", size, replayed);
+		}
+	}
+	
+	/**
+	 * Checks every number of a sequence against a fresh window and prints the cost
+	 * @param traffic The name of the sequence
+	 * @param size The window size
+	 * @param numbers The sequence
+	 * @throws Exception Never
+	 */
+	private static void run(String traffic, final int size, final int[] numbers) throws Exception {
+		//One untimed pass to count what the window lets through
+		ReplayWindow check = new ReplayWindow(size);
+		long accepted = 0;
+		for (int number : numbers) {
+			if (check.check(number).isAccepted()) {
+				accepted++;
+			}
+		}
+		
+		final ReplayWindow[] window = {new ReplayWindow(size)};
+		final int[] next = {0};
+		double nanos = Bench.nanosPerOp(numbers.length, new Bench.Op() {
+			public void run() {
+				if (next[0] == numbers.length) {
+					window[0] = new ReplayWindow(size);
+					next[0] = 0;
+				}
+				window[0].check(numbers[next[0]++]);
+			}
+		});
+		System.out.format("%-10s %10d %10.2f %10d\n", traffic, size, nanos, accepted);
+	}
+}
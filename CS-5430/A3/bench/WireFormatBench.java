@@ -0,0 +1,64 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Compares the JSON and binary wire formats in every mode
+ * Reports bytes on the wire per message and the cost to encode and to parse one message
+ * Call as
+ * WireFormatBench [messageSize] [iterations]
+ */
+public class WireFormatBench {
+	public static void main(String[] args) throws Exception {
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+		int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+		
+		char[] chars = new char[size];
+		Arrays.fill(chars, 'a');
+		final String message = new String(chars);
+		
+		KeyGenerator aes = KeyGenerator.getInstance("AES");
+		aes.init(128);
+		KeyGenerator hmac = KeyGenerator.getInstance("HmacSHA256");
+		byte[] ivBytes = new byte[16];
+		new SecureRandom().nextBytes(ivBytes);
+		SessionKeys keys = new SessionKeys(aes.generateKey(), new IvParameterSpec(ivBytes),
+				hmac.generateKey());
+		
+		System.out.format("%d byte messages, %d iterations\n", size, iterations);
+		System.out.format("%-16s %-8s %12s %14s %14s\n", "mode", "format", "bytes/msg", "encode ns/op",
+				"parse ns/op");
+		for (Mode mode : Mode.values()) {
+			for (WireFormat format : WireFormat.values()) {
+				final MessageCodec sender = MessageCodec.create(format, mode, keys, true);
+				final MessageCodec receiver = MessageCodec.create(format, mode, keys, false);
+				
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				final DataOutputStream output = new DataOutputStream(bytes);
+				sender.writeMessage(1, message, output);
+				final byte[] encoded = bytes.toByteArray();
+				
+				double encode = Bench.nanosPerOp(iterations, new Bench.Op() {
+					int messageNumber = 1;
+					public void run() throws Exception {
+						bytes.reset();
+						sender.writeMessage(++messageNumber, message, output);
+					}
+				});
+				double parse = Bench.nanosPerOp(iterations, new Bench.Op() {
+					public void run() throws Exception {
+						receiver.readMessages(new DataInputStream(new ByteArrayInputStream(encoded)));
+					}
+				});
+				System.out.format("%-16s %-8s %12d %14.0f %14.0f\n", mode.name(), format, encoded.length,
+						encode, parse);
+			}
+		}
+	}
+}
@@ -1,34 +1,17 @@
 import java.net.*;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.Key;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import java.security.SecureRandom;
-import java.security.Signature;
-import java.security.SignatureException;
-import java.util.Base64;
 import java.util.Scanner;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.KeyGenerator;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.json.*;
-
 import java.io.*;
 
 public class Alice extends Thread {
 
 	private static final int DEFAULT_PORT = 4000;
+	private static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+	private static final long DEFAULT_BATCH_DELAY_MILLIS = 2;
+	private static final int DEFAULT_TICKET_LIFETIME_SECONDS = 3600;
+	private static final String TICKET_FILE = "alice.ticket";
 	
 	private static Key alicePublicRSA;
 	private static Key alicePrivateRSA;
@@ -36,12 +19,21 @@ public class Alice extends Thread {
 	private static Key alicePrivateDSA;
 	private static Key bobPublicRSA;
 	private static Key bobPublicDSA;
+	private static Key alicePrivateEd25519;
+	private static Key bobPublicX25519;
 	
 	private Socket client;
 	private Mode mode;
-	private SecretKey sessionKey;
-	private IvParameterSpec iv;
-	private SecretKey MACKey;
+	private WireFormat format = WireFormat.JSON;
+	private int batchBytes = 0;
+	private long batchDelay = DEFAULT_BATCH_DELAY_MILLIS;
+	private long ticketLifetime = 0;
+	private boolean ecdh = false;
+	private boolean streams = false;
+	private File send;
+	private long rekeyFrames = 0;
+	private long rekeyBytes = 0;
+	private String name = "Alice";
 	
 	/**
 	 * Constructor. Defaults to plaintext mode
@@ -72,170 +64,120 @@ public class Alice extends Thread {
 		final Scanner scanner = new Scanner( System.in );
 		try {		
 			//Connect to server
-			OutputStream outputToServer = client.getOutputStream();
+			OutputStream outputToServer = ChannelMetrics.counting(client.getOutputStream());
 			DataOutputStream output = new DataOutputStream(outputToServer);
 			
 			//Generate and send session key
-			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-			generateSymmetricEncryptionKey(cipher);
-//			System.out.format("Session Key: %s\n", 
-//					new String(Base64.getEncoder().encode(sessionKey.getEncoded())),StandardCharsets.UTF_8);
-//			System.out.format("IV: %s\n",
-//					Base64.getEncoder().encodeToString(iv.getIV()));
-			sendSessionKey(sessionKey,output,true);
-			generateMACKey();
-			sendSessionKey(MACKey,output,false);
-			
+			AliceHandshake handshake = newHandshake(name, ecdh);
+			if (ticketLifetime > 0) {
+				handshake.enableResumption(new File(TICKET_FILE), ticketLifetime);
+			}
+			long handshakeStart = System.nanoTime();
+			SessionKeys keys = handshake.perform(output);
+			ChannelMetrics.handshakeCompleted(System.nanoTime() - handshakeStart);
 			
 			//Initialize MAC and cipher algorithms
-			cipher.init(Cipher.ENCRYPT_MODE, sessionKey, iv); 
-			Mac mac =  Mac.getInstance("HmacSHA256");
-			mac.init(MACKey);
+			MessageCodec codec = MessageCodec.create(format, mode, keys, true);
+			if (codec instanceof BinaryCodec) {
+				((BinaryCodec)codec).setRekeyLimits(rekeyFrames, rekeyBytes);
+			}
+			
+			//Send a file before any messages if asked to
+			if (send != null) {
+				long bytes = new TransferSender((BinaryCodec)codec, output).send(send);
+				System.out.format("Sent %s, %d bytes\n", send.getName(), bytes);
+			}
+			
+			//Multiplex logical streams over the connection if asked to
+			StreamSender streamSender = null;
+			if (streams) {
+				streamSender = new StreamSender((BinaryCodec)codec, new DataOutputStream(
+						new BufferedOutputStream(outputToServer)), client);
+			}
+			
+			//Coalesce messages into batches if asked to
+			BatchingSender batcher = null;
+			if (batchBytes > 0 && !streams) {
+				batcher = new BatchingSender(codec, new DataOutputStream(
+						new BufferedOutputStream(outputToServer, 2 * batchBytes)), batchBytes, batchDelay);
+				final BatchingSender queued = batcher;
+				ChannelMetrics.addQueue("batch", new ChannelMetrics.Gauge() {
+					public long value() {
+						return queued.size();
+					}
+				});
+			}
 			
 			//Main loop
 			System.out.println("Enter messages to send:");
 			int messageNumber = 0;
 			while(true) {
-				String message = scanner.nextLine(); // might be unsafe	
+				//End of input also shuts down so that Alice can be fed from a pipe
+				String message = scanner.hasNextLine() ? scanner.nextLine() : "quit"; // might be unsafe	
 				messageNumber++;
 				if (message.equals("quit")) {
 					System.out.println("Shutting Down");
+					if (batcher != null) {
+						batcher.close();
+					}
+					if (streamSender != null) {
+						streamSender.close();
+					}
 					scanner.close();
 					client.close();
 					System.exit(0);
 				}
-				sendMessage(messageNumber, message, cipher, mac, output);
-				
+				if (streamSender != null) {
+					sendOnStream(streamSender, message);
+				}
+				else if (batcher != null) {
+					batcher.send(new Message(messageNumber, message));
+				}
+				else {
+					codec.writeMessage(messageNumber, message, output);
+				}
+				ChannelMetrics.countMessage();
 			}
 		
-		} catch(IOException | NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException 
-				| InvalidAlgorithmParameterException e) {
+		} catch(IOException | GeneralSecurityException e) {
 			System.err.println("Error sending message");
 			System.exit(0);
 		}
 	}
 	
 	/**
-	 * Sends message over output stream output in a fashion specifed by the current mode
-	 * Uses cipher and digest if applicable 
-	 * @param messageNumber The number of the message
-	 * @param message The message to send
-	 * @param cipher The cipher to use  if applicable
-	 * @param digest The message digest to use if applicable
-	 * @param output The output stream to send over
-	 * @throws IOException If there is an error
+	 * Creates Alice's side of the handshake for a new session
+	 * @param name The principal Alice signs as
+	 * @param ecdh Whether to use X25519 key agreement rather than RSA key transport
+	 * @return The handshake
 	 */
-	private void sendMessage(int messageNumber, String message, Cipher cipher, Mac mac,
-			DataOutputStream output) throws IOException {
-		JsonObjectBuilder msgPlusNumber = Json.createObjectBuilder();
-		msgPlusNumber.add("Message Number", messageNumber);
-		msgPlusNumber.add("Message", message);
-		JsonObject jsonmsgPlusNumber = msgPlusNumber.build();
-		byte[] plaintext;
-		try {
-			plaintext = jsonmsgPlusNumber.toString().getBytes("UTF-8");
-			byte[] ciphertext = Base64.getEncoder().encode(cipher.doFinal(plaintext));
-			switch(mode) {
-			case PLAINTEXT:
-				output.writeUTF(jsonmsgPlusNumber.toString());
-				break;
-			case ENCRYPTION:
-				String ciphervalue = new String(ciphertext, StandardCharsets.UTF_8);
-				output.writeUTF(ciphervalue);
-				break;
-			case MAC:
-				byte[] plaintextMAC = Base64.getEncoder().encode(mac.doFinal(plaintext));
-				JsonObjectBuilder toSendMAC = Json.createObjectBuilder();
-				toSendMAC.add("Numbered Message", msgPlusNumber);
-				String plaintextMACstring = new String(plaintextMAC, StandardCharsets.UTF_8);
-				toSendMAC.add("MAC", plaintextMACstring);
-				JsonObject jsontoSendMAC = toSendMAC.build();
-				output.writeUTF(jsontoSendMAC.toString());
-				break;
-			case MAC_ENCRYPTION:
-				byte[] ciphertextMAC = Base64.getEncoder().encode(mac.doFinal(ciphertext));
-				JsonObjectBuilder toSendEncryptionMAC = Json.createObjectBuilder();
-				String ciphertextstring = new String(ciphertext, StandardCharsets.UTF_8);
-				toSendEncryptionMAC.add("Encrypted Message", ciphertextstring);
-				String ciphertextmacstring = new String(ciphertextMAC, StandardCharsets.UTF_8);
-				toSendEncryptionMAC.add("MAC", ciphertextmacstring);
-				JsonObject jsontoSendEncryptionMAC = toSendEncryptionMAC.build();
-				output.writeUTF(jsontoSendEncryptionMAC.toString());
-			}
-		} catch (UnsupportedEncodingException | IllegalBlockSizeException | BadPaddingException e) {
-			e.printStackTrace();
+	private static AliceHandshake newHandshake(String name, boolean ecdh) {
+		AliceHandshake handshake = new AliceHandshake(alicePrivateDSA, bobPublicRSA);
+		handshake.setName(name);
+		if (ecdh) {
+			handshake.enableEcdh(alicePrivateEd25519, bobPublicX25519);
 		}
+		return handshake;
 	}
 	
 	/**
-	 * Sends a session key and iv over stream
-	 * @param stream The stream to send it over
-	 * @throws IOException If there is an error
+	 * Sends a line of input on the stream it names, as <stream>:<message>, or on stream 1
+	 * @param streamSender The streams
+	 * @param line The line
+	 * @throws IOException If there is an error sending
 	 */
-	private void sendSessionKey(SecretKey key, DataOutputStream stream, boolean aes) throws IOException {
-		try {
-			System.out.format("Sending %s Key\n", (aes)?"Session":"MAC");
-			
-			JsonObjectBuilder toSign = Json.createObjectBuilder();
-			toSign.add("Recipient","Bob").add("Timestamp", System.currentTimeMillis());
-			
-			Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
-			cipher.init(Cipher.ENCRYPT_MODE, bobPublicRSA);
-			
-			JsonObjectBuilder toEncrypt = Json.createObjectBuilder();
-			toEncrypt.add("Sender", "Alice");
-			toEncrypt.add("Session Key", Base64.getEncoder().encodeToString(key.getEncoded()));
-			toEncrypt.add("IV", Base64.getEncoder().encodeToString(iv.getIV()));
-			
-			JsonObject jsontoEncrypt = toEncrypt.build();
-			
-			byte[] ciphertext = cipher.doFinal(jsontoEncrypt.toString().getBytes("UTF-8"));
-			toSign.add("Encrypted Key", Base64.getEncoder().encodeToString(ciphertext));
-			JsonObject jsontoSign = toSign.build();
-						
-			Signature dsa = Signature.getInstance("SHA1withDSA");
-			dsa.initSign((PrivateKey)alicePrivateDSA);
-			dsa.update(jsontoSign.toString().getBytes("UTF-8"));
-			byte[] signature = dsa.sign();
-			
-			JsonObjectBuilder message = Json.createObjectBuilder();
-			message.add("Message", toSign);
-			message.add("Signature", Base64.getEncoder().encodeToString(signature));
-			JsonObject jsonmessage = message.build();
-			
-			stream.writeUTF(jsonmessage.toString());
-		} 
-		catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException 
-				 | SignatureException | IllegalBlockSizeException | BadPaddingException
-				 | UnsupportedEncodingException e) {
-			e.printStackTrace();
+	private static void sendOnStream(StreamSender streamSender, String line) throws IOException {
+		int stream = 1;
+		if (line.matches("\\d{1,3}:.*")) {
+			int colon = line.indexOf(':');
+			stream = Integer.parseInt(line.substring(0, colon));
+			line = line.substring(colon + 1);
 		}
-	}
-	
-	/**
-	 * Generates an AES symmetric encryption key and an initialization vector
-	 */
-	private void generateSymmetricEncryptionKey(Cipher cipher) {
 		try {
-			KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-			keyGen.init(128);
-			sessionKey = keyGen.generateKey();
-			SecureRandom randomSecureRandom = SecureRandom.getInstance("SHA1PRNG");
-			byte[] ivBytes = new byte[cipher.getBlockSize()];
-			randomSecureRandom.nextBytes(ivBytes);
-			iv = new IvParameterSpec(ivBytes);
-		} catch (NoSuchAlgorithmException e) {}
-	}
-	
-	/**
-	 * Generates a MAC key
-	 */
-	private void generateMACKey() {
-		try {
-			KeyGenerator keyGen = KeyGenerator.getInstance("HmacSHA256");
-			keyGen.init(256);
-			MACKey = keyGen.generateKey();
-		} catch (NoSuchAlgorithmException e) {}
+			streamSender.send(stream, line);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+		}
 	}
 	
 	/**
@@ -245,12 +187,32 @@ public class Alice extends Thread {
 	 * Alice <mode>
 	 * Alice <port> <mode>
 	 * Alice <host> <port> <mode>
+	 * Alice <host> <port> <mode> format=<json|binary>
+	 * Alice <host> <port> <mode> batch [batchbytes=<bytes>] [batchdelay=<millis>]
+	 * Alice <host> <port> <mode> resume [ttl=<seconds>]
+	 * Alice <host> <port> <mode> handshake=<rsa|ecdh>
+	 * Alice <host> <port> <mode> keyring=<file> [name=<alias>]
+	 * Alice <host> <port> <mode> format=binary streams
+	 * Alice <host> <port> <mode> jmx
+	 * Alice <host> <port> <mode> format=binary send=<file>
+	 * Alice <host> <port> <mode> format=binary rekey=<frames> rekeybytes=<bytes>
+	 * Alice <host> <port> <mode> load=<sessions> [rate=<messages/sec>] [duration=<seconds>]
+	 * 		[size=<bytes>] [messages=<file>]
+	 * With a keyring Alice signs as the named principal using that principal's keys
+	 * With streams each line of input may start with <stream>: to choose the logical stream
+	 * it is sent on, stream 1 if it does not
+	 * With jmx Alice's counters are published as an MXBean, see ChannelMetrics
+	 * With send the file is streamed to Bob in chunks before any messages, see TransferSender
+	 * With rekey and rekeybytes Alice switches to keys derived from the current ones after that
+	 * many frames or bytes, telling Bob in the session, see BinaryCodec
+	 * With load Alice reads no input and runs many sessions at once, see LoadGenerator
 	 */
 	public static void main(String[] args) {
 		//Parse arguments
 		String host = null; //loopback
 		int port = DEFAULT_PORT;
 		Mode m = Mode.PLAINTEXT;
+		Options options = new Options(args, 3);
 		switch(args.length) {
 		case 0: 
 			break;
@@ -269,23 +231,94 @@ public class Alice extends Thread {
 		System.out.format("Starting in %s mode\n", m.toString());
 		
 		//Load keys from filesystem
+		Keyring keyring = null;
+		if (options.has("keyring")) {
+			try {
+				keyring = new Keyring(new File(options.get("keyring", "keys.keyring")));
+			} catch (IOException e) {
+				System.err.println("Error reading keyring");
+				System.exit(0);
+			}
+		}
+		String name = options.get("name", "Alice");
+		String alias = (keyring == null) ? "alice" : name;
 		try {
-			alicePublicRSA = KeyIO.readKeyFromFile(new File("alicepublicRSA.key"), KeyIO.Type.PUBLIC_RSA);
-			alicePrivateRSA = KeyIO.readKeyFromFile(new File("aliceprivateRSA.key"), KeyIO.Type.PRIVATE_RSA);
-			alicePublicDSA = KeyIO.readKeyFromFile(new File("alicepublicDSA.key"), KeyIO.Type.PUBLIC_DSA);
-			alicePrivateDSA = KeyIO.readKeyFromFile(new File("aliceprivateDSA.key"), KeyIO.Type.PRIVATE_DSA);
-			bobPublicRSA = KeyIO.readKeyFromFile(new File("bobpublicRSA.key"), KeyIO.Type.PUBLIC_RSA);
-			bobPublicDSA = KeyIO.readKeyFromFile(new File("bobpublicDSA.key"), KeyIO.Type.PUBLIC_DSA);
+			alicePublicRSA = KeyIO.readKey(keyring, alias, KeyIO.Type.PUBLIC_RSA);
+			alicePrivateRSA = KeyIO.readKey(keyring, alias, KeyIO.Type.PRIVATE_RSA);
+			alicePublicDSA = KeyIO.readKey(keyring, alias, KeyIO.Type.PUBLIC_DSA);
+			alicePrivateDSA = KeyIO.readKey(keyring, alias, KeyIO.Type.PRIVATE_DSA);
+			bobPublicRSA = KeyIO.readKey(keyring, "bob", KeyIO.Type.PUBLIC_RSA);
+			bobPublicDSA = KeyIO.readKey(keyring, "bob", KeyIO.Type.PUBLIC_DSA);
 		} catch (IOException e) {
 			System.err.println("Error reading keys from file");
 			if (m != Mode.PLAINTEXT) {
 				System.exit(0);
 			}
 		}
+		boolean ecdh = options.get("handshake", "rsa").equalsIgnoreCase("ecdh");
+		if (ecdh) {
+			try {
+				alicePrivateEd25519 = KeyIO.readKey(keyring, alias, KeyIO.Type.PRIVATE_ED25519);
+				bobPublicX25519 = KeyIO.readKey(keyring, "bob", KeyIO.Type.PUBLIC_X25519);
+			} catch (IOException e) {
+				System.err.println("Error reading X25519 keys from file");
+				System.exit(0);
+			}
+		}
+		
+		if (options.has("jmx")) {
+			ChannelMetrics.register("Alice", m);
+		}
+		if ((options.has("rekey") || options.has("rekeybytes"))
+				&& WireFormat.fromString(options.get("format", "json")) != WireFormat.BINARY) {
+			System.err.println("Rekeying needs format=binary");
+			System.exit(0);
+		}
+		
+		//Generate load instead of reading input if asked to
+		if (options.has("load")) {
+			final String handshakeName = name;
+			final boolean handshakeEcdh = ecdh;
+			try {
+				new LoadGenerator(host, port, m, WireFormat.fromString(options.get("format", "json")),
+						new LoadGenerator.HandshakeFactory() {
+					public AliceHandshake newHandshake() {
+						return Alice.newHandshake(handshakeName, handshakeEcdh);
+					}
+				}, options).run();
+			} catch (IOException e) {
+				System.err.println("Error setting up load: " + e.getMessage());
+			}
+			System.exit(0);
+		}
 		
 		//Start program
 		try {
-			Thread alice = new Alice(host, port, m);
+			Alice alice = new Alice(host, port, m);
+			alice.format = WireFormat.fromString(options.get("format", "json"));
+			if (options.has("batch")) {
+				alice.batchBytes = options.getInt("batchbytes", DEFAULT_BATCH_BYTES);
+				alice.batchDelay = options.getInt("batchdelay", (int)DEFAULT_BATCH_DELAY_MILLIS);
+			}
+			alice.ecdh = ecdh;
+			alice.name = name;
+			alice.streams = options.has("streams");
+			if (alice.streams && alice.format != WireFormat.BINARY) {
+				System.err.println("Streams need format=binary");
+				System.exit(0);
+			}
+			if (options.has("send")) {
+				alice.send = new File(options.get("send", ""));
+				if (alice.format != WireFormat.BINARY || !alice.send.isFile()) {
+					System.err.println("Sending a file needs format=binary and a readable file");
+					System.exit(0);
+				}
+			}
+			alice.rekeyFrames = options.getInt("rekey", 0);
+			alice.rekeyBytes = options.getInt("rekeybytes", 0);
+			if (options.has("resume")) {
+				alice.ticketLifetime = 1000L * options.getInt("ttl", DEFAULT_TICKET_LIFETIME_SECONDS);
+			}
 			alice.start();
 		} catch(IOException e) {
 			System.err.println("Error setting up client");
@@ -0,0 +1,265 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Alice's side of establishing the keys for a session with Bob
+ * Either transports fresh keys under Bob's public key, agrees them with an ephemeral X25519
+ * key against Bob's static X25519 key, or, when resumption is enabled and a ticket from an
+ * earlier session is available, resumes that session symmetrically
+ * Bob sends nothing back, so neither full handshake has forward secrecy: whoever obtains
+ * Bob's private RSA or X25519 key can derive the keys of every recorded session
+ */
+public class AliceHandshake {
+	//HKDF label for keys derived from X25519 agreement, shared with BobHandshake
+	public static final String KEY_AGREEMENT_LABEL = "A3 X25519 handshake";
+	
+	private final Key alicePrivateDSA;
+	private final Key bobPublicRSA;
+	private String name = "Alice";
+	
+	private Key alicePrivateEd25519;
+	private Key bobPublicX25519;
+	
+	private boolean resumption = false;
+	private File ticketFile;
+	private long ticketLifetime;
+	private ResumptionTicket ticket;
+	
+	/**
+	 * Constructor
+	 * @param alicePrivateDSA Alice's private key used to sign key transport
+	 * @param bobPublicRSA Bob's public key used to encrypt key transport
+	 */
+	public AliceHandshake(Key alicePrivateDSA, Key bobPublicRSA) {
+		this.alicePrivateDSA = alicePrivateDSA;
+		this.bobPublicRSA = bobPublicRSA;
+	}
+	
+	/**
+	 * Sets the name Alice signs handshakes as, which Bob uses to find her public keys
+	 * @param name The sender name
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Switches full handshakes from RSA key transport to X25519 key agreement signed with Ed25519
+	 * Both session keys then come from one exchange and the handshake is a single message
+	 * @param alicePrivateEd25519 Alice's private key used to sign the handshake
+	 * @param bobPublicX25519 Bob's static key agreement key
+	 */
+	public void enableEcdh(Key alicePrivateEd25519, Key bobPublicX25519) {
+		this.alicePrivateEd25519 = alicePrivateEd25519;
+		this.bobPublicX25519 = bobPublicX25519;
+	}
+	
+	/**
+	 * Enables session resumption
+	 * @param ticketFile The file in which to keep the ticket between runs, or null to keep it in memory
+	 * @param lifetime How long a ticket stays valid in milliseconds
+	 */
+	public void enableResumption(File ticketFile, long lifetime) {
+		resumption = true;
+		this.ticketFile = ticketFile;
+		ticketLifetime = lifetime;
+		if (ticketFile != null) {
+			ticket = ResumptionTicket.load(ticketFile);
+		}
+	}
+	
+	/**
+	 * Establishes the session keys
+	 * @param output The stream to Bob
+	 * @return The session keys
+	 * @throws IOException If there is an error sending
+	 * @throws GeneralSecurityException If the keys cannot be generated
+	 */
+	public SessionKeys perform(DataOutputStream output) throws IOException, GeneralSecurityException {
+		SessionKeys keys;
+		if (resumption && ticket != null && !ticket.isExpired()) {
+			keys = sendResumption(output);
+		}
+		else if (bobPublicX25519 != null) {
+			keys = sendKeyAgreement(output);
+		}
+		else {
+			SecretKey sessionKey = generateKey("AES", 128);
+			IvParameterSpec iv = generateIv();
+			sendSessionKey(sessionKey, iv, output, true);
+			SecretKey MACKey = generateKey("HmacSHA256", 256);
+			sendSessionKey(MACKey, iv, output, false);
+			keys = new SessionKeys(sessionKey, iv, MACKey);
+		}
+		if (resumption) {
+			ticket = ResumptionTicket.issue(keys, ticketLifetime);
+			if (ticketFile != null) {
+				ticket.save(ticketFile);
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * Asks Bob to resume the session of the current ticket. The ticket is used up either way
+	 * @param stream The stream to send over
+	 * @return The keys of the resumed session
+	 * @throws IOException If there is an error sending
+	 * @throws GeneralSecurityException If the proof cannot be computed
+	 */
+	private SessionKeys sendResumption(DataOutputStream stream) throws IOException, GeneralSecurityException {
+		System.out.println("Resuming previous session");
+		byte[] nonce = new byte[16];
+		new SecureRandom().nextBytes(nonce);
+		long timestamp = System.currentTimeMillis();
+		
+		JsonObject message = Json.createObjectBuilder()
+				.add("Resume", ticket.getId())
+				.add("Nonce", Base64.getEncoder().encodeToString(nonce))
+				.add("Timestamp", timestamp)
+				.add("Proof", Base64.getEncoder().encodeToString(ticket.proof(nonce, timestamp)))
+				.build();
+		SessionKeys keys = ticket.resume(nonce);
+		ticket = null;
+		if (ticketFile != null) {
+			ticketFile.delete();
+		}
+		stream.writeUTF(message.toString());
+		return keys;
+	}
+	
+	/**
+	 * Sends a signed ephemeral X25519 public key and derives the session keys from its
+	 * agreement with Bob's static key. Since Bob's side of the agreement is static, the
+	 * session keys are only as safe as his private X25519 key stays
+	 * @param stream The stream to send over
+	 * @return The session keys
+	 * @throws IOException If there is an error sending
+	 * @throws GeneralSecurityException If X25519 or Ed25519 are unavailable
+	 */
+	private SessionKeys sendKeyAgreement(DataOutputStream stream) throws IOException, GeneralSecurityException {
+		System.out.println("Sending key agreement");
+		KeyPair ephemeral = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+		KeyAgreement agreement = CryptoContext.keyAgreement("X25519");
+		agreement.init(ephemeral.getPrivate());
+		agreement.doPhase(bobPublicX25519, true);
+		byte[] shared = agreement.generateSecret();
+		CryptoContext.release(agreement);
+		byte[] ephemeralPublic = ephemeral.getPublic().getEncoded();
+		
+		JsonObject toSign = Json.createObjectBuilder()
+				.add("Recipient", "Bob")
+				.add("Sender", name)
+				.add("Timestamp", System.currentTimeMillis())
+				.add("Ephemeral", Base64.getEncoder().encodeToString(ephemeralPublic))
+				.build();
+		Signature ed25519 = CryptoContext.signature("Ed25519");
+		ed25519.initSign((PrivateKey)alicePrivateEd25519);
+		ed25519.update(toSign.toString().getBytes(StandardCharsets.UTF_8));
+		byte[] signature = ed25519.sign();
+		CryptoContext.release(ed25519);
+		
+		JsonObject message = Json.createObjectBuilder()
+				.add("Message", toSign)
+				.add("Signature", Base64.getEncoder().encodeToString(signature))
+				.build();
+		stream.writeUTF(message.toString());
+		return SessionKeys.fromKeyMaterial(Hkdf.derive(ephemeralPublic, shared, KEY_AGREEMENT_LABEL,
+				SessionKeys.KEY_MATERIAL_LENGTH));
+	}
+	
+	/**
+	 * Sends a session key and iv over stream
+	 * @param key The key to send
+	 * @param iv The iv to send with it
+	 * @param stream The stream to send it over
+	 * @param aes Whether this is the session key rather than the MAC key
+	 * @throws IOException If there is an error
+	 */
+	private void sendSessionKey(SecretKey key, IvParameterSpec iv, DataOutputStream stream, boolean aes)
+			throws IOException {
+		try {
+			System.out.format("Sending %s Key\n", (aes)?"Session":"MAC");
+			
+			JsonObjectBuilder toSign = Json.createObjectBuilder();
+			toSign.add("Recipient","Bob").add("Sender", name).add("Timestamp", System.currentTimeMillis());
+			
+			Cipher cipher = CryptoContext.cipher("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+			cipher.init(Cipher.ENCRYPT_MODE, bobPublicRSA);
+			
+			JsonObjectBuilder toEncrypt = Json.createObjectBuilder();
+			toEncrypt.add("Sender", name);
+			toEncrypt.add("Session Key", Base64.getEncoder().encodeToString(key.getEncoded()));
+			toEncrypt.add("IV", Base64.getEncoder().encodeToString(iv.getIV()));
+			
+			JsonObject jsontoEncrypt = toEncrypt.build();
+			
+			byte[] ciphertext = cipher.doFinal(jsontoEncrypt.toString().getBytes("UTF-8"));
+			CryptoContext.release(cipher);
+			toSign.add("Encrypted Key", Base64.getEncoder().encodeToString(ciphertext));
+			JsonObject jsontoSign = toSign.build();
+						
+			Signature dsa = CryptoContext.signature("SHA1withDSA");
+			dsa.initSign((PrivateKey)alicePrivateDSA);
+			dsa.update(jsontoSign.toString().getBytes("UTF-8"));
+			byte[] signature = dsa.sign();
+			CryptoContext.release(dsa);
+			
+			JsonObjectBuilder message = Json.createObjectBuilder();
+			message.add("Message", toSign);
+			message.add("Signature", Base64.getEncoder().encodeToString(signature));
+			JsonObject jsonmessage = message.build();
+			
+			stream.writeUTF(jsonmessage.toString());
+		} 
+		catch (GeneralSecurityException | UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Generates a symmetric key
+	 * @param algorithm The algorithm of the key
+	 * @param size The key size in bits
+	 * @return The key
+	 * @throws NoSuchAlgorithmException If the algorithm is unavailable
+	 */
+	private static SecretKey generateKey(String algorithm, int size) throws NoSuchAlgorithmException {
+		KeyGenerator keyGen = KeyGenerator.getInstance(algorithm);
+		keyGen.init(size);
+		return keyGen.generateKey();
+	}
+	
+	/**
+	 * Generates an initialization vector for AES
+	 * @return The IV
+	 * @throws NoSuchAlgorithmException If the random number generator is unavailable
+	 */
+	private static IvParameterSpec generateIv() throws NoSuchAlgorithmException {
+		SecureRandom randomSecureRandom = SecureRandom.getInstance("SHA1PRNG");
+		byte[] ivBytes = new byte[16];
+		randomSecureRandom.nextBytes(ivBytes);
+		return new IvParameterSpec(ivBytes);
+	}
+}
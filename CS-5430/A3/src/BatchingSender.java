@@ -0,0 +1,160 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends messages from a background thread, coalescing whatever is queued into a single batch
+ * which is written and flushed at once. A batch is sent as soon as it reaches maxBytes or its
+ * first message has waited maxDelay, so a human typing sees no delay while a pipe gets
+ * one frame, one MAC and one syscall per batch instead of per message
+ */
+public class BatchingSender implements Runnable {
+	//Messages which may be waiting before send blocks the caller
+	private static final int QUEUE_CAPACITY = 10000;
+	
+	//Marks the end of the queue
+	private static final Message END = new Message(0, "");
+	
+	//How often a caller blocked on a full queue checks whether the sending thread has failed
+	private static final long FAILURE_CHECK_MILLIS = 100;
+	
+	private final MessageCodec codec;
+	private final DataOutputStream output;
+	private final BlockingQueue<Message> queue;
+	private final int maxBytes;
+	private final long maxDelayNanos;
+	private final Thread thread;
+	private volatile IOException failure;
+	
+	/**
+	 * Constructor. Starts the sending thread
+	 * @param codec The codec to encode batches with
+	 * @param output A buffered stream to send over
+	 * @param maxBytes The approximate largest batch in UTF-8 bytes of message text
+	 * @param maxDelayMillis The longest a message waits for others to join its batch
+	 */
+	public BatchingSender(MessageCodec codec, DataOutputStream output, int maxBytes,
+			long maxDelayMillis) {
+		this.codec = codec;
+		this.output = output;
+		this.maxBytes = maxBytes;
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+		queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+		thread = new Thread(this);
+		thread.start();
+	}
+	
+	/**
+	 * Queues a message to be sent. Blocks if the sender has fallen too far behind
+	 * @param message The message
+	 * @throws IOException If an earlier batch could not be sent
+	 */
+	public void send(Message message) throws IOException {
+		try {
+			enqueue(message);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while queueing message", e);
+		}
+	}
+	
+	/**
+	 * Queues a message, waiting for room, unless the sending thread has failed. The sending
+	 * thread stops taking messages when it fails, so a caller waiting on a full queue would
+	 * otherwise wait forever. The failure is checked again once the message is queued, since
+	 * a message queued after the sending thread emptied the queue for the last time would
+	 * otherwise be lost without an error
+	 * @param message The message
+	 * @throws IOException If the sending thread has failed
+	 * @throws InterruptedException If interrupted while waiting for room
+	 */
+	private void enqueue(Message message) throws IOException, InterruptedException {
+		while (true) {
+			if (failure != null) {
+				throw failure;
+			}
+			if (queue.offer(message, FAILURE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (failure != null) {
+					queue.remove(message);
+					throw failure;
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return The number of messages waiting
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Sends everything still queued and stops the sending thread
+	 * @throws IOException If a batch could not be sent
+	 */
+	public void close() throws IOException {
+		try {
+			enqueue(END);
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while closing", e);
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+	
+	/**
+	 * Sending loop
+	 */
+	public void run() {
+		List<Message> batch = new ArrayList<>();
+		try {
+			boolean done = false;
+			while(!done) {
+				Message first = queue.take();
+				if (first == END) {
+					break;
+				}
+				batch.add(first);
+				int bytes = length(first);
+				long deadline = System.nanoTime() + maxDelayNanos;
+				while(bytes < maxBytes) {
+					Message next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					if (next == END) {
+						done = true;
+						break;
+					}
+					batch.add(next);
+					bytes += length(next);
+				}
+				codec.writeBatch(batch, output);
+				output.flush();
+				batch.clear();
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			failure = new IOException("Interrupted while sending", e);
+		}
+		//Nothing more will be sent, so free the queue for anyone waiting to add to it
+		queue.clear();
+	}
+
+	/**
+	 * @param message A message
+	 * @return The length of its text in bytes, which is what maxBytes counts
+	 */
+	private static int length(Message message) {
+		return message.getText().getBytes(StandardCharsets.UTF_8).length;
+	}
+}
@@ -0,0 +1,606 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * The binary wire format. Each message is sent as a single Frame with no text encoding overhead
+ * and no 64 KB limit. Encrypted frames carry a fresh random IV
+ *
+ * PLAINTEXT       body is the payload
+ * ENCRYPTION      body is the encryption of the payload
+ * MAC             body is the payload, tag is the MAC of header and body
+ * MAC_ENCRYPTION  body is the encryption of the payload, tag is the MAC of header and body
+ * AEAD            body is the AES-GCM encryption of the payload, tag is the GCM tag
+ *
+ * The payload of a DATA frame is the message, preceded by the message number in ENCRYPTION
+ * mode where nothing else protects the header. The payload of a BATCH frame is a sequence of
+ * records, each an int message number, an int length and that many bytes of message
+ *
+ * A STREAM frame carries one message of a logical stream. Its header number is the frame's
+ * position in the connection, unique across all streams so that IVs and nonces never repeat,
+ * and its payload is the int stream, the int message number within the stream and the message,
+ * preceded by the header number in ENCRYPTION mode. WINDOW_UPDATE frames go from Bob back to
+ * Alice to grant a stream more flow control credit. Their header number counts the updates,
+ * their body is the int stream and the int credit in bytes, and their tag is a MAC under a key
+ * derived from the session keys for the purpose, in every mode which has a MAC key
+ *
+ * CHUNK frames carry a file transfer, protected under keys derived for that transfer alone
+ * (see forTransfer) so that their numbers never collide with message numbers. Chunk 0 opens
+ * the transfer and each following chunk has the next number. The payload of a chunk is a flags
+ * byte and then its data, preceded by the header number in ENCRYPTION mode
+ *
+ * A REKEY frame says that every DATA, BATCH and STREAM frame from its header number on is
+ * protected under the next keys, derived from the current ones with HKDF. It is protected
+ * under the current keys and its payload is the header number again. Alice sends one once the
+ * limits set with setRekeyLimits are reached, so a long session bounds how much each key
+ * protects without another handshake. Bob keeps the previous keys for frames delayed past the
+ * switch. Window updates and transfers use keys derived from the keys of the handshake
+ */
+public class BinaryCodec extends MessageCodec {
+	private static final String CONTROL_LABEL = "A3 stream control";
+	private static final String TRANSFER_LABEL = "A3 file transfer";
+	private static final String REKEY_LABEL = "A3 rekey";
+	
+	private final Cipher cipher;
+	private final SecureRandom random;
+	private Mac controlMac;
+	private TransferReceiver transfers;
+	
+	//The keys agreed in the handshake, which keys replaces when rekeying
+	private final SessionKeys sessionKeys;
+	
+	//Sending side rekeying limits, 0 for none, and the use of the current keys
+	private long rekeyFrames = 0;
+	private long rekeyBytes = 0;
+	private long epochFrames = 0;
+	private long epochBytes = 0;
+	
+	//Receiving side, the first header number under the current keys and a codec for the ones before
+	private int epochStart = 0;
+	private BinaryCodec previous;
+	
+	/**
+	 * Constructor
+	 * @param mode The mode to run in
+	 * @param keys The keys for the session
+	 * @throws GeneralSecurityException If the algorithms are unavailable
+	 */
+	public BinaryCodec(Mode mode, SessionKeys keys) throws GeneralSecurityException {
+		super(mode, keys);
+		this.sessionKeys = keys;
+		//Initialized with the session key for every frame
+		cipher = CryptoContext.cipher("AES/CBC/PKCS5Padding");
+		random = CryptoContext.random();
+	}
+	
+	@Override
+	public synchronized void close() {
+		super.close();
+		CryptoContext.release(cipher);
+		CryptoContext.release(controlMac);
+		if (previous != null) {
+			previous.close();
+		}
+	}
+	
+	/**
+	 * Makes the sending side switch to fresh keys after so many frames or bytes under one key
+	 * @param frames The most DATA, BATCH and STREAM frames under one key, 0 for no limit
+	 * @param bytes The most bytes of those frames under one key, 0 for no limit
+	 */
+	public void setRekeyLimits(long frames, long bytes) {
+		this.rekeyFrames = frames;
+		this.rekeyBytes = bytes;
+	}
+	
+	@Override
+	public void writeMessage(int messageNumber, String message, DataOutputStream output)
+			throws IOException {
+		try {
+			rekeyIfDue(messageNumber, output);
+			send(encode(messageNumber, message), output);
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public void writeBatch(List<Message> messages, DataOutputStream output) throws IOException {
+		if (messages.size() == 1) {
+			writeMessage(messages.get(0).getNumber(), messages.get(0).getText(), output);
+			return;
+		}
+		try {
+			rekeyIfDue(messages.get(0).getNumber(), output);
+			send(encodeBatch(messages), output);
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public List<Message> readMessages(DataInputStream input) throws IOException {
+		Frame frame = Frame.read(input);
+		if (frame.getType() == Frame.CHUNK && transfers != null) {
+			transfers.receive(frame);
+			return Collections.emptyList();
+		}
+		return decode(frame);
+	}
+	
+	/**
+	 * Hands file transfer chunks read by readMessages to a receiver
+	 * @param transfers The receiver
+	 */
+	public void setTransferReceiver(TransferReceiver transfers) {
+		this.transfers = transfers;
+	}
+	
+	/**
+	 * Builds the frame for a message in a fashion specified by the current mode
+	 * @param messageNumber The number of the message
+	 * @param message The message
+	 * @return The frame
+	 * @throws GeneralSecurityException If encryption fails
+	 */
+	public Frame encode(int messageNumber, String message) throws GeneralSecurityException {
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		if (mode == Mode.ENCRYPTION) {
+			text = ByteBuffer.allocate(4 + text.length).putInt(messageNumber).put(text).array();
+		}
+		return protect(Frame.DATA, messageNumber, text);
+	}
+	
+	/**
+	 * Builds a single frame holding several messages, so that they cost one encryption
+	 * and one MAC between them
+	 * @param messages The messages in order
+	 * @return The frame
+	 * @throws GeneralSecurityException If encryption fails
+	 */
+	public Frame encodeBatch(List<Message> messages) throws GeneralSecurityException {
+		List<byte[]> texts = new ArrayList<>(messages.size());
+		int length = 0;
+		for (Message message : messages) {
+			byte[] text = message.getText().getBytes(StandardCharsets.UTF_8);
+			texts.add(text);
+			length += 8 + text.length;
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		for (int i = 0; i < messages.size(); i++) {
+			payload.putInt(messages.get(i).getNumber()).putInt(texts.get(i).length).put(texts.get(i));
+		}
+		return protect(Frame.BATCH, messages.get(0).getNumber(), payload.array());
+	}
+	
+	/**
+	 * Sends a message of a logical stream over output
+	 * @param sequence The position of the frame in the connection
+	 * @param message The message, numbered within its stream
+	 * @param output The output stream to send over
+	 * @throws IOException If there is an error
+	 */
+	public void writeStreamMessage(int sequence, Message message, DataOutputStream output)
+			throws IOException {
+		try {
+			rekeyIfDue(sequence, output);
+			send(encodeStream(sequence, message), output);
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Builds the frame for a message of a logical stream
+	 * @param sequence The position of the frame in the connection
+	 * @param message The message, numbered within its stream
+	 * @return The frame
+	 * @throws GeneralSecurityException If encryption fails
+	 */
+	public Frame encodeStream(int sequence, Message message) throws GeneralSecurityException {
+		byte[] text = message.getText().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer payload = ByteBuffer.allocate((mode == Mode.ENCRYPTION ? 12 : 8) + text.length);
+		if (mode == Mode.ENCRYPTION) {
+			payload.putInt(sequence);
+		}
+		payload.putInt(message.getStream()).putInt(message.getNumber()).put(text);
+		return protect(Frame.STREAM, sequence, payload.array());
+	}
+	
+	/**
+	 * Creates the codec for one file transfer, under keys derived for that transfer alone so
+	 * that its chunk numbers can serve as nonces. The codec must be closed after the transfer
+	 * @param transfer The number of the transfer within the connection, counting from 1
+	 * @return The codec
+	 * @throws GeneralSecurityException If the keys cannot be derived
+	 */
+	public BinaryCodec forTransfer(int transfer) throws GeneralSecurityException {
+		return new BinaryCodec(mode,
+				sessionKeys.derive(ByteBuffer.allocate(4).putInt(transfer).array(), TRANSFER_LABEL));
+	}
+	
+	/**
+	 * Builds the frame for one chunk of a file transfer
+	 * @param index The number of the chunk within the transfer
+	 * @param flags The chunk flags
+	 * @param data A buffer holding the chunk's data
+	 * @param length The number of bytes of data
+	 * @return The frame
+	 * @throws GeneralSecurityException If encryption fails
+	 */
+	public Frame encodeChunk(int index, byte flags, byte[] data, int length)
+			throws GeneralSecurityException {
+		ByteBuffer payload = ByteBuffer.allocate((mode == Mode.ENCRYPTION ? 5 : 1) + length);
+		if (mode == Mode.ENCRYPTION) {
+			payload.putInt(index);
+		}
+		payload.put(flags).put(data, 0, length);
+		return protect(Frame.CHUNK, index, payload.array());
+	}
+	
+	/**
+	 * Recovers the payload of a file transfer chunk. Unlike messages, a chunk whose MAC does
+	 * not match is rejected, since its data cannot be shown to be suspect once it is in a file
+	 * @param frame The received frame
+	 * @return The flags byte and data, or null if the chunk failed authentication
+	 */
+	public ByteBuffer decodeChunk(Frame frame) {
+		ByteBuffer buffer = unprotectStrictly(frame, "Transfer chunk");
+		if (buffer != null && mode == Mode.ENCRYPTION) {
+			if (buffer.remaining() < 4) {
+				return null;
+			}
+			checkHeaderNumber(frame, buffer.getInt());
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Recovers the payload of a frame, rejecting it rather than only warning if its MAC does
+	 * not match
+	 * @param frame The frame
+	 * @param kind What the frame is, for warnings
+	 * @return The payload, or null if it failed authentication or decryption
+	 */
+	private ByteBuffer unprotectStrictly(Frame frame, String kind) {
+		try {
+			byte[] payload;
+			if (mode == Mode.MAC || mode == Mode.MAC_ENCRYPTION) {
+				if (!MessageDigest.isEqual(frame.computeTag(mac), frame.getTag())) {
+					System.err.println(
+							"Warning: " + kind + " and its MAC do not match - likely the result of tampering");
+					ChannelMetrics.countMacFailure();
+					return null;
+				}
+				payload = (mode == Mode.MAC) ? frame.getBody() : decrypt(frame.getIv(), frame.getBody());
+			}
+			else {
+				payload = unprotect(frame);
+				if (payload == null) {
+					return null;
+				}
+			}
+			return ByteBuffer.wrap(payload);
+		} catch (GeneralSecurityException | RuntimeException e) {
+			System.err.println("Error decrypting " + kind.toLowerCase() + " - Likely the result of tampering");
+			ChannelMetrics.countDecryptFailure();
+			return null;
+		}
+	}
+	
+	/**
+	 * Switches to the next keys, telling the other side with a REKEY frame, if the current keys
+	 * have reached a limit
+	 * @param number The header number of the frame about to be sent, the first under the next keys
+	 * @param output The output stream to send over
+	 * @throws IOException If there is an error sending
+	 * @throws GeneralSecurityException If the next keys cannot be derived
+	 */
+	private void rekeyIfDue(int number, DataOutputStream output)
+			throws IOException, GeneralSecurityException {
+		if ((rekeyFrames > 0 && epochFrames >= rekeyFrames) || (rekeyBytes > 0 && epochBytes >= rekeyBytes)) {
+			protect(Frame.REKEY, number, ByteBuffer.allocate(4).putInt(number).array()).write(output);
+			rekey(keys.derive(null, REKEY_LABEL));
+			epochFrames = 0;
+			epochBytes = 0;
+		}
+	}
+	
+	/**
+	 * Writes a frame, counting it against the rekeying limits
+	 * @param frame The frame
+	 * @param output The output stream to send over
+	 * @throws IOException If there is an error sending
+	 */
+	private void send(Frame frame, DataOutputStream output) throws IOException {
+		frame.write(output);
+		epochFrames++;
+		epochBytes += frame.encodedLength();
+	}
+	
+	/**
+	 * Switches to the next keys for frames from the header number of a REKEY frame on, keeping
+	 * the current keys for frames before it which are still to arrive
+	 * @param frame The REKEY frame
+	 */
+	private void receiveRekey(Frame frame) {
+		ByteBuffer payload = unprotectStrictly(frame, "Rekey frame");
+		if (payload == null) {
+			return;
+		}
+		if (payload.remaining() != 4 || payload.getInt() != frame.getNumber()
+				|| frame.getNumber() <= epochStart) {
+			System.err.println("Warning: Invalid rekey frame ignored - likely the result of tampering");
+			return;
+		}
+		try {
+			if (previous != null) {
+				previous.close();
+			}
+			previous = new BinaryCodec(mode, keys);
+			rekey(keys.derive(null, REKEY_LABEL));
+			epochStart = frame.getNumber();
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Builds a frame granting a logical stream more flow control credit
+	 * @param sequence The number of this update, increasing for each one sent
+	 * @param stream The stream
+	 * @param credit The number of bytes of message the sender may now send in addition
+	 * @return The frame
+	 * @throws GeneralSecurityException If the control key cannot be derived
+	 */
+	public synchronized Frame encodeWindowUpdate(int sequence, int stream, int credit)
+			throws GeneralSecurityException {
+		byte[] body = ByteBuffer.allocate(8).putInt(stream).putInt(credit).array();
+		Frame frame = new Frame(Frame.WINDOW_UPDATE, sequence, null, body, null);
+		if (controlMac() != null) {
+			frame.setTag(frame.computeTag(controlMac));
+		}
+		return frame;
+	}
+	
+	/**
+	 * Checks that a window update came from the other end of this session
+	 * @param frame The received frame
+	 * @return Whether the frame is a well formed window update with a valid tag
+	 * @throws GeneralSecurityException If the control key cannot be derived
+	 */
+	public synchronized boolean verifyWindowUpdate(Frame frame) throws GeneralSecurityException {
+		if (frame.getType() != Frame.WINDOW_UPDATE || frame.getBody().length != 8) {
+			return false;
+		}
+		if (controlMac() == null) {
+			return true;
+		}
+		return MessageDigest.isEqual(frame.computeTag(controlMac), frame.getTag());
+	}
+	
+	/**
+	 * Recovers the messages from a frame in a fashion dictated by the current mode
+	 * @param frame The received frame
+	 * @return The messages, empty if they could not be recovered
+	 */
+	public List<Message> decode(Frame frame) {
+		if (frame.getType() == Frame.REKEY) {
+			receiveRekey(frame);
+			return Collections.emptyList();
+		}
+		if (previous != null && frame.getNumber() < epochStart) {
+			return previous.decode(frame);
+		}
+		if (frame.getType() != Frame.DATA && frame.getType() != Frame.BATCH
+				&& frame.getType() != Frame.STREAM) {
+			System.err.println("Received frame of unknown type - Likely the result of tampering");
+			ChannelMetrics.countDecryptFailure();
+			return Collections.emptyList();
+		}
+		try {
+			byte[] payload = unprotect(frame);
+			if (payload == null) {
+				return Collections.emptyList();
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(payload);
+			if (frame.getType() == Frame.DATA) {
+				int messageNumber = frame.getNumber();
+				if (mode == Mode.ENCRYPTION) {
+					messageNumber = buffer.getInt();
+					checkHeaderNumber(frame, messageNumber);
+				}
+				return Collections.singletonList(new Message(messageNumber, utf8(buffer, buffer.remaining())));
+			}
+			if (frame.getType() == Frame.STREAM) {
+				if (mode == Mode.ENCRYPTION) {
+					checkHeaderNumber(frame, buffer.getInt());
+				}
+				int stream = buffer.getInt();
+				int messageNumber = buffer.getInt();
+				return Collections.singletonList(
+						new Message(stream, messageNumber, utf8(buffer, buffer.remaining())));
+			}
+			List<Message> messages = new ArrayList<>();
+			while(buffer.hasRemaining()) {
+				int messageNumber = buffer.getInt();
+				messages.add(new Message(messageNumber, utf8(buffer, buffer.getInt())));
+			}
+			if (!messages.isEmpty()) {
+				checkHeaderNumber(frame, messages.get(0).getNumber());
+			}
+			return messages;
+		} catch (GeneralSecurityException | RuntimeException e) {
+			System.err.println("Error decrypting message - Likely the result of tampering");
+			ChannelMetrics.countDecryptFailure();
+			return Collections.emptyList();
+		}
+	}
+	
+	/**
+	 * Encrypts and/or authenticates a payload in a fashion specified by the current mode
+	 * @param type The frame type
+	 * @param messageNumber The message number for the header
+	 * @param payload The payload
+	 * @return The frame
+	 * @throws GeneralSecurityException If encryption fails
+	 */
+	private Frame protect(byte type, int messageNumber, byte[] payload) throws GeneralSecurityException {
+		Frame frame;
+		byte[] iv;
+		switch(mode) {
+		case ENCRYPTION:
+			iv = newIv();
+			frame = new Frame(type, messageNumber, iv, encrypt(iv, payload), null);
+			break;
+		case MAC:
+			frame = new Frame(type, messageNumber, null, payload, null);
+			frame.setTag(frame.computeTag(mac));
+			break;
+		case MAC_ENCRYPTION:
+			iv = newIv();
+			frame = new Frame(type, messageNumber, iv, encrypt(iv, payload), null);
+			frame.setTag(frame.computeTag(mac));
+			break;
+		case AEAD:
+			byte[] sealed = seal(messageNumber, payload);
+			int split = sealed.length - GCM_TAG_LENGTH;
+			frame = new Frame(type, messageNumber, null, Arrays.copyOfRange(sealed, 0, split),
+					Arrays.copyOfRange(sealed, split, sealed.length));
+			break;
+		default:
+			frame = new Frame(type, messageNumber, null, payload, null);
+		}
+		return frame;
+	}
+	
+	/**
+	 * Recovers the payload of a frame, printing a warning if it has been tampered with
+	 * @param frame The frame
+	 * @return The payload, or null if it failed authentication
+	 * @throws GeneralSecurityException If decryption fails
+	 */
+	private byte[] unprotect(Frame frame) throws GeneralSecurityException {
+		switch(mode) {
+		case MAC:
+			verifyTag(frame);
+			return frame.getBody();
+		case MAC_ENCRYPTION:
+			verifyTag(frame);
+			return decrypt(frame.getIv(), frame.getBody());
+		case ENCRYPTION:
+			return decrypt(frame.getIv(), frame.getBody());
+		case AEAD:
+			byte[] sealed = ByteBuffer.allocate(frame.getBody().length + frame.getTag().length)
+					.put(frame.getBody()).put(frame.getTag()).array();
+			try {
+				return open(frame.getNumber(), sealed);
+			} catch (AEADBadTagException e) {
+				System.err.println(
+						"Warning: Message failed authentication - likely the result of tampering");
+				ChannelMetrics.countMacFailure();
+				return null;
+			}
+		default:
+			return frame.getBody();
+		}
+	}
+	
+	/**
+	 * Prints a warning if the unprotected header number disagrees with the protected one
+	 * @param frame The frame
+	 * @param messageNumber The message number recovered from the payload
+	 */
+	private static void checkHeaderNumber(Frame frame, int messageNumber) {
+		if (messageNumber != frame.getNumber()) {
+			System.err.println(
+					"Warning: Frame header and message number do not match - likely the result of tampering");
+			ChannelMetrics.countMacFailure();
+		}
+	}
+	
+	/**
+	 * Reads length bytes of UTF-8 text from buffer
+	 * @param buffer The buffer
+	 * @param length The number of bytes
+	 * @return The text
+	 */
+	private static String utf8(ByteBuffer buffer, int length) {
+		String text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+				StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return text;
+	}
+	
+	/**
+	 * Derives the key for window updates the first time it is needed
+	 * @return The MAC for window updates, or null if the session has no MAC key
+	 * @throws GeneralSecurityException If the key cannot be derived
+	 */
+	private Mac controlMac() throws GeneralSecurityException {
+		if (controlMac == null && sessionKeys.getMACKey() != null) {
+			controlMac = CryptoContext.mac("HmacSHA256");
+			controlMac.init(sessionKeys.derive(null, CONTROL_LABEL).getMACKey());
+		}
+		return controlMac;
+	}
+	
+	/**
+	 * Verifies the tag of a frame and if it does not match prints a warning
+	 * @param frame The frame to verify
+	 */
+	private void verifyTag(Frame frame) {
+		if (!MessageDigest.isEqual(frame.computeTag(mac), frame.getTag())) {
+			System.err.println(
+					"Warning: Message and its MAC do not match - likely the result of tampering");
+			ChannelMetrics.countMacFailure();
+		}
+	}
+	
+	/**
+	 * @return A fresh random IV
+	 */
+	private byte[] newIv() {
+		byte[] iv = new byte[cipher.getBlockSize()];
+		random.nextBytes(iv);
+		return iv;
+	}
+	
+	/**
+	 * Encrypts plaintext under the session key
+	 * @param iv The IV to use
+	 * @param plaintext The plaintext
+	 * @return The ciphertext
+	 * @throws GeneralSecurityException If encryption fails
+	 */
+	private byte[] encrypt(byte[] iv, byte[] plaintext) throws GeneralSecurityException {
+		cipher.init(Cipher.ENCRYPT_MODE, keys.getSessionKey(), new IvParameterSpec(iv));
+		return cipher.doFinal(plaintext);
+	}
+	
+	/**
+	 * Decrypts ciphertext under the session key
+	 * @param iv The IV to use
+	 * @param ciphertext The ciphertext
+	 * @return The plaintext
+	 * @throws GeneralSecurityException If decryption fails
+	 */
+	private byte[] decrypt(byte[] iv, byte[] ciphertext) throws GeneralSecurityException {
+		cipher.init(Cipher.DECRYPT_MODE, keys.getSessionKey(), new IvParameterSpec(iv));
+		return cipher.doFinal(ciphertext);
+	}
+}
@@ -1,45 +1,21 @@
-import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.StringReader;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
 import java.security.Key;
-import java.security.KeyFactory;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Base64;
 import java.util.Scanner;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonReaderFactory;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Bob portion of demo crypto system
  * Reads input from the network and prints it out. In MAC mode detects modifications.
+ * In server mode accepts any number of concurrent sessions, each with its own keys.
  */
 public class Bob extends Thread {
 	private static final int DEFAULT_PORT = 4001;
-	private static final long MINUTE_IN_MILLIS = 60000;
+	private static final long STATS_INTERVAL_MILLIS = 1000;
+	private static final int DEFAULT_TICKET_CAPACITY = 100000;
+	private static final int DEFAULT_TICKET_LIFETIME_SECONDS = 3600;
 	
 	private static Key bobPublicRSA;
 	private static Key bobPrivateRSA;
@@ -47,13 +23,21 @@ public class Bob extends Thread {
 	private static Key bobPrivateDSA;
 	private static Key alicePublicRSA;
 	private static Key alicePublicDSA;
+	private static Key bobPrivateX25519;
+	private static Key alicePublicEd25519;
 	
 	private ServerSocket server;
 	private Mode mode;
-	private Key sessionKey;
-	private IvParameterSpec iv;
-	private SecretKey MACKey;
-	private int messageNumber = 0;
+	private WireFormat format = WireFormat.JSON;
+	private boolean multiSession;
+	private ResumptionCache cache;
+	private Keyring peers;
+	private int replayWindow = ReplayWindow.DEFAULT_SIZE;
+	private DeliveryQueue delivery;
+	private File received;
+	private int handshakeThreads = HandshakePool.defaultThreads();
+	private int handshakeQueue = HandshakePool.DEFAULT_QUEUE;
+	private int handshakesPerSource = HandshakePool.DEFAULT_PER_SOURCE;
 	
 	/**
 	 * Main method. Default port is 1000, default mode is plaintext
@@ -61,11 +45,30 @@ public class Bob extends Thread {
 	 * Bob
 	 * Bob <mode>
 	 * Bob <port> <mode>
+	 * Bob <port> <mode> server
+	 * Bob <port> <mode> format=<json|binary>
+	 * Bob <port> <mode> resume [ttl=<seconds>] [tickets=<count>]
+	 * Bob <port> <mode> keyring=<file>
+	 * Bob <port> <mode> window=<messages>
+	 * Bob <port> <mode> output=<file> [buffer=<messages>]
+	 * Bob <port> <mode> jmx
+	 * Bob <port> <mode> format=binary received=<directory>
+	 * Bob <port> <mode> server handshakes=<threads> handshakequeue=<count> persource=<count>
+	 * The server option keeps accepting connections and serves them concurrently
+	 * A server runs the public key operations of handshakes on handshakes threads, default half
+	 * the processors, and sheds handshakes once handshakequeue are waiting or persource are
+	 * waiting or running from one address, see HandshakePool
+	 * Received messages are printed, or appended to the output file, from a background thread
+	 * which takes them from a queue of up to buffer messages shared by every session
+	 * With jmx Bob's counters are published as an MXBean, see ChannelMetrics
+	 * Files sent by Alice are saved in the received directory, default received
+	 * With a keyring Bob's keys and the public keys of every sender come from the keyring file
 	 */
 	public static void main(String[] args) {
 		//Parse arguments
 		int port = DEFAULT_PORT;
 		Mode m = Mode.PLAINTEXT;
+		Options options = new Options(args, 2);
 		switch(args.length) {
 		case 0:
 			break;
@@ -80,13 +83,25 @@ public class Bob extends Thread {
 		System.out.format("Starting in %s mode\n", m.toString());
 		
 		//Load keys from filesystem
+		Keyring keyring = null;
+		if (options.has("keyring")) {
+			try {
+				keyring = new Keyring(new File(options.get("keyring", "keys.keyring")));
+			} catch (IOException e) {
+				System.err.println("Error reading keyring");
+				System.exit(0);
+			}
+		}
 		try {
-			bobPublicRSA = KeyIO.readKeyFromFile(new File("bobpublicRSA.key"), KeyIO.Type.PUBLIC_RSA);
-			bobPrivateRSA = KeyIO.readKeyFromFile(new File("bobprivateRSA.key"), KeyIO.Type.PRIVATE_RSA);
-			bobPublicDSA = KeyIO.readKeyFromFile(new File("bobpublicDSA.key"), KeyIO.Type.PUBLIC_DSA);
-			bobPrivateDSA = KeyIO.readKeyFromFile(new File("bobprivateDSA.key"), KeyIO.Type.PRIVATE_DSA);
-			alicePublicRSA = KeyIO.readKeyFromFile(new File("alicepublicRSA.key"), KeyIO.Type.PUBLIC_RSA);
-			alicePublicDSA = KeyIO.readKeyFromFile(new File("alicepublicDSA.key"), KeyIO.Type.PUBLIC_DSA);
+			bobPublicRSA = KeyIO.readKey(keyring, "bob", KeyIO.Type.PUBLIC_RSA);
+			bobPrivateRSA = KeyIO.readKey(keyring, "bob", KeyIO.Type.PRIVATE_RSA);
+			bobPublicDSA = KeyIO.readKey(keyring, "bob", KeyIO.Type.PUBLIC_DSA);
+			bobPrivateDSA = KeyIO.readKey(keyring, "bob", KeyIO.Type.PRIVATE_DSA);
+			//Senders' keys are looked up per handshake when there is a keyring
+			if (keyring == null) {
+				alicePublicRSA = KeyIO.readKey(keyring, "alice", KeyIO.Type.PUBLIC_RSA);
+				alicePublicDSA = KeyIO.readKey(keyring, "alice", KeyIO.Type.PUBLIC_DSA);
+			}
 		} catch (IOException e) {
 			System.err.println("Error reading keys from file");
 			if (m != Mode.PLAINTEXT) {
@@ -94,9 +109,46 @@ public class Bob extends Thread {
 			}
 		}
 		
+		//Keys for the X25519 handshake are optional
+		try {
+			bobPrivateX25519 = KeyIO.readKey(keyring, "bob", KeyIO.Type.PRIVATE_X25519);
+			if (keyring == null) {
+				alicePublicEd25519 = KeyIO.readKey(keyring, "alice", KeyIO.Type.PUBLIC_ED25519);
+			}
+		} catch (IOException e) {
+			bobPrivateX25519 = null;
+			System.out.println("No X25519 keys found, X25519 handshakes will be refused");
+		}
+		
 		try {
 			//Start server
 			Bob bob = new Bob(port,m);
+			bob.multiSession = options.has("server");
+			bob.format = WireFormat.fromString(options.get("format", "json"));
+			bob.peers = keyring;
+			bob.replayWindow = options.getInt("window", ReplayWindow.DEFAULT_SIZE);
+			DeliverySink sink = options.has("output")
+					? new FileSink(new File(options.get("output", "messages.txt")))
+					: new ConsoleSink();
+			final DeliveryQueue delivery = new DeliveryQueue(sink,
+					options.getInt("buffer", DeliveryQueue.DEFAULT_CAPACITY));
+			bob.delivery = delivery;
+			bob.received = new File(options.get("received", "received"));
+			bob.handshakeThreads = Math.max(1, options.getInt("handshakes", HandshakePool.defaultThreads()));
+			bob.handshakeQueue = Math.max(1, options.getInt("handshakequeue", HandshakePool.DEFAULT_QUEUE));
+			bob.handshakesPerSource = Math.max(1, options.getInt("persource", HandshakePool.DEFAULT_PER_SOURCE));
+			ChannelMetrics.addQueue("delivery", new ChannelMetrics.Gauge() {
+				public long value() {
+					return delivery.size();
+				}
+			});
+			if (options.has("jmx")) {
+				ChannelMetrics.register("Bob", m);
+			}
+			if (options.has("resume")) {
+				bob.cache = new ResumptionCache(options.getInt("tickets", DEFAULT_TICKET_CAPACITY),
+						1000L * options.getInt("ttl", DEFAULT_TICKET_LIFETIME_SECONDS));
+			}
 			bob.start();
 			
 			//Scan for user input to shut down system
@@ -112,6 +164,7 @@ public class Bob extends Thread {
 								"An error occurred trying to close the socket");
 					}
 					scanner.close();
+					bob.closeDelivery();
 					System.exit(0);
 				}
 			}
@@ -124,194 +177,81 @@ public class Bob extends Thread {
 	 * Starts the socket handler thread
 	 */
 	public void run() {
+		if (multiSession) {
+			serve();
+			return;
+		}
 		try {
 			//Wait for a connection
 			System.out.println("Waiting for client on port " + server.getLocalPort());
 			Socket connection = server.accept();
-			DataInputStream incoming = new DataInputStream(connection.getInputStream());
 			System.out.println("Connected");
-			
-			//Receive session and MAC keys
-			if (!receiveSessionKey(incoming, true)) {
-				System.err.println("Failed to receive session key\nShutting Down");
-				System.exit(0);
-			}
-			else {
-//				System.out.format("Session Key: %s\n", 
-//						Base64.getEncoder().encodeToString(sessionKey.getEncoded()));
-//				System.out.format("IV: %s\n", Base64.getEncoder().encodeToString(iv.getIV()));
-			}
-			if (!receiveSessionKey(incoming, false)) {
-				System.err.println("Failed to receive MAC key\nShutting Down");
-				System.exit(0);
-			}
-			
-			//Initalize MAC and cipher algorithms
-			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-			cipher.init(Cipher.DECRYPT_MODE, sessionKey, iv);
-			Mac mac =  Mac.getInstance("HmacSHA256");
-			mac.init(MACKey);
-			
-			//Main loop
-			System.out.println("Waiting for messages");
-			while(true) {
-				String message = incoming.readUTF();
-				receiveMessage(message, cipher, mac);
-			}
-		} catch (EOFException e) {
-			System.out.println("Other side closed connection\nShutting Down");
+			new BobSession(connection, mode, format, newHandshake(), null, null, replayWindow,
+					delivery, received).run();
+			closeDelivery();
+			System.out.println("Shutting Down");
 			System.exit(0);
-		} catch (InvalidKeyException e) {
-			System.err.println("Received session key is invalid\nShutting Down");
-			System.exit(0);
-		}
-		catch (IOException | NoSuchAlgorithmException | NoSuchPaddingException
-				| InvalidAlgorithmParameterException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
 	/**
-	 * Processes and displays a received message in a fashion dictated by the current mode
-	 * @param message The received message
-	 * @param cipher The cipher to use if applicable
-	 * @param digest The message digest to use if applicable
-	 * @return The new message number
+	 * Accepts connections until the server socket is closed, running each one as its own session
 	 */
-	private void receiveMessage(String message, Cipher cipher, Mac mac) {
+	private void serve() {
+		ServerStats stats = new ServerStats();
+		stats.startReporter(STATS_INTERVAL_MILLIS);
+		final HandshakePool handshakes = new HandshakePool(handshakeThreads, handshakeQueue,
+				handshakesPerSource, stats);
+		ChannelMetrics.addQueue("handshakes", new ChannelMetrics.Gauge() {
+			public long value() {
+				return handshakes.queued();
+			}
+		});
+		ExecutorService sessions = TaskThreads.newExecutor();
+		System.out.println("Waiting for clients on port " + server.getLocalPort());
 		try {
-			String numberedMessage = message;
-			String toDecrypt = message;
-			switch(mode) {
-			case PLAINTEXT:
-				break;
-			case MAC:
-				JsonObject msgPlusMAC = Json.createReader(new StringReader(message)).readObject();
-				numberedMessage = msgPlusMAC.getJsonObject("Numbered Message").toString();
-				verifyMAC(numberedMessage, msgPlusMAC.getString("MAC"), mac);
-				break;
-			case MAC_ENCRYPTION:
-				JsonObject encMsgPlusMAC = Json.createReader(new StringReader(message)).readObject();
-				toDecrypt = encMsgPlusMAC.getString("Encrypted Message");
-				verifyMAC(toDecrypt, encMsgPlusMAC.getString("MAC"), mac);
-			case ENCRYPTION:
-				byte[] ciphertext = null;
-				try {
-					ciphertext = Base64.getDecoder().decode(toDecrypt);
-				} catch (IllegalArgumentException e) {
-					System.err.println("Received non Base64 encoded message - Likely the result of tampering");
-					return;
-				}
-				numberedMessage = new String(cipher.doFinal(ciphertext),StandardCharsets.UTF_8);
+			while(true) {
+				Socket connection = server.accept();
+				connection.setTcpNoDelay(true);
+				sessions.execute(new BobSession(connection, mode, format, newHandshake(), handshakes,
+						stats, replayWindow, delivery, received));
+			}
+		} catch (IOException e) {
+			if (!server.isClosed()) {
+				e.printStackTrace();
 			}
-			JsonObject parsedMessage = Json.createReader(new StringReader(numberedMessage)).readObject();
-			updateMessageNumber(parsedMessage.getInt("Message Number"));
-			System.out.println(parsedMessage.getString("Message"));
-		} catch (IllegalBlockSizeException | BadPaddingException e) {
-			System.err.println("Error decrypting message - Likely the result of tampering");
+		} finally {
+			sessions.shutdown();
+			handshakes.shutdown();
 		}
 	}
 	
 	/**
-	 * Verifies that the MAC of message matches the given MAC and if not prints a warning
-	 * @param message The message to verify
-	 * @param MAC The received MAC for this message
-	 * @param digest The Message Digest to use
+	 * Delivers every message still queued and closes the output
 	 */
-	private void verifyMAC(String message, String MAC, Mac mac) {
-		String newMAC = Base64.getEncoder().encodeToString(
-				mac.doFinal(message.getBytes(StandardCharsets.UTF_8)));
-		if (!newMAC.equals(MAC)) {
-			System.err.println(
-					"Warning: Message and its MAC do not match - likely the result of tampering");
+	private void closeDelivery() {
+		try {
+			delivery.close();
+		} catch (IOException e) {
+			System.err.println("Error delivering messages: " + e.getMessage());
 		}
 	}
 	
 	/**
-	 * Updates the message number to received number if appropriate, otherwise prints a warning
-	 * @param receivedNumber The number of the received message
+	 * Creates Bob's side of the handshake for a new session
+	 * @return The handshake
 	 */
-	private void updateMessageNumber(int receivedNumber) {
-		if (receivedNumber == messageNumber + 1) {
-			messageNumber = receivedNumber;
-		}
-		else if (receivedNumber > messageNumber) {
-			messageNumber = receivedNumber;
-			System.err.println(
-					"Warning Message number increased by more than one - messages have likely been dropped");
-		}
-		else  {
-			System.err.println(
-					"Warning: Message received out of order - likely the result of a replay attack");
+	private BobHandshake newHandshake() {
+		BobHandshake handshake = new BobHandshake(bobPrivateRSA, alicePublicDSA, cache);
+		if (bobPrivateX25519 != null && (alicePublicEd25519 != null || peers != null)) {
+			handshake.enableEcdh(bobPrivateX25519, alicePublicEd25519);
 		}
-	}
-
-	/**
-	 * Receives a session key
-	 * @param stream The stream to receive over
-	 * @return Whether the operation succeeded
-	 * @throws IOException If an error occurs
-	 */
-	public boolean receiveSessionKey(DataInputStream stream, boolean aes) throws IOException {
-		try {
-			System.out.format("Waiting for %s key\n",(aes)?"session":"MAC");
-			String signedMessage = stream.readUTF();
-			long receivedTimestamp = System.currentTimeMillis();
-			System.out.println("Received key transport message");
-			
-			JsonObject signedMessageObject = Json.createReader(new StringReader(signedMessage)).readObject();
-			String signature = signedMessageObject.getString("Signature");
-			JsonObject message = signedMessageObject.getJsonObject("Message");
-		
-			Signature dsa = Signature.getInstance("SHA1withDSA");
-			dsa.initVerify((PublicKey) alicePublicDSA);
-			dsa.update(message.toString().getBytes("UTF-8"));
-			boolean verifies = dsa.verify(Base64.getDecoder().decode(signature.getBytes("UTF-8")));
-			if (!verifies) {
-				System.err.println("Key transport signature did not verify");
-				return false;
-			}
-			
-			String recipient = message.getString("Recipient");
-			long sentTimestamp = message.getJsonNumber("Timestamp").longValue();
-			byte[] ciphertext = Base64.getDecoder().decode(
-					message.getString("Encrypted Key").getBytes("UTF-8"));
-			
-			if (!recipient.equals("Bob")) {
-				System.err.println("Key transport recipient incorrect");
-				return false;
-			}
-			else if (receivedTimestamp - MINUTE_IN_MILLIS  > sentTimestamp) {
-				System.err.println("Key transport timestamp too old");
-				return false;
-			}
-			
-			Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
-			cipher.init(Cipher.DECRYPT_MODE, bobPrivateRSA);
-			String plaintext = new String(cipher.doFinal(ciphertext),StandardCharsets.UTF_8);
-			
-			JsonObject encryptedKey = Json.createReader(new StringReader(plaintext)).readObject();
-			
-			if (!encryptedKey.getString("Sender").equals("Alice")) {
-				System.err.println("Key transport sender incorrect");
-				return false;
-			}
-			byte[] key = Base64.getDecoder().decode(encryptedKey.getString("Session Key"));
-			if (aes) {
-				sessionKey = new SecretKeySpec(key,0,key.length,"AES");
-				iv = new IvParameterSpec(Base64.getDecoder().decode(encryptedKey.getString("IV")));
-			}
-			else {
-				MACKey = new SecretKeySpec(key,0,key.length,"HmacSHA256");
-			}
-			
-		} catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException 
-				| NoSuchPaddingException | IllegalBlockSizeException | BadPaddingException e) {
-			e.printStackTrace();
+		if (peers != null) {
+			handshake.setPeers(peers);
 		}
-		
-		System.out.format("Successfully received %s key\n",(aes)?"session":"MAC");
-		return true;
+		return handshake;
 	}
 	
 	/**
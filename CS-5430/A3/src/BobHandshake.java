@@ -0,0 +1,347 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * Bob's side of establishing the keys for one session with Alice
+ * Accepts key transport under Bob's public key, X25519 key agreement against Bob's static
+ * key when Bob has one, or, when a resumption cache is available, a request to resume an
+ * earlier session, which skips the public key operations
+ * Bob sends nothing back during the handshake, so the agreement uses his static key and
+ * anyone holding his private keys can derive the keys of recorded sessions
+ * The messages are received and the keys established in separate steps, so that a server can
+ * read on the connection's thread and do the public key operations elsewhere, see HandshakePool
+ */
+public class BobHandshake {
+	private static final long MINUTE_IN_MILLIS = 60000;
+	
+	private final Key bobPrivateRSA;
+	private final Key alicePublicDSA;
+	private final ResumptionCache cache;
+	
+	private Key bobPrivateX25519;
+	private Key alicePublicEd25519;
+	private Keyring peers;
+	
+	private SecretKey sessionKey;
+	private IvParameterSpec iv;
+	private SecretKey MACKey;
+	private boolean resumed = false;
+	
+	//The handshake messages, set by receive
+	private String first;
+	private JsonObject firstObject;
+	private String second;
+	
+	/**
+	 * Constructor
+	 * @param bobPrivateRSA Bob's private key used for key transport
+	 * @param alicePublicDSA Alice's public key used to verify key transport
+	 * @param cache The resumption cache, or null if resumption is disabled
+	 */
+	public BobHandshake(Key bobPrivateRSA, Key alicePublicDSA, ResumptionCache cache) {
+		this.bobPrivateRSA = bobPrivateRSA;
+		this.alicePublicDSA = alicePublicDSA;
+		this.cache = cache;
+	}
+	
+	/**
+	 * Accepts X25519 key agreement signed with Ed25519 alongside RSA key transport
+	 * @param bobPrivateX25519 Bob's static key agreement key
+	 * @param alicePublicEd25519 Alice's public key used to verify the agreement
+	 */
+	public void enableEcdh(Key bobPrivateX25519, Key alicePublicEd25519) {
+		this.bobPrivateX25519 = bobPrivateX25519;
+		this.alicePublicEd25519 = alicePublicEd25519;
+	}
+	
+	/**
+	 * Looks up the public keys of senders in a keyring instead of only accepting Alice
+	 * @param peers The keyring holding the senders' public keys
+	 */
+	public void setPeers(Keyring peers) {
+		this.peers = peers;
+	}
+	
+	/**
+	 * Establishes the session keys
+	 * @param stream The stream from Alice
+	 * @return The session keys, or null if the handshake failed
+	 * @throws IOException If there is an error reading
+	 */
+	public SessionKeys perform(DataInputStream stream) throws IOException {
+		return receive(stream) ? establish() : null;
+	}
+	
+	/**
+	 * Reads the handshake messages, without verifying them
+	 * @param stream The stream from Alice
+	 * @return Whether the messages were well formed enough to tell what kind of handshake it is
+	 * @throws IOException If there is an error reading
+	 */
+	public boolean receive(DataInputStream stream) throws IOException {
+		System.out.println("Waiting for session key");
+		first = stream.readUTF();
+		try {
+			firstObject = Json.createReader(new StringReader(first)).readObject();
+			if (!firstObject.containsKey("Resume")
+					&& !firstObject.getJsonObject("Message").containsKey("Ephemeral")) {
+				System.out.println("Waiting for MAC key");
+				second = stream.readUTF();
+			}
+			return true;
+		} catch (RuntimeException e) {
+			System.err.println("Malformed handshake message");
+			return false;
+		}
+	}
+	
+	/**
+	 * Verifies the received handshake messages and establishes the session keys from them
+	 * @return The session keys, or null if the handshake failed
+	 */
+	public SessionKeys establish() {
+		SessionKeys keys;
+		try {
+			if (firstObject.containsKey("Resume")) {
+				keys = receiveResumption(firstObject);
+				if (keys == null) {
+					System.err.println("Failed to resume session");
+					return null;
+				}
+				resumed = true;
+			}
+			else if (firstObject.getJsonObject("Message").containsKey("Ephemeral")) {
+				keys = receiveKeyAgreement(firstObject);
+				if (keys == null) {
+					System.err.println("Failed to agree session keys");
+					return null;
+				}
+			}
+			else {
+				if (!receiveSessionKey(first, true)) {
+					System.err.println("Failed to receive session key");
+					return null;
+				}
+				if (!receiveSessionKey(second, false)) {
+					System.err.println("Failed to receive MAC key");
+					return null;
+				}
+				keys = new SessionKeys(sessionKey, iv, MACKey);
+			}
+			if (cache != null) {
+				cache.store(keys);
+			}
+			return keys;
+		} catch (GeneralSecurityException | IOException | RuntimeException e) {
+			System.err.println("Malformed handshake message");
+			return null;
+		}
+	}
+	
+	/**
+	 * @return Whether the last handshake resumed an earlier session
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+	
+	/**
+	 * Checks a resumption request against the cache and derives the resumed keys
+	 * @param request The request
+	 * @return The keys of the resumed session, or null if the request is not valid
+	 * @throws GeneralSecurityException If the proof cannot be computed
+	 */
+	private SessionKeys receiveResumption(JsonObject request) throws GeneralSecurityException {
+		System.out.println("Received resumption request");
+		if (cache == null) {
+			System.err.println("Session resumption is not enabled");
+			return null;
+		}
+		long receivedTimestamp = System.currentTimeMillis();
+		long sentTimestamp = request.getJsonNumber("Timestamp").longValue();
+		if (receivedTimestamp - MINUTE_IN_MILLIS > sentTimestamp) {
+			System.err.println("Resumption timestamp too old");
+			return null;
+		}
+		String id = request.getString("Resume");
+		ResumptionTicket ticket = cache.find(id);
+		if (ticket == null) {
+			System.err.println("Resumption ticket unknown or expired");
+			return null;
+		}
+		byte[] nonce = Base64.getDecoder().decode(request.getString("Nonce"));
+		byte[] proof = Base64.getDecoder().decode(request.getString("Proof"));
+		if (!MessageDigest.isEqual(ticket.proof(nonce, sentTimestamp), proof)) {
+			System.err.println("Resumption proof did not verify");
+			return null;
+		}
+		//Only now that the proof has verified is the ticket used up
+		if (!cache.redeem(id, ticket)) {
+			System.err.println("Resumption ticket already used");
+			return null;
+		}
+		System.out.println("Successfully resumed session");
+		return ticket.resume(nonce);
+	}
+	
+	/**
+	 * Verifies a signed X25519 key agreement message and derives the session keys from it
+	 * @param signedMessage The key agreement message
+	 * @return The session keys, or null if the message is not valid
+	 * @throws GeneralSecurityException If X25519 or Ed25519 are unavailable
+	 */
+	private SessionKeys receiveKeyAgreement(JsonObject signedMessage) throws GeneralSecurityException {
+		long receivedTimestamp = System.currentTimeMillis();
+		System.out.println("Received key agreement message");
+		if (bobPrivateX25519 == null) {
+			System.err.println("X25519 key agreement is not enabled");
+			return null;
+		}
+		JsonObject message = signedMessage.getJsonObject("Message");
+		Key senderKey = senderKey(message.getString("Sender"), KeyIO.Type.PUBLIC_ED25519, alicePublicEd25519);
+		if (senderKey == null) {
+			System.err.println("Key agreement sender unknown");
+			return null;
+		}
+		Signature ed25519 = CryptoContext.signature("Ed25519");
+		ed25519.initVerify((PublicKey)senderKey);
+		ed25519.update(message.toString().getBytes(StandardCharsets.UTF_8));
+		boolean verifies = ed25519.verify(Base64.getDecoder().decode(signedMessage.getString("Signature")));
+		CryptoContext.release(ed25519);
+		if (!verifies) {
+			System.err.println("Key agreement signature did not verify");
+			return null;
+		}
+		if (!message.getString("Recipient").equals("Bob")) {
+			System.err.println("Key agreement recipient incorrect");
+			return null;
+		}
+		else if (receivedTimestamp - MINUTE_IN_MILLIS > message.getJsonNumber("Timestamp").longValue()) {
+			System.err.println("Key agreement timestamp too old");
+			return null;
+		}
+		
+		byte[] ephemeralPublic = Base64.getDecoder().decode(message.getString("Ephemeral"));
+		KeyFactory factory = CryptoContext.keyFactory("X25519");
+		PublicKey ephemeral = factory.generatePublic(new X509EncodedKeySpec(ephemeralPublic));
+		CryptoContext.release(factory);
+		KeyAgreement agreement = CryptoContext.keyAgreement("X25519");
+		agreement.init(bobPrivateX25519);
+		agreement.doPhase(ephemeral, true);
+		byte[] shared = agreement.generateSecret();
+		CryptoContext.release(agreement);
+		System.out.println("Successfully agreed session keys");
+		return SessionKeys.fromKeyMaterial(Hkdf.derive(ephemeralPublic, shared,
+				AliceHandshake.KEY_AGREEMENT_LABEL, SessionKeys.KEY_MATERIAL_LENGTH));
+	}
+	
+	/**
+	 * Receives a session key
+	 * @param signedMessage The key transport message
+	 * @param aes Whether this is the session key rather than the MAC key
+	 * @return Whether the operation succeeded
+	 * @throws IOException If an error occurs
+	 */
+	private boolean receiveSessionKey(String signedMessage, boolean aes) throws IOException {
+		Signature dsa = null;
+		Cipher cipher = null;
+		try {
+			long receivedTimestamp = System.currentTimeMillis();
+			System.out.println("Received key transport message");
+			
+			JsonObject signedMessageObject = Json.createReader(new StringReader(signedMessage)).readObject();
+			String signature = signedMessageObject.getString("Signature");
+			JsonObject message = signedMessageObject.getJsonObject("Message");
+			//Older clients do not name themselves outside the encrypted key
+			String sender = message.containsKey("Sender") ? message.getString("Sender") : "Alice";
+			Key senderKey = senderKey(sender, KeyIO.Type.PUBLIC_DSA, alicePublicDSA);
+			if (senderKey == null) {
+				System.err.println("Key transport sender unknown");
+				return false;
+			}
+		
+			dsa = CryptoContext.signature("SHA1withDSA");
+			dsa.initVerify((PublicKey) senderKey);
+			dsa.update(message.toString().getBytes("UTF-8"));
+			boolean verifies = dsa.verify(Base64.getDecoder().decode(signature.getBytes("UTF-8")));
+			if (!verifies) {
+				System.err.println("Key transport signature did not verify");
+				return false;
+			}
+			
+			String recipient = message.getString("Recipient");
+			long sentTimestamp = message.getJsonNumber("Timestamp").longValue();
+			byte[] ciphertext = Base64.getDecoder().decode(
+					message.getString("Encrypted Key").getBytes("UTF-8"));
+			
+			if (!recipient.equals("Bob")) {
+				System.err.println("Key transport recipient incorrect");
+				return false;
+			}
+			else if (receivedTimestamp - MINUTE_IN_MILLIS  > sentTimestamp) {
+				System.err.println("Key transport timestamp too old");
+				return false;
+			}
+			
+			cipher = CryptoContext.cipher("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+			cipher.init(Cipher.DECRYPT_MODE, bobPrivateRSA);
+			String plaintext = new String(cipher.doFinal(ciphertext),StandardCharsets.UTF_8);
+			
+			JsonObject encryptedKey = Json.createReader(new StringReader(plaintext)).readObject();
+			
+			if (!encryptedKey.getString("Sender").equals(sender)) {
+				System.err.println("Key transport sender incorrect");
+				return false;
+			}
+			byte[] key = Base64.getDecoder().decode(encryptedKey.getString("Session Key"));
+			if (aes) {
+				sessionKey = new SecretKeySpec(key,0,key.length,"AES");
+				iv = new IvParameterSpec(Base64.getDecoder().decode(encryptedKey.getString("IV")));
+			}
+			else {
+				MACKey = new SecretKeySpec(key,0,key.length,"HmacSHA256");
+			}
+			
+			System.out.format("Successfully received %s key\n",(aes)?"session":"MAC");
+			return true;
+		} catch (GeneralSecurityException e) {
+			System.err.println("Key transport could not be verified or decrypted: " + e.getMessage());
+			return false;
+		} finally {
+			CryptoContext.release(dsa);
+			CryptoContext.release(cipher);
+		}
+	}
+	
+	/**
+	 * Finds the public key to verify a sender's handshake with
+	 * @param sender The sender named in the handshake
+	 * @param type The type of key
+	 * @param aliceKey Alice's key, used when there is no keyring
+	 * @return The key, or null if the sender is unknown
+	 */
+	private Key senderKey(String sender, KeyIO.Type type, Key aliceKey) {
+		if (peers != null) {
+			return peers.get(sender, type);
+		}
+		return sender.equals("Alice") ? aliceKey : null;
+	}
+}
@@ -0,0 +1,177 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+
+/**
+ * A single connection from Alice to Bob
+ * Holds the key and message counter state for that connection so that one Bob process
+ * can serve many sessions at once. In the binary format messages on logical streams are
+ * handed to a StreamReceiver and file transfers to a TransferReceiver
+ */
+public class BobSession implements Runnable {
+	private final Socket connection;
+	private final Mode mode;
+	private final WireFormat format;
+	private final BobHandshake handshake;
+	private final HandshakePool handshakePool;
+	private final ServerStats stats;
+	private final DeliveryQueue delivery;
+	private final ReplayWindow replayWindow;
+	private final int replayWindowSize;
+	private final File received;
+	private StreamReceiver streams;
+	private TransferReceiver transfers;
+	private MessageCodec codec;
+
+	/**
+	 * Constructor
+	 * @param connection The accepted connection
+	 * @param mode The mode to run in
+	 * @param format The wire format for messages
+	 * @param handshake Bob's side of the handshake for this session
+	 * @param handshakePool The pool to establish the keys on, or null to establish them on this thread
+	 * @param stats Counters to update, or null
+	 * @param replayWindowSize How far out of order messages may arrive and still be accepted
+	 * @param delivery Where to deliver accepted messages
+	 * @param received The directory to save transferred files in
+	 */
+	public BobSession(Socket connection, Mode mode, WireFormat format, BobHandshake handshake,
+			HandshakePool handshakePool, ServerStats stats, int replayWindowSize, DeliveryQueue delivery,
+			File received) {
+		this.connection = connection;
+		this.mode = mode;
+		this.format = format;
+		this.handshake = handshake;
+		this.handshakePool = handshakePool;
+		this.stats = stats;
+		this.delivery = delivery;
+		this.replayWindow = new ReplayWindow(replayWindowSize);
+		this.replayWindowSize = replayWindowSize;
+		this.received = received;
+	}
+
+	/**
+	 * Runs the session until the other side closes the connection or an error occurs
+	 */
+	public void run() {
+		if (stats != null) {
+			stats.connectionOpened();
+		}
+		try {
+			DataInputStream incoming = new DataInputStream(
+					ChannelMetrics.counting(connection.getInputStream()));
+
+			//Receive session and MAC keys
+			long handshakeStart = System.nanoTime();
+			SessionKeys keys;
+			if (handshakePool == null) {
+				keys = handshake.perform(incoming);
+			}
+			else {
+				keys = handshake.receive(incoming)
+						? handshakePool.establish(handshake, connection.getInetAddress()) : null;
+			}
+			if (keys == null) {
+				return;
+			}
+			long handshakeNanos = System.nanoTime() - handshakeStart;
+			ChannelMetrics.handshakeCompleted(handshakeNanos);
+			if (stats != null) {
+				stats.handshakeCompleted(handshake.isResumed(), handshakeNanos);
+			}
+
+			//Initalize MAC and cipher algorithms
+			codec = MessageCodec.create(format, mode, keys, false);
+			if (codec instanceof BinaryCodec) {
+				streams = new StreamReceiver((BinaryCodec)codec,
+						new DataOutputStream(connection.getOutputStream()), delivery, replayWindowSize);
+				transfers = new TransferReceiver((BinaryCodec)codec, received);
+				((BinaryCodec)codec).setTransferReceiver(transfers);
+			}
+
+			//Main loop
+			System.out.println("Waiting for messages");
+			while(true) {
+				for (Message message : codec.readMessages(incoming)) {
+					receiveMessage(message);
+					ChannelMetrics.countMessage();
+					if (stats != null) {
+						stats.messageReceived();
+					}
+				}
+			}
+		} catch (EOFException e) {
+			System.out.println("Other side closed connection");
+		} catch (InvalidKeyException e) {
+			System.err.println("Received session key is invalid");
+		}
+		catch (IOException | GeneralSecurityException e) {
+			e.printStackTrace();
+		} finally {
+			if (streams != null) {
+				streams.close();
+			}
+			if (transfers != null) {
+				transfers.close();
+			}
+			if (codec != null) {
+				codec.close();
+			}
+			try {
+				connection.close();
+			} catch (IOException e) {}
+			if (stats != null) {
+				stats.connectionClosed();
+			}
+		}
+	}
+
+	/**
+	 * Checks the number of a received message and delivers it if it is not a replay
+	 * Blocks while the delivery queue is full, so nothing more is read until it has room
+	 * @param message The decoded message
+	 * @throws IOException If the message cannot be delivered
+	 */
+	private void receiveMessage(Message message) throws IOException {
+		if (message.getStream() != 0) {
+			streams.receive(message);
+		}
+		else if (checkMessageNumber(replayWindow, message.getNumber())) {
+			delivery.put(message);
+		}
+	}
+	
+	/**
+	 * Checks the number of a received message against a replay window, printing a warning
+	 * if messages seem to have been dropped or the message is a replay
+	 * @param replayWindow The window of the connection or stream the message arrived on
+	 * @param receivedNumber The number of the received message
+	 * @return Whether the message should be accepted
+	 */
+	static boolean checkMessageNumber(ReplayWindow replayWindow, int receivedNumber) {
+		switch(replayWindow.check(receivedNumber)) {
+		case SKIPPED:
+			System.err.println(
+					"Warning Message number increased by more than one - messages have likely been dropped");
+			ChannelMetrics.countGap();
+			return true;
+		case DUPLICATE:
+			System.err.println(
+					"Warning: Message received twice - likely the result of a replay attack");
+			ChannelMetrics.countReplay();
+			return false;
+		case STALE:
+			System.err.println(
+					"Warning: Message too far out of order - likely the result of a replay attack");
+			ChannelMetrics.countReplay();
+			return false;
+		default:
+			return true;
+		}
+	}
+}
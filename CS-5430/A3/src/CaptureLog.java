@@ -0,0 +1,347 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An append-only log of intercepted messages kept on disk in a directory
+ * Messages are written to memory-mapped segment files of SEGMENT_SIZE bytes. A separate
+ * memory-mapped index holds one fixed size entry per message, so any message can be found by
+ * its position, its message number or the time it was captured without reading the others.
+ * Only a few segments are mapped at once, and the log can be opened again after a restart.
+ * Finding messages by number uses CaptureNumbers, a memory-mapped hash table and chains of
+ * positions kept on disk beside the index, so the heap used does not grow with the log. A
+ * lookup follows the chain of its number from the first message with it, so it costs one
+ * step per earlier message with that number. Timestamps never decrease, even if the clock
+ * is set back, so messages can be found by time with a binary search.
+ *
+ * Index layout: magic "A3CL", int version, long count, int next connection, int unused,
+ * then per message
+ * long timestamp, int segment, int offset, int length, int number, int connection, int kind
+ */
+public class CaptureLog implements Closeable {
+	public static final int VERSION = 1;
+
+	//Kinds of record
+	public static final int HANDSHAKE = 0;
+	public static final int MESSAGE = 1;
+
+	//Large enough for the largest binary frame
+	private static final int SEGMENT_SIZE = 32 * 1024 * 1024;
+	private static final int MAPPED_SEGMENTS = 4;
+	private static final int MAGIC = 0x4133434c; //A3CL
+	private static final int HEADER_LENGTH = 24;
+	private static final int ENTRY_LENGTH = 32;
+	private static final int INITIAL_ENTRIES = 1 << 16;
+
+	private final File directory;
+	private final RandomAccessFile indexFile;
+	private MappedByteBuffer index;
+	private long count;
+	private int segment;
+	private int offset;
+	private MappedByteBuffer current;
+	private long lastTimestamp;
+
+	private final CaptureNumbers numbers;
+	private final Map<Integer,MappedByteBuffer> mapped =
+			new LinkedHashMap<Integer,MappedByteBuffer>(MAPPED_SEGMENTS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<Integer,MappedByteBuffer> eldest) {
+			return size() > MAPPED_SEGMENTS;
+		}
+	};
+
+	/**
+	 * One captured message
+	 */
+	public static class Record {
+		private final long position;
+		private final long timestamp;
+		private final int number;
+		private final int connection;
+		private final int kind;
+		private final byte[] bytes;
+
+		private Record(long position, long timestamp, int number, int connection, int kind, byte[] bytes) {
+			this.position = position;
+			this.timestamp = timestamp;
+			this.number = number;
+			this.connection = connection;
+			this.kind = kind;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * @return The position of the record in the log, starting at 0
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * @return When the message was captured in milliseconds since the epoch, or when the
+		 * message before it was if the clock had been set back
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @return The message number, or -1 if it was not visible
+		 */
+		public int getNumber() {
+			return number;
+		}
+
+		/**
+		 * @return The connection the message was captured on
+		 */
+		public int getConnection() {
+			return connection;
+		}
+
+		/**
+		 * @return HANDSHAKE or MESSAGE
+		 */
+		public int getKind() {
+			return kind;
+		}
+
+		/**
+		 * @return The message as it was on the wire
+		 */
+		public byte[] getBytes() {
+			return bytes;
+		}
+	}
+
+	/**
+	 * Opens a capture log, creating it if it does not exist
+	 * @param directory The directory holding the log
+	 * @throws IOException If the log cannot be opened or is not a capture log
+	 */
+	public CaptureLog(File directory) throws IOException {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create capture directory " + directory);
+		}
+		File indexPath = new File(directory, "index");
+		boolean exists = indexPath.length() > 0;
+		indexFile = new RandomAccessFile(indexPath, "rw");
+		mapIndex(Math.max(indexFile.length(), HEADER_LENGTH + (long)INITIAL_ENTRIES * ENTRY_LENGTH));
+		if (exists) {
+			if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+				throw new IOException("Not a capture log: " + directory);
+			}
+			count = index.getLong(8);
+		}
+		else {
+			index.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, 0).putInt(16, 0);
+		}
+		if (count > 0) {
+			int entry = entryOffset(count - 1);
+			segment = index.getInt(entry + 8);
+			offset = index.getInt(entry + 12) + index.getInt(entry + 16);
+			lastTimestamp = index.getLong(entry);
+		}
+		numbers = new CaptureNumbers(directory);
+		if (numbers.indexed() != count) {
+			//Left behind by a crash, or the log predates the number index
+			numbers.clear();
+			for (long position = 0; position < count; position++) {
+				indexNumber(position);
+			}
+		}
+		current = mapSegment(segment);
+	}
+
+	/**
+	 * Appends a message to the log
+	 * @param bytes The message as it was on the wire
+	 * @param number The message number, or -1 if it is not visible
+	 * @param connection The connection the message was captured on
+	 * @param kind HANDSHAKE or MESSAGE
+	 * @return The position of the message in the log
+	 * @throws IOException If the log cannot be extended
+	 */
+	public synchronized long append(byte[] bytes, int number, int connection, int kind) throws IOException {
+		if (bytes.length > SEGMENT_SIZE) {
+			throw new IOException("Message too large to capture");
+		}
+		if (offset + bytes.length > SEGMENT_SIZE) {
+			segment++;
+			offset = 0;
+			current = mapSegment(segment);
+		}
+		current.position(offset);
+		current.put(bytes);
+
+		if (HEADER_LENGTH + (count + 1) * ENTRY_LENGTH > index.capacity()) {
+			mapIndex(2L * index.capacity());
+		}
+		int entry = entryOffset(count);
+		//Never earlier than the last message, so that findTime can binary search
+		lastTimestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+		index.putLong(entry, lastTimestamp).putInt(entry + 8, segment)
+			.putInt(entry + 12, offset).putInt(entry + 16, bytes.length)
+			.putInt(entry + 20, number).putInt(entry + 24, connection).putInt(entry + 28, kind);
+		offset += bytes.length;
+		count++;
+		index.putLong(8, count);
+		indexNumber(count - 1);
+		return count - 1;
+	}
+
+	/**
+	 * Allocates a connection number, unique within this log even across restarts
+	 * @return The connection number
+	 */
+	public synchronized int newConnection() {
+		int connection = index.getInt(16);
+		index.putInt(16, connection + 1);
+		return connection;
+	}
+	
+	/**
+	 * @return The number of messages in the log
+	 */
+	public synchronized long size() {
+		return count;
+	}
+
+	/**
+	 * Reads a message
+	 * @param position The position of the message in the log
+	 * @return The message
+	 * @throws IOException If the segment cannot be read
+	 * @throws IndexOutOfBoundsException If there is no such message
+	 */
+	public synchronized Record get(long position) throws IOException {
+		if (position < 0 || position >= count) {
+			throw new IndexOutOfBoundsException("No captured message " + position);
+		}
+		int entry = entryOffset(position);
+		int recordSegment = index.getInt(entry + 8);
+		MappedByteBuffer buffer = (recordSegment == segment) ? current : mapSegment(recordSegment);
+		byte[] bytes = new byte[index.getInt(entry + 16)];
+		buffer.position(index.getInt(entry + 12));
+		buffer.get(bytes);
+		return new Record(position, index.getLong(entry), index.getInt(entry + 20),
+				index.getInt(entry + 24), index.getInt(entry + 28), bytes);
+	}
+
+	/**
+	 * Finds a message by number
+	 * @param number The message number
+	 * @param from The position to start searching at
+	 * @return The position of the first message at or after from with the number, or -1
+	 */
+	public synchronized long findNumber(int number, long from) {
+		return numbers.first(number, Math.max(from, 0));
+	}
+
+	/**
+	 * Finds the next record of a connection
+	 * @param connection The connection
+	 * @param from The position to start searching at
+	 * @return The position of the first record at or after from on the connection, or -1
+	 */
+	public synchronized long findConnection(int connection, long from) {
+		for (long position = Math.max(from, 0); position < count; position++) {
+			if (index.getInt(entryOffset(position) + 24) == connection) {
+				return position;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the first message captured at or after a time
+	 * @param timestamp The time in milliseconds since the epoch
+	 * @return The position of the message, or size() if there is none
+	 */
+	public synchronized long findTime(long timestamp) {
+		//Timestamps never decrease, since append clamps them, so binary search
+		long low = 0;
+		long high = count;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (index.getLong(entryOffset(middle)) < timestamp) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Forces the log to disk and closes it
+	 * @throws IOException If there is an error closing the index
+	 */
+	public synchronized void close() throws IOException {
+		index.force();
+		current.force();
+		indexFile.close();
+		numbers.close();
+	}
+
+	/**
+	 * Adds a record to the index by number if it is a message
+	 * @param position The position of the record, just after those already added
+	 * @throws IOException If the index by number cannot be extended
+	 */
+	private void indexNumber(long position) throws IOException {
+		int entry = entryOffset(position);
+		if (index.getInt(entry + 28) == MESSAGE) {
+			numbers.add(index.getInt(entry + 20), position);
+		}
+		else {
+			numbers.skip(position);
+		}
+	}
+
+	/**
+	 * @param position The position of a message
+	 * @return The offset of its index entry
+	 */
+	private static int entryOffset(long position) {
+		return (int)(HEADER_LENGTH + position * ENTRY_LENGTH);
+	}
+
+	/**
+	 * Maps the index, growing the file to size bytes if needed
+	 * @param size The size to map
+	 * @throws IOException If the index cannot be mapped
+	 */
+	private void mapIndex(long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Capture index is full");
+		}
+		index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * Maps a segment file, creating it if needed
+	 * @param number The segment number
+	 * @return The mapped segment
+	 * @throws IOException If the segment cannot be mapped
+	 */
+	private MappedByteBuffer mapSegment(int number) throws IOException {
+		MappedByteBuffer buffer = mapped.get(number);
+		if (buffer == null) {
+			File file = new File(directory, String.format("segment-%05d", number));
+			try (RandomAccessFile segmentFile = new RandomAccessFile(file, "rw")) {
+				buffer = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+			}
+			mapped.put(number, buffer);
+		}
+		return buffer;
+	}
+}
@@ -0,0 +1,235 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The index of a CaptureLog by message number, kept on disk next to the log's own index
+ * A memory-mapped hash table holds the first and last position of each number, and a
+ * memory-mapped array holds, for every position, the next position with the same number, so
+ * the positions of a number form a chain in increasing order. Nothing grows on the heap. The
+ * table is rebuilt into a file twice the size when it is half full. The header records how
+ * many positions have been indexed, so that if it does not match the log after a crash, or
+ * for a log written before the index existed, the log can index itself again.
+ *
+ * Table layout: magic "A3CN", int version, int slots, int used, long positions indexed,
+ * then per slot
+ * int number, int unused, long first position + 1, long last position + 1 (0 if empty)
+ * Chain layout: per position, long next position with the same number + 1 (0 if none)
+ */
+class CaptureNumbers {
+	private static final int VERSION = 1;
+	private static final int MAGIC = 0x4133434e; //A3CN
+	private static final int HEADER_LENGTH = 24;
+	private static final int SLOT_LENGTH = 24;
+	private static final int INITIAL_SLOTS = 1 << 12;
+	private static final int INITIAL_POSITIONS = 1 << 16;
+
+	private final File tableFile;
+	private final RandomAccessFile chainFile;
+	private MappedByteBuffer table;
+	private MappedByteBuffer chain;
+	private int slots;
+	private int used;
+
+	/**
+	 * Opens the number index in a log's directory, creating it if it does not exist
+	 * @param directory The directory holding the log
+	 * @throws IOException If the index cannot be opened or is not a number index
+	 */
+	CaptureNumbers(File directory) throws IOException {
+		tableFile = new File(directory, "numbers");
+		chainFile = new RandomAccessFile(new File(directory, "chains"), "rw");
+		mapChain(Math.max(chainFile.length(), (long)INITIAL_POSITIONS * 8));
+		if (tableFile.length() > 0) {
+			table = map(tableFile, tableFile.length());
+			if (table.getInt(0) != MAGIC || table.getInt(4) != VERSION) {
+				throw new IOException("Not a capture number index: " + tableFile);
+			}
+			slots = table.getInt(8);
+			used = table.getInt(12);
+		}
+		else {
+			table = newTable(tableFile, INITIAL_SLOTS);
+			slots = INITIAL_SLOTS;
+		}
+	}
+
+	/**
+	 * @return The number of positions indexed, those before it having been added in order
+	 */
+	long indexed() {
+		return table.getLong(16);
+	}
+
+	/**
+	 * Empties the index, so that the log can add its messages again from the start
+	 * @throws IOException If the table cannot be recreated
+	 */
+	void clear() throws IOException {
+		table = newTable(tableFile, INITIAL_SLOTS);
+		slots = INITIAL_SLOTS;
+		used = 0;
+	}
+
+	/**
+	 * Adds a message. Positions must be added in increasing order, starting from indexed()
+	 * @param number The message number
+	 * @param position The position of the message in the log
+	 * @throws IOException If the index cannot be extended
+	 */
+	void add(int number, long position) throws IOException {
+		if ((position + 1) * 8 > chain.capacity()) {
+			mapChain(Math.max(2L * chain.capacity(), (position + 1) * 8));
+		}
+		chain.putLong(chainOffset(position), 0);
+		int slot = find(table, slots, number);
+		long last = table.getLong(slot + 16);
+		if (last == 0) {
+			if (2 * (used + 1) > slots) {
+				grow();
+				slot = find(table, slots, number);
+			}
+			table.putInt(slot, number).putLong(slot + 8, position + 1);
+			used++;
+			table.putInt(12, used);
+		}
+		else {
+			chain.putLong(chainOffset(last - 1), position + 1);
+		}
+		table.putLong(slot + 16, position + 1);
+		table.putLong(16, position + 1);
+	}
+
+	/**
+	 * Records a position which is not a message, so that indexed() moves past it
+	 * @param position The position in the log
+	 */
+	void skip(long position) {
+		table.putLong(16, position + 1);
+	}
+
+	/**
+	 * Finds a message by number
+	 * @param number The message number
+	 * @param from The position to start searching at
+	 * @return The position of the first message at or after from with the number, or -1
+	 */
+	long first(int number, long from) {
+		int slot = find(table, slots, number);
+		if (table.getLong(slot + 16) - 1 < from) {
+			return -1;
+		}
+		long position = table.getLong(slot + 8) - 1;
+		while (position < from) {
+			position = chain.getLong(chainOffset(position)) - 1;
+		}
+		return position;
+	}
+
+	/**
+	 * Forces the index to disk and closes it
+	 * @throws IOException If there is an error closing the chain file
+	 */
+	void close() throws IOException {
+		table.force();
+		chain.force();
+		chainFile.close();
+	}
+
+	/**
+	 * @param table A table
+	 * @param slots Its number of slots
+	 * @param number A message number
+	 * @return The offset of the number's slot, or of the empty slot it would go in
+	 */
+	private static int find(MappedByteBuffer table, int slots, int number) {
+		int hash = number * 0x9E3779B9;
+		int slot = (hash ^ (hash >>> 16)) & (slots - 1);
+		while (true) {
+			int offset = HEADER_LENGTH + slot * SLOT_LENGTH;
+			if (table.getLong(offset + 8) == 0 || table.getInt(offset) == number) {
+				return offset;
+			}
+			slot = (slot + 1) & (slots - 1);
+		}
+	}
+
+	/**
+	 * Rebuilds the table at twice the size and swaps it in for the old one
+	 * @throws IOException If the new table cannot be written
+	 */
+	private void grow() throws IOException {
+		File grown = new File(tableFile.getPath() + ".new");
+		int grownSlots = 2 * slots;
+		MappedByteBuffer bigger = newTable(grown, grownSlots);
+		for (int i = 0; i < slots; i++) {
+			int offset = HEADER_LENGTH + i * SLOT_LENGTH;
+			if (table.getLong(offset + 8) != 0) {
+				int slot = find(bigger, grownSlots, table.getInt(offset));
+				bigger.putInt(slot, table.getInt(offset)).putLong(slot + 8, table.getLong(offset + 8))
+					.putLong(slot + 16, table.getLong(offset + 16));
+			}
+		}
+		bigger.putInt(12, used).putLong(16, table.getLong(16));
+		bigger.force();
+		Files.move(grown.toPath(), tableFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		table = bigger;
+		slots = grownSlots;
+	}
+
+	/**
+	 * Creates an empty table
+	 * @param file The file to create it in, replacing anything there
+	 * @param slots The number of slots, a power of two
+	 * @return The mapped table
+	 * @throws IOException If the table cannot be created
+	 */
+	private static MappedByteBuffer newTable(File file, int slots) throws IOException {
+		long size = HEADER_LENGTH + (long)slots * SLOT_LENGTH;
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Capture number index is full");
+		}
+		Files.deleteIfExists(file.toPath());
+		MappedByteBuffer table = map(file, size);
+		table.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, slots).putInt(12, 0).putLong(16, 0);
+		return table;
+	}
+
+	/**
+	 * @param position The position of a message
+	 * @return The offset of its link in the chain file
+	 */
+	private static int chainOffset(long position) {
+		return (int)(position * 8);
+	}
+
+	/**
+	 * Maps the chain file, growing it to size bytes if needed
+	 * @param size The size to map
+	 * @throws IOException If the chain file cannot be mapped
+	 */
+	private void mapChain(long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Capture number index is full");
+		}
+		chain = chainFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * Maps a file, growing it to size bytes if needed
+	 * @param file The file
+	 * @param size The size to map
+	 * @return The mapped file
+	 * @throws IOException If the file cannot be mapped
+	 */
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		try (RandomAccessFile mappedFile = new RandomAccessFile(file, "rw")) {
+			return mappedFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+}
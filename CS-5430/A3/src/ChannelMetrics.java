@@ -0,0 +1,312 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process wide counters for Alice, Bob and Mallory, published as an MXBean
+ * The code that prints a warning also counts it here, and the sessions count messages, bytes
+ * and handshake latencies. Register makes the counters visible to standard JVM tooling under
+ * A3:type=ChannelMetrics,role=<role>,mode=<mode>. Counting is a LongAdder increment, so it is
+ * done whether or not anything is watching, but starting the platform MBean server takes a
+ * few hundred milliseconds, so the programs only register when given the jmx option.
+ */
+public final class ChannelMetrics implements ChannelMetricsMXBean {
+	/**
+	 * The current size of a queue, read when the queue depths are asked for
+	 */
+	public interface Gauge {
+		long value();
+	}
+
+	//Handshake latency percentiles reported, as fractions and as names
+	private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9", "max"};
+
+	//Shortest interval rates are measured over
+	private static final long RATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final ChannelMetrics instance = new ChannelMetrics();
+
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder macFailures = new LongAdder();
+	private final LongAdder decryptFailures = new LongAdder();
+	private final LongAdder replays = new LongAdder();
+	private final LongAdder gaps = new LongAdder();
+	private final LongAdder handshakes = new LongAdder();
+	private final LongAdder handshakeNanos = new LongAdder();
+	private final LongAdder queuedHandshakes = new LongAdder();
+	private final LongAdder rejectedHandshakes = new LongAdder();
+	private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+	private final Map<String,Gauge> queues = new ConcurrentHashMap<>();
+	private volatile String role = "";
+	private volatile String mode = "";
+
+	//Rate sampling, guarded by this
+	private long lastSampleTime = System.nanoTime();
+	private long lastMessages = 0;
+	private long lastBytes = 0;
+	private double messageRate = 0;
+	private double byteRate = 0;
+
+	private ChannelMetrics() {}
+
+	/**
+	 * Publishes the counters on the platform MBean server. Prints an error and carries on
+	 * without them if they cannot be registered
+	 * @param role Alice, Bob or Mallory
+	 * @param mode The mode the process runs in
+	 */
+	public static void register(String role, Mode mode) {
+		instance.role = role;
+		instance.mode = mode.toString();
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(
+					"A3:type=ChannelMetrics,role=" + role + ",mode=" + mode.name().toLowerCase()));
+		} catch (JMException e) {
+			System.err.println("Could not register metrics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Records a message sent, received or relayed
+	 */
+	public static void countMessage() {
+		instance.messages.increment();
+	}
+
+	/**
+	 * Records a message whose MAC, authentication tag or header did not verify
+	 */
+	public static void countMacFailure() {
+		instance.macFailures.increment();
+	}
+
+	/**
+	 * Records a message which could not be decrypted or decoded
+	 */
+	public static void countDecryptFailure() {
+		instance.decryptFailures.increment();
+	}
+
+	/**
+	 * Records a message rejected as a replay
+	 */
+	public static void countReplay() {
+		instance.replays.increment();
+	}
+
+	/**
+	 * Records message numbers skipping ahead
+	 */
+	public static void countGap() {
+		instance.gaps.increment();
+	}
+
+	/**
+	 * Records a completed handshake
+	 * @param nanos How long the handshake took in nanoseconds
+	 */
+	public static void handshakeCompleted(long nanos) {
+		instance.handshakes.increment();
+		instance.handshakeNanos.add(nanos);
+		instance.handshakeLatency.record(nanos);
+	}
+
+	/**
+	 * Records a handshake handed to the handshake pool
+	 */
+	public static void countHandshakeQueued() {
+		instance.queuedHandshakes.increment();
+	}
+
+	/**
+	 * Records a handshake shed under overload
+	 */
+	public static void countHandshakeRejected() {
+		instance.rejectedHandshakes.increment();
+	}
+
+	/**
+	 * Adds a queue to the reported queue depths, replacing any of the same name
+	 * @param name The name to report it under
+	 * @param gauge Reads its size
+	 */
+	public static void addQueue(String name, Gauge gauge) {
+		instance.queues.put(name, gauge);
+	}
+
+	/**
+	 * Wraps a stream so that the bytes read from it are counted
+	 * @param in The stream from the network
+	 * @return The counting stream
+	 */
+	public static InputStream counting(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					instance.bytes.increment();
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				int read = super.read(buffer, offset, length);
+				if (read > 0) {
+					instance.bytes.add(read);
+				}
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * Wraps a stream so that the bytes written to it are counted
+	 * @param out The stream to the network
+	 * @return The counting stream
+	 */
+	public static OutputStream counting(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				instance.bytes.increment();
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException {
+				out.write(buffer, offset, length);
+				instance.bytes.add(length);
+			}
+		};
+	}
+
+	@Override
+	public String getRole() {
+		return role;
+	}
+
+	@Override
+	public String getMode() {
+		return mode;
+	}
+
+	@Override
+	public long getMessages() {
+		return messages.sum();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	@Override
+	public double getMessagesPerSecond() {
+		sample();
+		synchronized(this) {
+			return messageRate;
+		}
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		sample();
+		synchronized(this) {
+			return byteRate;
+		}
+	}
+
+	@Override
+	public long getMacFailures() {
+		return macFailures.sum();
+	}
+
+	@Override
+	public long getDecryptFailures() {
+		return decryptFailures.sum();
+	}
+
+	@Override
+	public long getReplays() {
+		return replays.sum();
+	}
+
+	@Override
+	public long getGaps() {
+		return gaps.sum();
+	}
+
+	@Override
+	public long getHandshakes() {
+		return handshakes.sum();
+	}
+
+	@Override
+	public double getMeanHandshakeMillis() {
+		long count = handshakes.sum();
+		return (count == 0) ? 0 : handshakeNanos.sum() / 1e6 / count;
+	}
+
+	@Override
+	public long getQueuedHandshakes() {
+		return queuedHandshakes.sum();
+	}
+
+	@Override
+	public long getRejectedHandshakes() {
+		return rejectedHandshakes.sum();
+	}
+
+	@Override
+	public Map<String,Double> getHandshakeLatencyPercentilesMillis() {
+		Map<String,Double> percentiles = new LinkedHashMap<>();
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			percentiles.put(PERCENTILE_NAMES[i], handshakeLatency.getPercentile(PERCENTILES[i]) / 1e3);
+		}
+		return percentiles;
+	}
+
+	@Override
+	public Map<String,Long> getQueueDepths() {
+		Map<String,Long> depths = new TreeMap<>();
+		for (Map.Entry<String,Gauge> queue : queues.entrySet()) {
+			depths.put(queue.getKey(), queue.getValue().value());
+		}
+		return depths;
+	}
+
+	/**
+	 * Recomputes the rates if a sampling interval has passed since they were last computed,
+	 * so that they stay meaningful however often and by however many clients they are read
+	 */
+	private synchronized void sample() {
+		long now = System.nanoTime();
+		if (now - lastSampleTime < RATE_INTERVAL_NANOS) {
+			return;
+		}
+		long currentMessages = messages.sum();
+		long currentBytes = bytes.sum();
+		double seconds = (now - lastSampleTime) / 1e9;
+		messageRate = (currentMessages - lastMessages) / seconds;
+		byteRate = (currentBytes - lastBytes) / seconds;
+		lastMessages = currentMessages;
+		lastBytes = currentBytes;
+		lastSampleTime = now;
+	}
+}
@@ -0,0 +1,88 @@
+import java.util.Map;
+
+/**
+ * Management interface of ChannelMetrics, as seen by jconsole, VisualVM or any JMX client
+ * Counts are since the process started. Rates are over the last second or so.
+ */
+public interface ChannelMetricsMXBean {
+	/**
+	 * @return Alice, Bob or Mallory
+	 */
+	String getRole();
+
+	/**
+	 * @return The mode the process is running in
+	 */
+	String getMode();
+
+	/**
+	 * @return The number of messages sent, received or relayed
+	 */
+	long getMessages();
+
+	/**
+	 * @return The number of bytes sent, received or relayed over the network
+	 */
+	long getBytes();
+
+	/**
+	 * @return Messages per second over the last sampling interval
+	 */
+	double getMessagesPerSecond();
+
+	/**
+	 * @return Bytes per second over the last sampling interval
+	 */
+	double getBytesPerSecond();
+
+	/**
+	 * @return The number of messages whose MAC, authentication tag or header did not verify
+	 */
+	long getMacFailures();
+
+	/**
+	 * @return The number of messages which could not be decrypted or decoded
+	 */
+	long getDecryptFailures();
+
+	/**
+	 * @return The number of messages rejected as replays or as too far out of order
+	 */
+	long getReplays();
+
+	/**
+	 * @return The number of times message numbers skipped ahead
+	 */
+	long getGaps();
+
+	/**
+	 * @return The number of completed handshakes
+	 */
+	long getHandshakes();
+
+	/**
+	 * @return The mean handshake latency in milliseconds, 0 if there have been none
+	 */
+	double getMeanHandshakeMillis();
+
+	/**
+	 * @return The number of handshakes handed to Bob's handshake pool
+	 */
+	long getQueuedHandshakes();
+
+	/**
+	 * @return The number of handshakes Bob shed because his handshake pool or a source's limit was full
+	 */
+	long getRejectedHandshakes();
+
+	/**
+	 * @return The p50, p90, p99, p99.9 and max handshake latencies in milliseconds, to within
+	 * 12.5%, all 0 if there have been none
+	 */
+	Map<String,Double> getHandshakeLatencyPercentilesMillis();
+
+	/**
+	 * @return The number of messages waiting in each of the process's queues, by name
+	 */
+	Map<String,Long> getQueueDepths();
+}
@@ -0,0 +1,23 @@
+import java.util.List;
+
+/**
+ * Delivers messages to standard output, one line each, with a single write per batch
+ */
+public class ConsoleSink implements DeliverySink {
+	private final StringBuilder buffer = new StringBuilder();
+
+	@Override
+	public void deliver(List<Message> messages) {
+		buffer.setLength(0);
+		for (Message message : messages) {
+			buffer.append(DeliverySink.format(message)).append(System.lineSeparator());
+		}
+		System.out.print(buffer);
+		System.out.flush();
+	}
+
+	@Override
+	public void close() {
+		System.out.flush();
+	}
+}
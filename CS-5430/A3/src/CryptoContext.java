@@ -0,0 +1,184 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+
+/**
+ * Shared pools of JCA engine objects
+ * Looking up a provider and building a Cipher, Mac, Signature, KeyAgreement or KeyFactory costs
+ * far more than re-keying one that already exists, and a server runs a handshake and builds a
+ * codec for every session. Engines which have been released are kept in a bounded queue for
+ * each algorithm, shared by every thread, and handed out again instead of calling getInstance.
+ * The pools are not per thread because sessions may run on a virtual thread each, which would
+ * start every session with an empty pool and throw its engines away when it ends.
+ *
+ * An engine must be initialized with its key every time it is acquired, since it still holds
+ * the state of its last use, and must not be used after it is released. Engines which are
+ * never released, for instance when an operation throws, are simply garbage collected.
+ * Counts of provider lookups and reuses are kept across all threads.
+ */
+public final class CryptoContext {
+	//Released engines kept per algorithm, enough for the sessions of a busy server to hand
+	//engines back and forth without falling back to lookups
+	private static final int POOL_LIMIT = 256;
+
+	private static final ConcurrentMap<String,Queue<Object>> pools = new ConcurrentHashMap<>();
+
+	//SecureRandom is thread safe, so these are only to spread contention. A fixed set, picked
+	//by thread, rather than one per thread, which would seed a new one for every virtual thread
+	private static final SecureRandom[] randoms = new SecureRandom[2 * Runtime.getRuntime().availableProcessors()];
+	static {
+		for (int i = 0; i < randoms.length; i++) {
+			randoms[i] = new SecureRandom();
+		}
+	}
+
+	private static final LongAdder acquired = new LongAdder();
+	private static final LongAdder reused = new LongAdder();
+
+	private CryptoContext() {}
+
+	/**
+	 * @param transformation The cipher transformation, e.g. AES/GCM/NoPadding
+	 * @return A cipher, to be initialized before use
+	 * @throws GeneralSecurityException If the transformation is unavailable
+	 */
+	public static Cipher cipher(String transformation) throws GeneralSecurityException {
+		Cipher cipher = (Cipher)take("Cipher/" + transformation);
+		return (cipher != null) ? cipher : Cipher.getInstance(transformation);
+	}
+
+	/**
+	 * @param algorithm The MAC algorithm, e.g. HmacSHA256
+	 * @return A MAC, to be initialized before use
+	 * @throws GeneralSecurityException If the algorithm is unavailable
+	 */
+	public static Mac mac(String algorithm) throws GeneralSecurityException {
+		Mac mac = (Mac)take("Mac/" + algorithm);
+		return (mac != null) ? mac : Mac.getInstance(algorithm);
+	}
+
+	/**
+	 * @param algorithm The signature algorithm, e.g. Ed25519
+	 * @return A signature engine, to be initialized for signing or verifying before use
+	 * @throws GeneralSecurityException If the algorithm is unavailable
+	 */
+	public static Signature signature(String algorithm) throws GeneralSecurityException {
+		Signature signature = (Signature)take("Signature/" + algorithm);
+		return (signature != null) ? signature : Signature.getInstance(algorithm);
+	}
+
+	/**
+	 * @param algorithm The key agreement algorithm, e.g. X25519
+	 * @return A key agreement, to be initialized before use
+	 * @throws GeneralSecurityException If the algorithm is unavailable
+	 */
+	public static KeyAgreement keyAgreement(String algorithm) throws GeneralSecurityException {
+		KeyAgreement agreement = (KeyAgreement)take("KeyAgreement/" + algorithm);
+		return (agreement != null) ? agreement : KeyAgreement.getInstance(algorithm);
+	}
+
+	/**
+	 * @param algorithm The key algorithm, e.g. RSA
+	 * @return A key factory
+	 * @throws GeneralSecurityException If the algorithm is unavailable
+	 */
+	public static KeyFactory keyFactory(String algorithm) throws GeneralSecurityException {
+		KeyFactory factory = (KeyFactory)take("KeyFactory/" + algorithm);
+		return (factory != null) ? factory : KeyFactory.getInstance(algorithm);
+	}
+
+	/**
+	 * @return A random number generator shared with some other threads, which need not be
+	 * released
+	 */
+	public static SecureRandom random() {
+		return randoms[(System.identityHashCode(Thread.currentThread()) & 0x7FFFFFFF) % randoms.length];
+	}
+
+	/**
+	 * Returns an engine to its pool, or drops it if the pool is full. Ignores null
+	 * @param engine An engine from one of the methods above, no longer in use
+	 */
+	public static void release(Object engine) {
+		String key;
+		if (engine instanceof Cipher) {
+			key = "Cipher/" + ((Cipher)engine).getAlgorithm();
+		}
+		else if (engine instanceof Mac) {
+			key = "Mac/" + ((Mac)engine).getAlgorithm();
+		}
+		else if (engine instanceof Signature) {
+			key = "Signature/" + ((Signature)engine).getAlgorithm();
+		}
+		else if (engine instanceof KeyAgreement) {
+			key = "KeyAgreement/" + ((KeyAgreement)engine).getAlgorithm();
+		}
+		else if (engine instanceof KeyFactory) {
+			key = "KeyFactory/" + ((KeyFactory)engine).getAlgorithm();
+		}
+		else {
+			return;
+		}
+		Queue<Object> pool = pools.get(key);
+		if (pool == null) {
+			pools.putIfAbsent(key, new ArrayBlockingQueue<Object>(POOL_LIMIT));
+			pool = pools.get(key);
+		}
+		pool.offer(engine);
+	}
+
+	/**
+	 * @return The number of engines handed out
+	 */
+	public static long getAcquired() {
+		return acquired.sum();
+	}
+
+	/**
+	 * @return The number of engines which needed a provider lookup
+	 */
+	public static long getLookups() {
+		return acquired.sum() - reused.sum();
+	}
+
+	/**
+	 * @return The fraction of engines handed out which were reused, 0 if there were none
+	 */
+	public static double getHitRate() {
+		long total = acquired.sum();
+		return (total == 0) ? 0 : reused.sum() / (double)total;
+	}
+
+	/**
+	 * @return A one line summary of the counts
+	 */
+	public static String summary() {
+		return String.format("crypto engines: %d acquired, %d provider lookups, %.1f%% reused",
+				getAcquired(), getLookups(), 100 * getHitRate());
+	}
+
+	/**
+	 * Takes an engine from its pool
+	 * @param key The kind of engine and its algorithm
+	 * @return The engine, or null if the pool is empty and a lookup is needed
+	 */
+	private static Object take(String key) {
+		acquired.increment();
+		Queue<Object> pool = pools.get(key);
+		Object engine = (pool == null) ? null : pool.poll();
+		if (engine != null) {
+			reused.increment();
+		}
+		return engine;
+	}
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands received messages to a DeliverySink from a background thread, so that a slow
+ * terminal, file or consumer does not hold up the threads reading and decrypting messages
+ * Messages wait in a bounded ring buffer shared by every session and are delivered in
+ * batches of whatever has built up, up to MAX_BATCH at a time. When the buffer is full, put
+ * blocks the session between messages, so no more is read from its socket until the sink
+ * catches up and TCP flow control slows the sender down.
+ */
+public class DeliveryQueue implements Runnable {
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	//Most messages handed to the sink at once
+	private static final int MAX_BATCH = 1024;
+
+	//Marks the end of the queue
+	private static final Message END = new Message(0, "");
+
+	private final DeliverySink sink;
+	private final BlockingQueue<Message> queue;
+	private final Thread thread;
+	private volatile IOException failure;
+
+	/**
+	 * Constructor. Starts the delivering thread
+	 * @param sink Where to deliver messages
+	 * @param capacity The most messages which may be waiting before put blocks
+	 */
+	public DeliveryQueue(DeliverySink sink, int capacity) {
+		this.sink = sink;
+		queue = new ArrayBlockingQueue<>(capacity);
+		thread = new Thread(this);
+		thread.start();
+	}
+
+	/**
+	 * Queues a message for delivery. Blocks while the queue is full. The failure is checked
+	 * again once the message is queued, since once the sink has failed the delivering thread
+	 * discards what it takes, and the message would otherwise be lost without an error
+	 * @param message The message
+	 * @throws IOException If the sink has failed or the wait is interrupted
+	 */
+	public void put(Message message) throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		try {
+			queue.put(message);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while queueing message", e);
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * @return The number of messages waiting
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Delivers everything still queued, stops the delivering thread and closes the sink
+	 * @throws IOException If the sink failed
+	 */
+	public void close() throws IOException {
+		try {
+			if (thread.isAlive()) {
+				queue.put(END);
+			}
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while closing", e);
+		}
+		sink.close();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Delivery loop
+	 */
+	public void run() {
+		List<Message> batch = new ArrayList<>(MAX_BATCH);
+		try {
+			while(true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				//Messages have no equals, so this finds END itself
+				int end = batch.indexOf(END);
+				boolean done = (end >= 0);
+				if (done) {
+					batch.subList(end, batch.size()).clear();
+				}
+				if (!batch.isEmpty()) {
+					sink.deliver(batch);
+				}
+				batch.clear();
+				if (done) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+			System.err.println("Error delivering messages: " + e.getMessage());
+			discard();
+		} catch (InterruptedException e) {
+			failure = new IOException("Interrupted while delivering", e);
+		}
+	}
+
+	/**
+	 * Takes and drops messages until close, once the sink has failed, so that sessions are
+	 * not left blocked on a full queue. put reports the failure to them
+	 */
+	private void discard() {
+		try {
+			while (queue.take() != END) {
+				//Dropped
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,28 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where Bob delivers the messages he receives
+ * A sink is given messages in batches from a single thread, so it can write each batch at
+ * once and need not be thread safe. Implementations other than ConsoleSink and FileSink can
+ * hand messages to other code in the same process.
+ */
+public interface DeliverySink extends Closeable {
+	/**
+	 * Delivers a batch of messages, in the order they were accepted
+	 * @param messages The messages
+	 * @throws IOException If the messages cannot be delivered
+	 */
+	void deliver(List<Message> messages) throws IOException;
+
+	/**
+	 * Formats a message the way Bob displays it, prefixed with its stream if it has one
+	 * @param message The message
+	 * @return The line to display, without a line separator
+	 */
+	static String format(Message message) {
+		return (message.getStream() == 0) ? message.getText()
+				: "[" + message.getStream() + "] " + message.getText();
+	}
+}
@@ -0,0 +1,41 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Appends messages to a file as UTF-8, one line each, flushing once per batch
+ */
+public class FileSink implements DeliverySink {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Writer writer;
+
+	/**
+	 * Constructor
+	 * @param file The file to append to, created if it does not exist
+	 * @throws IOException If the file cannot be opened
+	 */
+	public FileSink(File file) throws IOException {
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+				StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	@Override
+	public void deliver(List<Message> messages) throws IOException {
+		for (Message message : messages) {
+			writer.write(DeliverySink.format(message));
+			writer.write('\n');
+		}
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
@@ -0,0 +1,190 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.crypto.Mac;
+
+/**
+ * A length prefixed binary frame. All integers are big endian. The layout is
+ *
+ * int    length of everything after this field
+ * byte   version
+ * byte   type
+ * int    message number
+ * byte   IV length
+ * byte   tag length
+ * bytes  IV
+ * bytes  body (plaintext or ciphertext)
+ * bytes  tag
+ *
+ * The fields from version through the IV form the header, which is covered by the tag
+ */
+public class Frame {
+	public static final byte VERSION = 1;
+	
+	//Frame types
+	public static final byte DATA = 1;
+	public static final byte BATCH = 2;
+	public static final byte STREAM = 3;
+	public static final byte WINDOW_UPDATE = 4;
+	public static final byte CHUNK = 5;
+	public static final byte REKEY = 6;
+	
+	//Bytes from version through tag length
+	private static final int FIXED_HEADER_LENGTH = 8;
+	
+	//Largest frame we are willing to buffer
+	public static final int MAX_LENGTH = 16 * 1024 * 1024;
+	
+	private static final byte[] EMPTY = new byte[0];
+	
+	private final byte type;
+	private final int number;
+	private final byte[] iv;
+	private final byte[] body;
+	private byte[] tag;
+	
+	/**
+	 * Constructor
+	 * @param type The frame type
+	 * @param number The message number
+	 * @param iv The IV, or null if there is none
+	 * @param body The body
+	 * @param tag The authentication tag, or null if there is none
+	 */
+	public Frame(byte type, int number, byte[] iv, byte[] body, byte[] tag) {
+		this.type = type;
+		this.number = number;
+		this.iv = (iv == null) ? EMPTY : iv;
+		this.body = body;
+		this.tag = (tag == null) ? EMPTY : tag;
+	}
+	
+	/**
+	 * @return The frame type
+	 */
+	public byte getType() {
+		return type;
+	}
+	
+	/**
+	 * @return The message number
+	 */
+	public int getNumber() {
+		return number;
+	}
+	
+	/**
+	 * @return The IV, empty if there is none
+	 */
+	public byte[] getIv() {
+		return iv;
+	}
+	
+	/**
+	 * @return The body
+	 */
+	public byte[] getBody() {
+		return body;
+	}
+	
+	/**
+	 * @return The authentication tag, empty if there is none
+	 */
+	public byte[] getTag() {
+		return tag;
+	}
+	
+	/**
+	 * Sets the authentication tag
+	 * @param tag The tag
+	 */
+	public void setTag(byte[] tag) {
+		this.tag = tag;
+	}
+	
+	/**
+	 * @return The number of bytes this frame occupies on the wire
+	 */
+	public int encodedLength() {
+		return 4 + FIXED_HEADER_LENGTH + iv.length + body.length + tag.length;
+	}
+	
+	/**
+	 * Computes the tag of the header and body
+	 * @param mac An initialized MAC
+	 * @return The tag
+	 */
+	public byte[] computeTag(Mac mac) {
+		ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_LENGTH + iv.length);
+		putHeader(header, mac.getMacLength());
+		mac.update(header.array());
+		return mac.doFinal(body);
+	}
+	
+	/**
+	 * Writes the frame to a stream with a single write
+	 * @param output The stream to write to
+	 * @throws IOException If there is an error
+	 */
+	public void write(DataOutputStream output) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedLength());
+		buffer.putInt(encodedLength() - 4);
+		putHeader(buffer, tag.length);
+		buffer.put(body).put(tag);
+		output.write(buffer.array());
+	}
+	
+	/**
+	 * Reads a frame from a stream
+	 * @param input The stream to read from
+	 * @return The frame
+	 * @throws IOException If there is an error or the frame is malformed
+	 */
+	public static Frame read(DataInputStream input) throws IOException {
+		int length = input.readInt();
+		if (length < FIXED_HEADER_LENGTH || length > MAX_LENGTH) {
+			throw new IOException("Invalid frame length " + length);
+		}
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return parse(ByteBuffer.wrap(bytes));
+	}
+	
+	/**
+	 * Parses a frame without its length prefix
+	 * @param buffer The buffer holding the frame
+	 * @return The frame
+	 * @throws IOException If the frame is malformed
+	 */
+	public static Frame parse(ByteBuffer buffer) throws IOException {
+		byte version = buffer.get();
+		if (version != VERSION) {
+			throw new IOException("Unsupported frame version " + version);
+		}
+		byte type = buffer.get();
+		int number = buffer.getInt();
+		int ivLength = buffer.get() & 0xff;
+		int tagLength = buffer.get() & 0xff;
+		int bodyLength = buffer.remaining() - ivLength - tagLength;
+		if (bodyLength < 0) {
+			throw new IOException("Frame too short for its IV and tag");
+		}
+		byte[] iv = new byte[ivLength];
+		byte[] body = new byte[bodyLength];
+		byte[] tag = new byte[tagLength];
+		buffer.get(iv).get(body).get(tag);
+		return new Frame(type, number, iv, body, tag);
+	}
+	
+	/**
+	 * Puts the authenticated header fields into buffer
+	 * @param buffer The buffer to fill
+	 * @param tagLength The length of the tag which accompanies the header
+	 */
+	private void putHeader(ByteBuffer buffer, int tagLength) {
+		buffer.put(VERSION).put(type).putInt(number)
+			.put((byte)iv.length).put((byte)tagLength).put(iv);
+	}
+}
@@ -1,7 +1,11 @@
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import javax.crypto.*;
 import java.security.*;
 
@@ -33,7 +37,173 @@ public class Gen {
 		return pair;
 	}
 	
+	private static KeyPair generateKeys(String algorithm) {
+		try {
+			return KeyPairGenerator.getInstance(algorithm).genKeyPair();
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	/**
+	 * Creates a key pair generator with the key size used by the demo
+	 * @param algorithm RSA, DSA, Ed25519 or X25519
+	 * @return The generator
+	 * @throws GeneralSecurityException If the algorithm is unavailable
+	 */
+	private static KeyPairGenerator newGenerator(String algorithm) throws GeneralSecurityException {
+		if (algorithm.equals("RSA")) {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(2048);
+			return generator;
+		}
+		if (algorithm.equals("DSA")) {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("DSA","SUN");
+			generator.initialize(1024, SecureRandom.getInstance("SHA1PRNG","SUN"));
+			return generator;
+		}
+		return KeyPairGenerator.getInstance(algorithm);
+	}
+	
+	/**
+	 * Batch mode. Generates key pairs for every principal in a list in parallel and streams
+	 * them into one keyring. Call as
+	 * Gen batch principals=<file> [keyring=<file>] [algorithms=rsa,dsa|ec] [threads=<n>]
+	 * Gen batch count=<n> ...
+	 * The principals file has one name per line. count=<n> names the principals client1 to clientn.
+	 * algorithms is a comma separated list of rsa, dsa, ed25519 and x25519, where ec means
+	 * ed25519,x25519. The default is rsa,dsa
+	 * @param options The command line options
+	 */
+	private static void generateBatch(Options options) {
+		List<String> principals = new ArrayList<>();
+		try {
+			if (options.has("principals")) {
+				for (String line : Files.readAllLines(new File(options.get("principals", "")).toPath())) {
+					if (!line.trim().isEmpty()) {
+						principals.add(line.trim());
+					}
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Error reading principal list");
+			return;
+		}
+		for (int i = 1; i <= options.getInt("count", 0); i++) {
+			principals.add("client" + i);
+		}
+		if (principals.isEmpty()) {
+			System.err.println("No principals given, use principals=<file> or count=<n>");
+			return;
+		}
+		
+		List<String> algorithms = new ArrayList<>();
+		for (String algorithm : options.get("algorithms", "rsa,dsa").toLowerCase().split(",")) {
+			switch (algorithm.trim()) {
+			case "rsa": algorithms.add("RSA"); break;
+			case "dsa": algorithms.add("DSA"); break;
+			case "ed25519": algorithms.add("Ed25519"); break;
+			case "x25519": algorithms.add("X25519"); break;
+			case "ec": algorithms.add("Ed25519"); algorithms.add("X25519"); break;
+			default:
+				System.err.println("Unknown algorithm " + algorithm);
+				return;
+			}
+		}
+		
+		File output = new File(options.get("keyring", "keys.keyring"));
+		int threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+		System.out.format("Generating %s keys for %d principals on %d threads\n",
+				algorithms, principals.size(), threads);
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try (Keyring.Writer keyring = new Keyring.Writer(output)) {
+			BatchTask task = new BatchTask(principals, algorithms, keyring, 0, principals.size());
+			pool.invoke(task);
+			if (task.failure != null) {
+				throw new IOException("Key generation failed", task.failure);
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.format("Wrote %d keys to %s in %.1f s (%.1f keys/sec)\n",
+					keyring.getCount(), output, seconds, keyring.getCount() / seconds);
+		} catch (IOException e) {
+			System.err.println("Error generating keys");
+			e.printStackTrace();
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Generates the key pairs of a range of principals, splitting the range until it is small
+	 * enough to do on one thread
+	 */
+	private static class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int PRINCIPALS_PER_TASK = 8;
+		private static final int REPORT_INTERVAL = 1000;
+		
+		private final List<String> principals;
+		private final List<String> algorithms;
+		private final Keyring.Writer keyring;
+		private final int from;
+		private final int to;
+		private final AtomicLong done;
+		private volatile Exception failure;
+		
+		BatchTask(List<String> principals, List<String> algorithms, Keyring.Writer keyring, int from, int to) {
+			this(principals, algorithms, keyring, from, to, new AtomicLong());
+		}
+		
+		private BatchTask(List<String> principals, List<String> algorithms, Keyring.Writer keyring,
+				int from, int to, AtomicLong done) {
+			this.principals = principals;
+			this.algorithms = algorithms;
+			this.keyring = keyring;
+			this.from = from;
+			this.to = to;
+			this.done = done;
+		}
+		
+		protected void compute() {
+			if (to - from > PRINCIPALS_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				BatchTask left = new BatchTask(principals, algorithms, keyring, from, middle, done);
+				BatchTask right = new BatchTask(principals, algorithms, keyring, middle, to, done);
+				invokeAll(left, right);
+				failure = (left.failure != null) ? left.failure : right.failure;
+				return;
+			}
+			try {
+				//Generators are not thread safe, so each task has its own
+				Map<String,KeyPairGenerator> generators = new HashMap<>();
+				for (String algorithm : algorithms) {
+					generators.put(algorithm, newGenerator(algorithm));
+				}
+				for (int i = from; i < to; i++) {
+					for (String algorithm : algorithms) {
+						KeyPair pair = generators.get(algorithm).genKeyPair();
+						String suffix = algorithm.toUpperCase();
+						keyring.add(principals.get(i), KeyIO.Type.valueOf("PUBLIC_" + suffix), pair.getPublic());
+						keyring.add(principals.get(i), KeyIO.Type.valueOf("PRIVATE_" + suffix), pair.getPrivate());
+					}
+					if (done.incrementAndGet() % REPORT_INTERVAL == 0) {
+						System.out.format("%d of %d principals done\n", done.get(), principals.size());
+					}
+				}
+			} catch (IOException | GeneralSecurityException e) {
+				failure = e;
+			}
+		}
+	}
+	
 	public static void main(String[] args) { // later, generate()
+		Options options = new Options(args, 0);
+		if (options.has("batch")) {
+			generateBatch(options);
+			return;
+		}
 
 		KeyPair alicekeypairRSA = generate2048bitRSAKeys();
 		PrivateKey aliceprivateRSA = alicekeypairRSA.getPrivate();
@@ -52,6 +222,11 @@ public class Gen {
 		PublicKey bobpublicDSA = bobkeypairDSA.getPublic();
 
 		
+		// Signing keys for the X25519 handshake, and Bob's static key agreement key
+		KeyPair alicekeypairEd25519 = generateKeys("Ed25519");
+		KeyPair bobkeypairEd25519 = generateKeys("Ed25519");
+		KeyPair bobkeypairX25519 = generateKeys("X25519");
+		
 		// In case of highly improbable scenario of key overlap
 		while (aliceprivateRSA.equals(bobprivateRSA) || alicepublicRSA.equals(bobpublicRSA)) {
 			bobkeypairRSA = generate2048bitRSAKeys();
@@ -74,10 +249,38 @@ public class Gen {
 			KeyIO.writeKeyToFile(aliceprivateDSA, new File("aliceprivateDSA.key"));
 			KeyIO.writeKeyToFile(bobpublicDSA, new File("bobpublicDSA.key"));
 			KeyIO.writeKeyToFile(bobprivateDSA, new File("bobprivateDSA.key"));
+			KeyIO.writeKeyToFile(alicekeypairEd25519.getPublic(), new File("alicepublicEd25519.key"));
+			KeyIO.writeKeyToFile(alicekeypairEd25519.getPrivate(), new File("aliceprivateEd25519.key"));
+			KeyIO.writeKeyToFile(bobkeypairEd25519.getPublic(), new File("bobpublicEd25519.key"));
+			KeyIO.writeKeyToFile(bobkeypairEd25519.getPrivate(), new File("bobprivateEd25519.key"));
+			KeyIO.writeKeyToFile(bobkeypairX25519.getPublic(), new File("bobpublicX25519.key"));
+			KeyIO.writeKeyToFile(bobkeypairX25519.getPrivate(), new File("bobprivateX25519.key"));
 
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		
+		// Optionally also write all keys into one keyring file, e.g. Gen keyring=keys.keyring
+		if (options.has("keyring")) {
+			try (Keyring.Writer keyring = new Keyring.Writer(new File(options.get("keyring", "keys.keyring")))) {
+				keyring.add("alice", KeyIO.Type.PUBLIC_RSA, alicepublicRSA);
+				keyring.add("alice", KeyIO.Type.PRIVATE_RSA, aliceprivateRSA);
+				keyring.add("alice", KeyIO.Type.PUBLIC_DSA, alicepublicDSA);
+				keyring.add("alice", KeyIO.Type.PRIVATE_DSA, aliceprivateDSA);
+				keyring.add("alice", KeyIO.Type.PUBLIC_ED25519, alicekeypairEd25519.getPublic());
+				keyring.add("alice", KeyIO.Type.PRIVATE_ED25519, alicekeypairEd25519.getPrivate());
+				keyring.add("bob", KeyIO.Type.PUBLIC_RSA, bobpublicRSA);
+				keyring.add("bob", KeyIO.Type.PRIVATE_RSA, bobprivateRSA);
+				keyring.add("bob", KeyIO.Type.PUBLIC_DSA, bobpublicDSA);
+				keyring.add("bob", KeyIO.Type.PRIVATE_DSA, bobprivateDSA);
+				keyring.add("bob", KeyIO.Type.PUBLIC_ED25519, bobkeypairEd25519.getPublic());
+				keyring.add("bob", KeyIO.Type.PRIVATE_ED25519, bobkeypairEd25519.getPrivate());
+				keyring.add("bob", KeyIO.Type.PUBLIC_X25519, bobkeypairX25519.getPublic());
+				keyring.add("bob", KeyIO.Type.PRIVATE_X25519, bobkeypairX25519.getPrivate());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 	
 }
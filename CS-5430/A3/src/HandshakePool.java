@@ -0,0 +1,158 @@
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the public key operations of a multi-session Bob's handshakes on a few dedicated threads
+ * A session reads its handshake messages on its own thread, so a slow client ties up nothing
+ * else. It then hands the RSA, DSA, X25519 and Ed25519 work to this pool and waits. A flood of
+ * handshakes can use at most the pool's threads, which leaves the CPU for established sessions.
+ * A handshake is shed, and its connection closed, when the queue is full or when its source
+ * address already has its limit of handshakes waiting or running.
+ */
+public class HandshakePool {
+	public static final int DEFAULT_QUEUE = 64;
+	public static final int DEFAULT_PER_SOURCE = 16;
+
+	private final ThreadPoolExecutor workers;
+	private final int perSource;
+	private final ServerStats stats;
+
+	//Handshakes waiting or running for each source, guarded by this
+	private final Map<InetAddress,Integer> pending = new HashMap<>();
+
+	/**
+	 * Constructor. Starts the worker threads
+	 * @param threads The number of handshakes run at once
+	 * @param queue The most handshakes which may wait for a thread
+	 * @param perSource The most handshakes one source address may have waiting or running
+	 * @param stats Counters to update, or null
+	 */
+	public HandshakePool(int threads, int queue, int perSource, ServerStats stats) {
+		final AtomicInteger created = new AtomicInteger();
+		workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "handshake-" + created.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		workers.prestartAllCoreThreads();
+		this.perSource = perSource;
+		this.stats = stats;
+	}
+
+	/**
+	 * @return The default number of threads, half the processors so that sessions keep the rest
+	 */
+	public static int defaultThreads() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	}
+
+	/**
+	 * Completes a handshake on the pool, if it is admitted, and waits for the result
+	 * @param handshake The handshake, whose messages have been received
+	 * @param source The address the connection came from
+	 * @return The session keys, or null if the handshake failed or was shed
+	 */
+	public SessionKeys establish(final BobHandshake handshake, InetAddress source) {
+		if (!admit(source)) {
+			System.err.println("Handshake from " + source.getHostAddress() + " shed, too many from one source");
+			rejected();
+			return null;
+		}
+		try {
+			final long queued = System.nanoTime();
+			Future<SessionKeys> result = workers.submit(new Callable<SessionKeys>() {
+				public SessionKeys call() {
+					if (stats != null) {
+						stats.handshakeDequeued(System.nanoTime() - queued);
+					}
+					return handshake.establish();
+				}
+			});
+			ChannelMetrics.countHandshakeQueued();
+			return result.get();
+		} catch (RejectedExecutionException e) {
+			System.err.println("Handshake from " + source.getHostAddress() + " shed, server overloaded");
+			rejected();
+			return null;
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			release(source);
+		}
+	}
+
+	/**
+	 * @return The number of handshakes waiting for a thread
+	 */
+	public int queued() {
+		return workers.getQueue().size();
+	}
+
+	/**
+	 * Stops the worker threads once the handshakes already submitted are done
+	 */
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	/**
+	 * Counts a handshake in for its source, unless the source is at its limit
+	 * @param source The source address
+	 * @return Whether the handshake may go ahead
+	 */
+	private synchronized boolean admit(InetAddress source) {
+		Integer count = pending.get(source);
+		if (count == null) {
+			count = 0;
+		}
+		if (count >= perSource) {
+			return false;
+		}
+		pending.put(source, count + 1);
+		return true;
+	}
+
+	/**
+	 * Counts a handshake out for its source, forgetting sources with none left
+	 * @param source The source address
+	 */
+	private synchronized void release(InetAddress source) {
+		Integer count = pending.get(source);
+		if (count == null) {
+			return;
+		}
+		if (count <= 1) {
+			pending.remove(source);
+		}
+		else {
+			pending.put(source, count - 1);
+		}
+	}
+
+	/**
+	 * Counts a shed handshake
+	 */
+	private void rejected() {
+		ChannelMetrics.countHandshakeRejected();
+		if (stats != null) {
+			stats.handshakeRejected();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HMAC-SHA256 based key derivation (HKDF, RFC 5869)
+ */
+public class Hkdf {
+	private static final int HASH_LENGTH = 32;
+	
+	/**
+	 * Derives length bytes of key material from input key material
+	 * @param salt A non-secret random value, or null
+	 * @param ikm The input key material
+	 * @param info A label binding the output to its purpose
+	 * @param length The number of bytes to derive
+	 * @return The derived key material
+	 * @throws GeneralSecurityException If HMAC-SHA256 is unavailable
+	 */
+	public static byte[] derive(byte[] salt, byte[] ikm, String info, int length)
+			throws GeneralSecurityException {
+		return expand(extract(salt, ikm), info, length);
+	}
+	
+	/**
+	 * Extracts a pseudorandom key from input key material
+	 * @param salt A non-secret random value, or null
+	 * @param ikm The input key material
+	 * @return The pseudorandom key
+	 * @throws GeneralSecurityException If HMAC-SHA256 is unavailable
+	 */
+	public static byte[] extract(byte[] salt, byte[] ikm) throws GeneralSecurityException {
+		Mac mac = CryptoContext.mac("HmacSHA256");
+		mac.init(new SecretKeySpec((salt == null || salt.length == 0) ? new byte[HASH_LENGTH] : salt,
+				"HmacSHA256"));
+		byte[] prk = mac.doFinal(ikm);
+		CryptoContext.release(mac);
+		return prk;
+	}
+	
+	/**
+	 * Expands a pseudorandom key into length bytes of output
+	 * @param prk The pseudorandom key
+	 * @param info A label binding the output to its purpose
+	 * @param length The number of bytes to derive
+	 * @return The derived key material
+	 * @throws GeneralSecurityException If HMAC-SHA256 is unavailable
+	 */
+	public static byte[] expand(byte[] prk, String info, int length) throws GeneralSecurityException {
+		Mac mac = CryptoContext.mac("HmacSHA256");
+		mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+		byte[] label = info.getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream output = new ByteArrayOutputStream(length + HASH_LENGTH);
+		byte[] block = new byte[0];
+		for (int counter = 1; output.size() < length; counter++) {
+			mac.update(block);
+			mac.update(label);
+			mac.update((byte)counter);
+			block = mac.doFinal();
+			output.write(block, 0, block.length);
+		}
+		CryptoContext.release(mac);
+		byte[] okm = new byte[length];
+		System.arraycopy(output.toByteArray(), 0, okm, 0, length);
+		return okm;
+	}
+}
@@ -0,0 +1,238 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+/**
+ * One message from Alice as Mallory sees it on the wire
+ * Keeps the exact bytes read, including the length prefix, so forwarding it unchanged is a
+ * single write with no decoding. The fields are only parsed when a rule needs them.
+ */
+public class InterceptedMessage {
+	private final WireFormat format;
+	private final byte[] bytes;
+	private String text;
+
+	/**
+	 * Constructor
+	 * @param format The wire format of the message
+	 * @param bytes The wire encoding of the message including its length prefix
+	 */
+	public InterceptedMessage(WireFormat format, byte[] bytes) {
+		this.format = format;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Encodes a JSON format message as it goes on the wire
+	 * @param message The message
+	 * @return The message
+	 * @throws IOException If the message is too long for writeUTF
+	 */
+	public static InterceptedMessage fromJson(String message) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new DataOutputStream(out).writeUTF(message);
+		return new InterceptedMessage(WireFormat.JSON, out.toByteArray());
+	}
+
+	/**
+	 * Reads the next message without decoding it
+	 * @param input The stream from Alice
+	 * @param format The wire format in use
+	 * @return The message
+	 * @throws IOException If there is an error reading or the length is invalid
+	 */
+	public static InterceptedMessage read(DataInputStream input, WireFormat format) throws IOException {
+		if (format == WireFormat.JSON) {
+			int length = input.readUnsignedShort();
+			byte[] bytes = new byte[2 + length];
+			bytes[0] = (byte)(length >>> 8);
+			bytes[1] = (byte)length;
+			input.readFully(bytes, 2, length);
+			return new InterceptedMessage(format, bytes);
+		}
+		int length = input.readInt();
+		if (length < 6 || length > Frame.MAX_LENGTH) {
+			throw new IOException("Invalid frame length " + length);
+		}
+		byte[] bytes = new byte[4 + length];
+		ByteBuffer.wrap(bytes).putInt(length);
+		input.readFully(bytes, 4, length);
+		return new InterceptedMessage(format, bytes);
+	}
+
+	/**
+	 * @return The wire encoding of the message including its length prefix
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Writes the message exactly as it was received
+	 * @param output The stream to Bob
+	 * @throws IOException If there is an error writing
+	 */
+	public void write(OutputStream output) throws IOException {
+		output.write(bytes);
+	}
+
+	/**
+	 * Returns the message number if it can be read without the keys
+	 * Binary frames always carry it in the header. JSON messages only show it in plaintext,
+	 * MAC and authenticated encryption modes
+	 * @param mode The mode in use
+	 * @return The message number, or -1 if it is not visible
+	 */
+	public int getNumber(Mode mode) {
+		if (format == WireFormat.BINARY) {
+			return ByteBuffer.wrap(bytes).getInt(6);
+		}
+		try {
+			switch(mode) {
+			case PLAINTEXT:
+			case AEAD:
+				return parse().getInt("Message Number");
+			case MAC:
+				return parse().getJsonObject("Numbered Message").getInt("Message Number");
+			default:
+				return -1;
+			}
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the message as text for pattern matching: the JSON string, or for binary frames
+	 * the frame bytes read as ISO-8859-1 so that plaintext bodies can be matched
+	 * @return The text
+	 */
+	public String getText() {
+		if (text == null) {
+			if (format == WireFormat.JSON) {
+				try {
+					text = new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+				} catch (IOException e) {
+					text = "";
+				}
+			}
+			else {
+				text = new String(bytes, 4, bytes.length - 4, StandardCharsets.ISO_8859_1);
+			}
+		}
+		return text;
+	}
+
+	/**
+	 * Returns a tampered copy of this message
+	 * Where the message text is visible (plaintext and MAC modes) it is replaced, otherwise a
+	 * bit of the ciphertext is flipped
+	 * @param mode The mode in use
+	 * @param replacement The text to put in place of a visible message
+	 * @return The tampered message
+	 */
+	public InterceptedMessage tamper(Mode mode, String replacement) {
+		try {
+			if (format == WireFormat.BINARY) {
+				return tamperFrame(mode, replacement);
+			}
+			JsonObject message;
+			switch(mode) {
+			case PLAINTEXT:
+				return fromJson(replace(parse(), "Message", replacement).toString());
+			case MAC:
+				message = parse();
+				JsonObject numbered = replace(message.getJsonObject("Numbered Message"), "Message", replacement);
+				return fromJson(replace(message, "Numbered Message", numbered).toString());
+			case ENCRYPTION:
+				return fromJson(flipBase64(getText()));
+			default:
+				message = parse();
+				return fromJson(replace(message, "Encrypted Message",
+						flipBase64(message.getString("Encrypted Message"))).toString());
+			}
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Could not tamper with message, forwarding it unchanged");
+			return this;
+		}
+	}
+
+	/**
+	 * Tampers with a binary frame
+	 * @param mode The mode in use
+	 * @param replacement The text to put in place of a visible message
+	 * @return The tampered message
+	 * @throws IOException If the frame is malformed
+	 */
+	private InterceptedMessage tamperFrame(Mode mode, String replacement) throws IOException {
+		Frame frame = Frame.parse(ByteBuffer.wrap(bytes, 4, bytes.length - 4));
+		byte[] body;
+		if ((mode == Mode.PLAINTEXT || mode == Mode.MAC) && frame.getType() == Frame.DATA) {
+			body = replacement.getBytes(StandardCharsets.UTF_8);
+		}
+		else {
+			body = frame.getBody().clone();
+			if (body.length > 0) {
+				body[body.length - 1] ^= 1;
+			}
+		}
+		Frame tampered = new Frame(frame.getType(), frame.getNumber(), frame.getIv(), body, frame.getTag());
+		ByteArrayOutputStream out = new ByteArrayOutputStream(tampered.encodedLength());
+		tampered.write(new DataOutputStream(out));
+		return new InterceptedMessage(format, out.toByteArray());
+	}
+
+	/**
+	 * @return The message parsed as a JSON object
+	 */
+	private JsonObject parse() {
+		return Json.createReader(new StringReader(getText())).readObject();
+	}
+
+	/**
+	 * Copies a JSON object with one field replaced
+	 * @param object The object to copy
+	 * @param name The field to replace
+	 * @param value The new value, a String or a JsonValue
+	 * @return The copy
+	 */
+	private static JsonObject replace(JsonObject object, String name, Object value) {
+		JsonObjectBuilder builder = Json.createObjectBuilder();
+		for (Map.Entry<String,JsonValue> field : object.entrySet()) {
+			if (!field.getKey().equals(name)) {
+				builder.add(field.getKey(), field.getValue());
+			}
+			else if (value instanceof JsonValue) {
+				builder.add(name, (JsonValue)value);
+			}
+			else {
+				builder.add(name, value.toString());
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Flips the lowest bit of the last byte of Base64 encoded data
+	 * @param encoded The Base64 data
+	 * @return The tampered Base64 data
+	 */
+	private static String flipBase64(String encoded) {
+		byte[] decoded = Base64.getDecoder().decode(encoded);
+		decoded[decoded.length - 1] ^= 1;
+		return Base64.getEncoder().encodeToString(decoded);
+	}
+}
@@ -0,0 +1,197 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * The original wire format. Each message is a JSON object, with binary values Base64 encoded,
+ * sent with writeUTF. Kept for compatibility with older peers and with Mallory's interactive mode
+ */
+public class JsonCodec extends MessageCodec {
+	private final Cipher cipher;
+	
+	/**
+	 * Constructor
+	 * @param mode The mode to run in
+	 * @param keys The keys for the session
+	 * @param sending True for the sending (Alice) side, false for the receiving (Bob) side
+	 * @throws GeneralSecurityException If the keys are invalid
+	 */
+	public JsonCodec(Mode mode, SessionKeys keys, boolean sending) throws GeneralSecurityException {
+		super(mode, keys);
+		if (keys.getSessionKey() != null) {
+			cipher = CryptoContext.cipher("AES/CBC/PKCS5Padding");
+			cipher.init(sending ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+					keys.getSessionKey(), keys.getIv());
+		}
+		else {
+			cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		}
+	}
+	
+	@Override
+	public void close() {
+		super.close();
+		CryptoContext.release(cipher);
+	}
+	
+	@Override
+	public void writeMessage(int messageNumber, String message, DataOutputStream output)
+			throws IOException {
+		JsonObjectBuilder msgPlusNumber = Json.createObjectBuilder();
+		msgPlusNumber.add("Message Number", messageNumber);
+		msgPlusNumber.add("Message", message);
+		JsonObject jsonmsgPlusNumber = msgPlusNumber.build();
+		byte[] plaintext;
+		try {
+			plaintext = jsonmsgPlusNumber.toString().getBytes("UTF-8");
+			switch(mode) {
+			case PLAINTEXT:
+				output.writeUTF(jsonmsgPlusNumber.toString());
+				break;
+			case ENCRYPTION:
+				byte[] ciphertext = Base64.getEncoder().encode(cipher.doFinal(plaintext));
+				String ciphervalue = new String(ciphertext, StandardCharsets.UTF_8);
+				output.writeUTF(ciphervalue);
+				break;
+			case MAC:
+				byte[] plaintextMAC = Base64.getEncoder().encode(mac.doFinal(plaintext));
+				JsonObjectBuilder toSendMAC = Json.createObjectBuilder();
+				toSendMAC.add("Numbered Message", msgPlusNumber);
+				String plaintextMACstring = new String(plaintextMAC, StandardCharsets.UTF_8);
+				toSendMAC.add("MAC", plaintextMACstring);
+				JsonObject jsontoSendMAC = toSendMAC.build();
+				output.writeUTF(jsontoSendMAC.toString());
+				break;
+			case MAC_ENCRYPTION:
+				byte[] encrypted = Base64.getEncoder().encode(cipher.doFinal(plaintext));
+				byte[] ciphertextMAC = Base64.getEncoder().encode(mac.doFinal(encrypted));
+				JsonObjectBuilder toSendEncryptionMAC = Json.createObjectBuilder();
+				String ciphertextstring = new String(encrypted, StandardCharsets.UTF_8);
+				toSendEncryptionMAC.add("Encrypted Message", ciphertextstring);
+				String ciphertextmacstring = new String(ciphertextMAC, StandardCharsets.UTF_8);
+				toSendEncryptionMAC.add("MAC", ciphertextmacstring);
+				JsonObject jsontoSendEncryptionMAC = toSendEncryptionMAC.build();
+				output.writeUTF(jsontoSendEncryptionMAC.toString());
+				break;
+			case AEAD:
+				byte[] sealed = seal(messageNumber, message.getBytes("UTF-8"));
+				JsonObjectBuilder toSendAEAD = Json.createObjectBuilder();
+				toSendAEAD.add("Message Number", messageNumber);
+				toSendAEAD.add("Encrypted Message", Base64.getEncoder().encodeToString(sealed));
+				output.writeUTF(toSendAEAD.build().toString());
+			}
+		} catch (UnsupportedEncodingException | GeneralSecurityException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public List<Message> readMessages(DataInputStream input) throws IOException {
+		Message message = decode(input.readUTF());
+		if (message == null) {
+			return Collections.emptyList();
+		}
+		return Collections.singletonList(message);
+	}
+	
+	/**
+	 * Processes a received message in a fashion dictated by the current mode
+	 * @param message The received message
+	 * @return The decoded message, or null if it could not be recovered
+	 */
+	public Message decode(String message) {
+		try {
+			String numberedMessage = message;
+			String toDecrypt = message;
+			switch(mode) {
+			case PLAINTEXT:
+				break;
+			case AEAD:
+				return openAEAD(message);
+			case MAC:
+				JsonObject msgPlusMAC = Json.createReader(new StringReader(message)).readObject();
+				numberedMessage = msgPlusMAC.getJsonObject("Numbered Message").toString();
+				verifyMAC(numberedMessage, msgPlusMAC.getString("MAC"));
+				break;
+			case MAC_ENCRYPTION:
+				JsonObject encMsgPlusMAC = Json.createReader(new StringReader(message)).readObject();
+				toDecrypt = encMsgPlusMAC.getString("Encrypted Message");
+				verifyMAC(toDecrypt, encMsgPlusMAC.getString("MAC"));
+			case ENCRYPTION:
+				byte[] ciphertext = null;
+				try {
+					ciphertext = Base64.getDecoder().decode(toDecrypt);
+				} catch (IllegalArgumentException e) {
+					System.err.println("Received non Base64 encoded message - Likely the result of tampering");
+					ChannelMetrics.countDecryptFailure();
+					return null;
+				}
+				numberedMessage = new String(cipher.doFinal(ciphertext),StandardCharsets.UTF_8);
+			}
+			JsonObject parsedMessage = Json.createReader(new StringReader(numberedMessage)).readObject();
+			return new Message(parsedMessage.getInt("Message Number"), parsedMessage.getString("Message"));
+		} catch (IllegalBlockSizeException | BadPaddingException e) {
+			System.err.println("Error decrypting message - Likely the result of tampering");
+			ChannelMetrics.countDecryptFailure();
+			return null;
+		} catch (JsonException | ClassCastException | NullPointerException e) {
+			//Tampered ciphertext can decrypt with valid padding to something which is not a message
+			System.err.println("Received malformed message - Likely the result of tampering");
+			ChannelMetrics.countDecryptFailure();
+			return null;
+		}
+	}
+	
+	/**
+	 * Decrypts and verifies a message sent in AEAD mode
+	 * @param message The received message
+	 * @return The decoded message, or null if it failed authentication
+	 */
+	private Message openAEAD(String message) {
+		JsonObject sealed = Json.createReader(new StringReader(message)).readObject();
+		int messageNumber = sealed.getInt("Message Number");
+		try {
+			byte[] plaintext = open(messageNumber,
+					Base64.getDecoder().decode(sealed.getString("Encrypted Message")));
+			return new Message(messageNumber, new String(plaintext, StandardCharsets.UTF_8));
+		} catch (IllegalArgumentException e) {
+			System.err.println("Received non Base64 encoded message - Likely the result of tampering");
+			ChannelMetrics.countDecryptFailure();
+		} catch (GeneralSecurityException e) {
+			System.err.println(
+					"Warning: Message failed authentication - likely the result of tampering");
+			ChannelMetrics.countMacFailure();
+		}
+		return null;
+	}
+	
+	/**
+	 * Verifies that the MAC of message matches the given MAC and if not prints a warning
+	 * @param message The message to verify
+	 * @param MAC The received MAC for this message
+	 */
+	private void verifyMAC(String message, String MAC) {
+		String newMAC = Base64.getEncoder().encodeToString(
+				mac.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+		if (!newMAC.equals(MAC)) {
+			System.err.println(
+					"Warning: Message and its MAC do not match - likely the result of tampering");
+			ChannelMetrics.countMacFailure();
+		}
+	}
+}
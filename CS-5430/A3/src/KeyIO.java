@@ -37,6 +37,36 @@ public class KeyIO {
 		byte[] bytes = new byte[(int)file.length()];
 		stream.readFully(bytes);
 		stream.close();
+		return parseKey(bytes, type);
+	}
+	
+	/**
+	 * Reads a principal's key from a keyring if one is given, otherwise from the principal's
+	 * own key file in the working directory (e.g. alicepublicRSA.key)
+	 * @param keyring The keyring, or null to use key files
+	 * @param principal The name of the principal, e.g. alice
+	 * @param type The type of key
+	 * @return The read key
+	 * @throws IOException If the key cannot be found or read
+	 */
+	public static Key readKey(Keyring keyring, String principal, Type type) throws IOException {
+		if (keyring == null) {
+			return readKeyFromFile(new File(principal + type.getFileSuffix() + ".key"), type);
+		}
+		Key key = keyring.get(principal, type);
+		if (key == null) {
+			throw new IOException("No " + type + " key for " + principal + " in keyring");
+		}
+		return key;
+	}
+	
+	/**
+	 * Parses an encoded key
+	 * @param bytes The X.509 (public) or PKCS#8 (private) encoding of the key
+	 * @param type The type of key
+	 * @return The key, or null if it could not be parsed
+	 */
+	public static Key parseKey(byte[] bytes, Type type) {
 		try {
 			switch(type) {
 			case PUBLIC_RSA:	
@@ -51,6 +81,18 @@ public class KeyIO {
 			case PRIVATE_DSA:
 				return KeyFactory.getInstance("DSA").generatePrivate(
 						new PKCS8EncodedKeySpec(bytes));
+			case PUBLIC_ED25519:
+				return KeyFactory.getInstance("Ed25519").generatePublic(
+						new X509EncodedKeySpec(bytes));
+			case PRIVATE_ED25519:
+				return KeyFactory.getInstance("Ed25519").generatePrivate(
+						new PKCS8EncodedKeySpec(bytes));
+			case PUBLIC_X25519:
+				return KeyFactory.getInstance("X25519").generatePublic(
+						new X509EncodedKeySpec(bytes));
+			case PRIVATE_X25519:
+				return KeyFactory.getInstance("X25519").generatePrivate(
+						new PKCS8EncodedKeySpec(bytes));
 			}
 		} catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
 			e.printStackTrace();
@@ -61,5 +103,16 @@ public class KeyIO {
 	/**
 	 * Enum for specifying the key type
 	 */
-	enum Type {PUBLIC_RSA, PRIVATE_RSA, PUBLIC_DSA, PRIVATE_DSA};
+	enum Type {PUBLIC_RSA, PRIVATE_RSA, PUBLIC_DSA, PRIVATE_DSA,
+		PUBLIC_ED25519, PRIVATE_ED25519, PUBLIC_X25519, PRIVATE_X25519;
+		
+		/**
+		 * @return The part of a key file name after the principal, e.g. publicRSA
+		 */
+		public String getFileSuffix() {
+			String[] parts = name().split("_");
+			String algorithm = parts[1].equals("ED25519") ? "Ed25519" : parts[1];
+			return parts[0].toLowerCase() + algorithm;
+		}
+	};
 }
@@ -0,0 +1,270 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single file holding the keys of many principals, looked up by alias and key type
+ * The file is memory-mapped and only indexed when loaded. Keys are parsed the first time they
+ * are asked for and cached after that. When the file is replaced on disk the next lookup after
+ * the check interval loads the new file and swaps it in atomically, so lookups never see a
+ * mix of old and new keys.
+ *
+ * File layout: magic "A3KR", int version, then entries of
+ * [short alias length][alias][byte key type][int key length][encoded key]
+ * where the key type is the ordinal of KeyIO.Type, so new types must only be added at the end
+ */
+public class Keyring {
+	public static final int VERSION = 1;
+	private static final byte[] MAGIC = "A3KR".getBytes(StandardCharsets.US_ASCII);
+	private static final long DEFAULT_CHECK_INTERVAL_MILLIS = 1000;
+
+	private final File file;
+	private final long checkInterval;
+	private final AtomicReference<Snapshot> current = new AtomicReference<>();
+	private volatile long lastCheck;
+
+	/**
+	 * Constructor. Loads the keyring file
+	 * @param file The keyring file
+	 * @throws IOException If the file cannot be read or is not a keyring
+	 */
+	public Keyring(File file) throws IOException {
+		this(file, DEFAULT_CHECK_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Constructor. Loads the keyring file
+	 * @param file The keyring file
+	 * @param checkInterval How often to check the file for changes in milliseconds
+	 * @throws IOException If the file cannot be read or is not a keyring
+	 */
+	public Keyring(File file, long checkInterval) throws IOException {
+		this.file = file;
+		this.checkInterval = checkInterval;
+		current.set(Snapshot.load(file));
+		lastCheck = System.currentTimeMillis();
+	}
+
+	/**
+	 * Looks up a key
+	 * @param alias The principal the key belongs to, e.g. alice. Aliases are case insensitive
+	 * @param type The type of key
+	 * @return The key, or null if the keyring has no such key
+	 */
+	public Key get(String alias, KeyIO.Type type) {
+		reloadIfChanged();
+		return current.get().get(alias.toLowerCase(), type);
+	}
+
+	/**
+	 * @param alias The principal
+	 * @param type The type of key
+	 * @return Whether the keyring has the key
+	 */
+	public boolean contains(String alias, KeyIO.Type type) {
+		reloadIfChanged();
+		return current.get().offsets.containsKey(indexKey(alias.toLowerCase(), type));
+	}
+
+	/**
+	 * @return The number of keys in the keyring
+	 */
+	public int size() {
+		return current.get().offsets.size();
+	}
+
+	/**
+	 * Loads the file again if it has changed since it was last loaded
+	 * Checks at most once per check interval so lookups do not touch the disk
+	 * If the new file cannot be read the old keys stay in use
+	 */
+	public void reloadIfChanged() {
+		long now = System.currentTimeMillis();
+		if (now - lastCheck < checkInterval) {
+			return;
+		}
+		lastCheck = now;
+		Snapshot snapshot = current.get();
+		if (file.lastModified() == snapshot.modified && file.length() == snapshot.length) {
+			return;
+		}
+		try {
+			Snapshot loaded = Snapshot.load(file);
+			if (current.compareAndSet(snapshot, loaded)) {
+				System.out.format("Reloaded keyring %s (%d keys)\n", file, loaded.offsets.size());
+			}
+		} catch (IOException e) {
+			System.err.println("Error reloading keyring, keeping previous keys");
+		}
+	}
+
+	/**
+	 * Key for the index of a snapshot
+	 * @param alias The lowercase alias
+	 * @param type The type of key
+	 * @return The index key
+	 */
+	private static String indexKey(String alias, KeyIO.Type type) {
+		return alias + '/' + type.name();
+	}
+
+	/**
+	 * One loaded version of the keyring file
+	 */
+	private static class Snapshot {
+		private final ByteBuffer buffer;
+		private final Map<String,Integer> offsets;
+		private final Map<String,Key> parsed = new ConcurrentHashMap<>();
+		private final long modified;
+		private final long length;
+
+		private Snapshot(ByteBuffer buffer, Map<String,Integer> offsets, long modified, long length) {
+			this.buffer = buffer;
+			this.offsets = offsets;
+			this.modified = modified;
+			this.length = length;
+		}
+
+		/**
+		 * Maps a keyring file and indexes its entries without parsing any keys
+		 * @param file The keyring file
+		 * @return The snapshot
+		 * @throws IOException If the file cannot be read or is malformed
+		 */
+		private static Snapshot load(File file) throws IOException {
+			long modified = file.lastModified();
+			MappedByteBuffer buffer;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			Map<String,Integer> offsets = new HashMap<>();
+			KeyIO.Type[] types = KeyIO.Type.values();
+			try {
+				byte[] magic = new byte[MAGIC.length];
+				buffer.get(magic);
+				if (!Arrays.equals(magic, MAGIC) || buffer.getInt() != VERSION) {
+					throw new IOException("Not a keyring file: " + file);
+				}
+				while (buffer.hasRemaining()) {
+					byte[] alias = new byte[buffer.getShort() & 0xffff];
+					buffer.get(alias);
+					int type = buffer.get();
+					int keyLength = buffer.getInt();
+					if (type < 0 || type >= types.length || keyLength < 0 || keyLength > buffer.remaining()) {
+						throw new IOException("Malformed keyring entry at " + buffer.position());
+					}
+					offsets.put(indexKey(new String(alias, StandardCharsets.UTF_8), types[type]),
+							buffer.position() - 4);
+					buffer.position(buffer.position() + keyLength);
+				}
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated keyring file: " + file);
+			}
+			return new Snapshot(buffer, offsets, modified, buffer.capacity());
+		}
+
+		/**
+		 * Looks up a key, parsing it on first use
+		 * @param alias The lowercase alias
+		 * @param type The type of key
+		 * @return The key, or null if there is no such key
+		 */
+		private Key get(String alias, KeyIO.Type type) {
+			String index = indexKey(alias, type);
+			Key key = parsed.get(index);
+			if (key != null) {
+				return key;
+			}
+			Integer offset = offsets.get(index);
+			if (offset == null) {
+				return null;
+			}
+			ByteBuffer entry = buffer.duplicate();
+			entry.position(offset);
+			byte[] encoded = new byte[entry.getInt()];
+			entry.get(encoded);
+			key = KeyIO.parseKey(encoded, type);
+			if (key != null) {
+				parsed.putIfAbsent(index, key);
+			}
+			return key;
+		}
+	}
+
+	/**
+	 * Writes a keyring file. Entries go to a temporary file next to the target which replaces
+	 * the target on close, so readers only ever see complete keyrings
+	 * add may be called from several threads
+	 */
+	public static class Writer implements AutoCloseable {
+		private final File target;
+		private final File temporary;
+		private final DataOutputStream out;
+		private int count = 0;
+
+		/**
+		 * Constructor
+		 * @param target The keyring file to write
+		 * @throws IOException If the temporary file cannot be created
+		 */
+		public Writer(File target) throws IOException {
+			this.target = target;
+			File directory = target.getAbsoluteFile().getParentFile();
+			temporary = File.createTempFile(target.getName(), ".tmp", directory);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+		}
+
+		/**
+		 * Adds a key
+		 * @param alias The principal the key belongs to
+		 * @param type The type of key
+		 * @param key The key
+		 * @throws IOException If there is an error writing
+		 */
+		public synchronized void add(String alias, KeyIO.Type type, Key key) throws IOException {
+			byte[] name = alias.toLowerCase().getBytes(StandardCharsets.UTF_8);
+			byte[] encoded = key.getEncoded();
+			out.writeShort(name.length);
+			out.write(name);
+			out.writeByte(type.ordinal());
+			out.writeInt(encoded.length);
+			out.write(encoded);
+			count++;
+		}
+
+		/**
+		 * @return The number of keys added so far
+		 */
+		public synchronized int getCount() {
+			return count;
+		}
+
+		/**
+		 * Finishes the keyring and moves it into place
+		 * @throws IOException If there is an error writing or moving the file
+		 */
+		public synchronized void close() throws IOException {
+			out.close();
+			Files.move(temporary.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Alice's headless load generator, for sizing Bob and comparing the modes under load
+ * Opens many concurrent sessions, each with its own handshake, and sends synthetic messages
+ * or lines of a file at a target rate shared evenly between them. Each session keeps to a
+ * fixed schedule rather than waiting for one send before timing the next, so when Bob falls
+ * behind the lateness shows up in the latencies instead of being hidden by sending less.
+ * A message's latency is from when it was due to when it has been written to the socket,
+ * which grows when Bob stops reading and TCP flow control pushes back. Sessions run on
+ * virtual threads when the JVM has them.
+ */
+public class LoadGenerator {
+	/**
+	 * Creates the handshake for a session
+	 */
+	public interface HandshakeFactory {
+		AliceHandshake newHandshake();
+	}
+
+	private final String host;
+	private final int port;
+	private final Mode mode;
+	private final WireFormat format;
+	private final HandshakeFactory handshakes;
+	private final int sessions;
+	private final double rate;
+	private final long durationNanos;
+	private final List<String> messages;
+	private final long rekeyFrames;
+	private final long rekeyBytes;
+
+	private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+	private final LatencyHistogram sendLatency = new LatencyHistogram();
+	private final LongAdder sent = new LongAdder();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger connected = new AtomicInteger();
+
+	/**
+	 * Constructor
+	 * @param host Bob's host, or null for loopback
+	 * @param port Bob's port
+	 * @param mode The mode to run in
+	 * @param format The wire format
+	 * @param handshakes Creates each session's handshake
+	 * @param options The load options: load=<sessions> [rate=<messages/sec>] [duration=<seconds>]
+	 * [size=<bytes>] [messages=<file>] [rekey=<frames>] [rekeybytes=<bytes>]
+	 * @throws IOException If the messages file cannot be read
+	 */
+	public LoadGenerator(String host, int port, Mode mode, WireFormat format,
+			HandshakeFactory handshakes, Options options) throws IOException {
+		this.host = host;
+		this.port = port;
+		this.mode = mode;
+		this.format = format;
+		this.handshakes = handshakes;
+		this.sessions = Math.max(1, options.getInt("load", 1));
+		this.rate = options.getInt("rate", 0);
+		this.durationNanos = TimeUnit.SECONDS.toNanos(options.getInt("duration", 10));
+		this.rekeyFrames = options.getInt("rekey", 0);
+		this.rekeyBytes = options.getInt("rekeybytes", 0);
+		if (options.has("messages")) {
+			messages = Files.readAllLines(new File(options.get("messages", "")).toPath());
+			if (messages.isEmpty()) {
+				throw new IOException("No messages in " + options.get("messages", ""));
+			}
+		}
+		else {
+			char[] text = new char[options.getInt("size", 64)];
+			Arrays.fill(text, 'x');
+			messages = Collections.singletonList(new String(text));
+		}
+	}
+
+	/**
+	 * Runs every session to the end of the duration, printing progress each second and then
+	 * the achieved throughput and latency percentiles
+	 */
+	public void run() {
+		System.out.format("Load: %d sessions, %s messages/sec, %d s, %s mode, %s format\n", sessions,
+				(rate > 0) ? String.format("%.0f", rate) : "unlimited",
+				TimeUnit.NANOSECONDS.toSeconds(durationNanos), mode, format);
+		final long start = System.nanoTime();
+		ExecutorService executor = TaskThreads.newExecutor();
+		for (int i = 0; i < sessions; i++) {
+			final int session = i;
+			executor.execute(new Runnable() {
+				public void run() {
+					runSession(session, start);
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			long lastSent = 0;
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				long total = sent.sum();
+				System.out.format("Load: %.0f s, %d sessions connected, %d messages/sec\n",
+						(System.nanoTime() - start) / 1e9, connected.get(), total - lastSent);
+				lastSent = total;
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long total = sent.sum();
+		System.out.format("Sent %d messages in %.1f s, %.0f messages/sec%s, %d of %d sessions failed\n",
+				total, seconds, total / seconds,
+				(rate > 0) ? String.format(" of %.0f targeted", rate) : "", failed.get(), sessions);
+		System.out.println("Connect and handshake latency: " + handshakeLatency.summary());
+		System.out.println("Send latency: " + sendLatency.summary());
+	}
+
+	/**
+	 * Runs one session: connects, performs the handshake and sends until the duration is up
+	 * @param session The number of the session, which picks where in the messages it starts
+	 * @param start When the run started, in System.nanoTime terms
+	 */
+	private void runSession(int session, long start) {
+		long end = start + durationNanos;
+		//Each session's share of the rate
+		long interval = (rate > 0) ? (long)(1e9 * sessions / rate) : 0;
+		MessageCodec codec = null;
+		boolean wasConnected = false;
+		try (Socket socket = new Socket(host, port)) {
+			socket.setTcpNoDelay(true);
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+					ChannelMetrics.counting(socket.getOutputStream())));
+			long handshakeStart = System.nanoTime();
+			SessionKeys keys = handshakes.newHandshake().perform(output);
+			output.flush();
+			handshakeLatency.record(System.nanoTime() - handshakeStart);
+			ChannelMetrics.handshakeCompleted(System.nanoTime() - handshakeStart);
+			connected.incrementAndGet();
+			wasConnected = true;
+			codec = MessageCodec.create(format, mode, keys, true);
+			if (codec instanceof BinaryCodec) {
+				((BinaryCodec)codec).setRekeyLimits(rekeyFrames, rekeyBytes);
+			}
+			//The schedule starts once connected, spread so that sessions do not send together
+			long due = System.nanoTime() + interval * session / sessions;
+			int messageNumber = 0;
+			while(true) {
+				long now = System.nanoTime();
+				if (interval > 0) {
+					if (due >= end) {
+						break;
+					}
+					if (due > now) {
+						LockSupport.parkNanos(due - now);
+					}
+				}
+				else if (now >= end) {
+					break;
+				}
+				else {
+					due = now;
+				}
+				messageNumber++;
+				codec.writeMessage(messageNumber,
+						messages.get((session + messageNumber) % messages.size()), output);
+				output.flush();
+				sendLatency.record(System.nanoTime() - due);
+				ChannelMetrics.countMessage();
+				sent.increment();
+				due += interval;
+			}
+			socket.shutdownOutput();
+		} catch (IOException | GeneralSecurityException e) {
+			if (failed.incrementAndGet() == 1) {
+				System.err.println("Session failed: " + e.getMessage());
+			}
+		} finally {
+			if (codec != null) {
+				codec.close();
+			}
+			if (wasConnected) {
+				connected.decrementAndGet();
+			}
+		}
+	}
+}
@@ -1,8 +1,10 @@
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -10,11 +12,12 @@ import java.net.UnknownHostException;
 import java.security.Key;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Queue;
 import java.util.Scanner;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -37,7 +40,8 @@ public class Mallory {
 	private static BlockingQueue<String> incomingMessages;
 	private static BlockingQueue<String> outgoingMessages;
 	
-	private static List<String> oldMessages;
+	private static CaptureLog captures;
+	private static int connection;
 
 	/**
 	 * The main method. Default host is loopback, default port is 4000, default mode is plaintext
@@ -47,6 +51,17 @@ public class Mallory {
 	 * Mallory <serverPort> <mode>
 	 * Mallory <bobPort> <serverPort> <mode>
 	 * Mallory <hostname> <bobPort> <serverPort> <mode>
+	 * Mallory <hostname> <bobPort> <serverPort> <mode> keyring=<file>
+	 * Mallory <hostname> <bobPort> <serverPort> <mode> capture=<directory>
+	 * Mallory <hostname> <bobPort> <serverPort> <mode> relay [rules=<file>] [format=<json|binary>]
+	 * 		[capture=<directory>]
+	 * Mallory <hostname> <bobPort> <serverPort> <mode> workload=<directory> [connection=<n>] [pace]
+	 * Mallory <hostname> <bobPort> <serverPort> <mode> jmx
+	 * The relay option runs without the interactive interface, relaying any number of connections
+	 * from Alice to Bob and applying the rules in the rules file (see RelayRule)
+	 * Intercepted messages are kept in a capture log on disk (default directory capture) which
+	 * survives restarts. The workload option sends one captured connection to Bob again and exits
+	 * With jmx Mallory's counters and queue depths are published as an MXBean, see ChannelMetrics
 	 * @param args
 	 */
 	public static void main(String[] args) {
@@ -55,6 +70,7 @@ public class Mallory {
 		int bobPort = DEFAULT_BOB_PORT;
 		int serverPort = DEFAULT_SERVER_PORT;
 		mode = Mode.PLAINTEXT;
+		Options options = new Options(args, 4);
 		switch(args.length) {
 		case 0: 
 			break;
@@ -78,21 +94,57 @@ public class Mallory {
 			break;
 		}
 		System.out.format("Starting in %s mode\n", mode.toString());
+		if (options.has("jmx")) {
+			ChannelMetrics.register("Mallory", mode);
+		}
 		
 		//Load keys from filesystem
+		Keyring keyring = null;
+		if (options.has("keyring")) {
+			try {
+				keyring = new Keyring(new File(options.get("keyring", "keys.keyring")));
+			} catch (IOException e) {
+				System.err.println("Error reading keyring");
+			}
+		}
 		try {
-			alicePublicRSA = KeyIO.readKeyFromFile(new File("alicepublicRSA.key"), KeyIO.Type.PUBLIC_RSA);
-			alicePublicDSA = KeyIO.readKeyFromFile(new File("alicepublicDSA.key"), KeyIO.Type.PUBLIC_DSA);
-			alicePublicRSA = KeyIO.readKeyFromFile(new File("bobpublicRSA.key"), KeyIO.Type.PUBLIC_RSA);
-			alicePublicDSA = KeyIO.readKeyFromFile(new File("bobpublicDSA.key"), KeyIO.Type.PUBLIC_DSA);
+			alicePublicRSA = KeyIO.readKey(keyring, "alice", KeyIO.Type.PUBLIC_RSA);
+			alicePublicDSA = KeyIO.readKey(keyring, "alice", KeyIO.Type.PUBLIC_DSA);
+			bobPublicRSA = KeyIO.readKey(keyring, "bob", KeyIO.Type.PUBLIC_RSA);
+			bobPublicDSA = KeyIO.readKey(keyring, "bob", KeyIO.Type.PUBLIC_DSA);
 		} catch (IOException e) {
 			System.err.println("Error loading keys");
 		}
 		
+		if (options.has("workload")) {
+			sendWorkload(hostname, bobPort, options);
+			return;
+		}
+		if (options.has("relay")) {
+			relay(hostname, bobPort, serverPort, options);
+			return;
+		}
+		
 		//Initialize data structures
 		incomingMessages = new LinkedBlockingQueue<>();
 		outgoingMessages = new LinkedBlockingQueue<>();
-		oldMessages = new ArrayList<>();
+		ChannelMetrics.addQueue("incomingMessages", new ChannelMetrics.Gauge() {
+			public long value() {
+				return incomingMessages.size();
+			}
+		});
+		ChannelMetrics.addQueue("outgoingMessages", new ChannelMetrics.Gauge() {
+			public long value() {
+				return outgoingMessages.size();
+			}
+		});
+		try {
+			captures = new CaptureLog(new File(options.get("capture", "capture")));
+			connection = captures.newConnection();
+		} catch (IOException e) {
+			System.err.println("Error opening capture log: " + e.getMessage());
+			System.exit(0);
+		}
 		
 		//Set up connections
 		try {
@@ -122,17 +174,69 @@ public class Mallory {
 		
 	}
 	
+	/**
+	 * Runs the headless relay, accepting connections from Alice until the process is killed
+	 * Each connection gets its own connection to Bob
+	 * @param hostname Bob's host
+	 * @param bobPort Bob's port
+	 * @param serverPort The port to accept Alice on
+	 * @param options The relay options
+	 */
+	private static void relay(String hostname, int bobPort, int serverPort, Options options) {
+		List<RelayRule> rules = new ArrayList<>();
+		if (options.has("rules")) {
+			try {
+				rules = RelayRule.load(new File(options.get("rules", "")));
+			} catch (IOException e) {
+				System.err.println("Error reading rules: " + e.getMessage());
+				System.exit(0);
+			}
+		}
+		CaptureLog capture = null;
+		if (options.has("capture")) {
+			try {
+				capture = new CaptureLog(new File(options.get("capture", "capture")));
+			} catch (IOException e) {
+				System.err.println("Error opening capture log: " + e.getMessage());
+				System.exit(0);
+			}
+		}
+		WireFormat format = WireFormat.fromString(options.get("format", "json"));
+		System.out.format("Relaying %s messages with %d rules\n", format, rules.size());
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			server = new ServerSocket(serverPort);
+			System.out.format("Waiting for Alice on port %d\n", serverPort);
+			while(true) {
+				Socket connection = server.accept();
+				System.out.println("Connected to Alice, relaying to Bob");
+				new Thread(new Relay(connection, hostname, bobPort, mode, format, rules, scheduler, capture)).start();
+			}
+		} catch (IOException e) {
+			System.err.println("Error setting up connections");
+			System.exit(0);
+		}
+	}
+	
 	/**
 	 * Thread to handle incoming messages and add them to the queue to wait
 	 * for processing
 	 */
 	private static void handleIncoming() {
 		try {
-			DataInputStream incoming = new DataInputStream(fromAlice.getInputStream());
-			outgoingMessages.put(incoming.readUTF()); //Pass through session key
-			outgoingMessages.put(incoming.readUTF()); //Pass through MAC key
+			DataInputStream incoming = new DataInputStream(
+					ChannelMetrics.counting(fromAlice.getInputStream()));
+			String first = incoming.readUTF();
+			capture(first, CaptureLog.HANDSHAKE);
+			outgoingMessages.put(first); //Pass through session key or resumption request
+			if (!isSingleMessageHandshake(first)) {
+				String second = incoming.readUTF();
+				capture(second, CaptureLog.HANDSHAKE);
+				outgoingMessages.put(second); //Pass through MAC key
+			}
 			while(true) {
 				String message = incoming.readUTF();
+				ChannelMetrics.countMessage();
 				incomingMessages.put(message);
 			}
 		} catch (EOFException e) {
@@ -143,6 +247,18 @@ public class Mallory {
 		}
 	}
 	
+	/**
+	 * Returns true if a handshake message carries everything needed for the session keys,
+	 * which is the case for resumption requests and X25519 key agreement
+	 * @param message The first handshake message
+	 * @return Whether no second handshake message follows
+	 */
+	static boolean isSingleMessageHandshake(String message) {
+		JsonObject object = Json.createReader(new StringReader(message)).readObject();
+		return object.containsKey("Resume")
+				|| (object.containsKey("Message") && object.getJsonObject("Message").containsKey("Ephemeral"));
+	}
+	
 	/**
 	 * Thread to pull outgoing messages off the queue and send them
 	 */
@@ -226,6 +342,7 @@ public class Mallory {
 				+ "forward, f - view the next old message\n"
 				+ "back, b - view the previous old message\n"
 				+ "send, s - send the current old message to bob\n"
+				+ "jump, j - jump to a message number\n"
 				+ "cancel, c - go back to the main menu");
 	}
 
@@ -245,7 +362,7 @@ public class Mallory {
 		try {
 			System.out.println("Waiting for a message to arrive");
 			String messageString = incomingMessages.take();
-			oldMessages.add(messageString);
+			capture(messageString, CaptureLog.MESSAGE);
 			System.out.println("A message has arrived!\n");
 			formatMessage(messageString);
 			System.out.println("Press f to forward this message, m to modify it, or d to delete it. "
@@ -330,77 +447,201 @@ public class Mallory {
 			System.out.format("\nEnter a new tag. The old tag is: %s\n", 
 					message.getString("MAC"));
 			newMessage.add("MAC", scanner.nextLine());
+			break;
+		case AEAD:
+			System.out.format("\nEnter a new message number. The old message number is: %d\n",
+					message.getInt("Message Number"));
+			newMessage.add("Message Number", scanner.nextInt());
+			scanner.nextLine();
+			System.out.format("\nEnter a new message. The old message is: %s\n",
+					message.getString("Encrypted Message"));
+			newMessage.add("Encrypted Message", scanner.nextLine());
 		}
 		return newMessage.build().toString();
 	}
 
 	/**
-	 * Replays past messages from Alice to Bob
+	 * Replays past messages from Alice to Bob, including those captured by earlier runs
 	 * @param scanner A scanner for user input
 	 */
 	private static void replayMessages(Scanner scanner) {
-		if (oldMessages.size() > 0) {
-			System.out.println("Press f to view the next message, b to view the previous one, or c to cancel "
-					+ "and go back to the main menu. Press h for help. Press s to send an old message.");
-			ListIterator<String> itr = oldMessages.listIterator();
-			String currentMessage = itr.next();
-			boolean goingForward = true;
-			formatMessage(currentMessage);
-			while(true) {
-				String input = scanner.nextLine();
-				switch(input) {
-				case "help":
-				case "h":
-					printReplayHelp();
-					break;
-				case "send":
-				case "s":
-					try {
-						outgoingMessages.put(currentMessage);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-					break;
-				case "forward":
-				case "f":
-					if (!goingForward) {
-						itr.next();
-					}
-					goingForward = true;
-					if (itr.hasNext()) {
-						currentMessage = itr.next();
-						formatMessage(currentMessage);
-					}
-					else {
-						System.out.println("This is the last message");
-					}
-					break;
-				case "back":
-				case "b":
-					if (goingForward) {
-						itr.previous();
-					}
-					goingForward = false;
-					if (itr.hasPrevious()) {
-						currentMessage = itr.previous();
-						formatMessage(currentMessage);
-					}
-					else {
-						System.out.println("This is the first message");
-					}
-					break;
-				case "cancel":
-				case "c":
-					return;
-				case "quit":
-				case "q":
-					quit();
+		long position = nextCaptured(-1, 1);
+		if (position < 0) {
+			System.out.println("No messages have been received");
+			return;
+		}
+		System.out.println("Press f to view the next message, b to view the previous one, or c to cancel "
+				+ "and go back to the main menu. Press h for help. Press s to send an old message. "
+				+ "Press j to jump to a message number.");
+		String currentMessage = showCaptured(position);
+		while(true) {
+			String input = scanner.nextLine();
+			long next;
+			switch(input) {
+			case "help":
+			case "h":
+				printReplayHelp();
+				break;
+			case "send":
+			case "s":
+				try {
+					outgoingMessages.put(currentMessage);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				break;
+			case "forward":
+			case "f":
+				next = nextCaptured(position, 1);
+				if (next >= 0) {
+					position = next;
+					currentMessage = showCaptured(position);
+				}
+				else {
+					System.out.println("This is the last message");
+				}
+				break;
+			case "back":
+			case "b":
+				next = nextCaptured(position, -1);
+				if (next >= 0) {
+					position = next;
+					currentMessage = showCaptured(position);
 				}
+				else {
+					System.out.println("This is the first message");
+				}
+				break;
+			case "jump":
+			case "j":
+				System.out.println("Enter a message number");
+				int number = scanner.nextInt();
+				scanner.nextLine();
+				//Search onwards first so that jumping again finds older captures with the number
+				next = captures.findNumber(number, position + 1);
+				if (next < 0) {
+					next = captures.findNumber(number, 0);
+				}
+				if (next >= 0) {
+					position = next;
+					currentMessage = showCaptured(position);
+				}
+				else {
+					System.out.println("No captured message has that number");
+				}
+				break;
+			case "cancel":
+			case "c":
+				return;
+			case "quit":
+			case "q":
+				quit();
 			}
-			
 		}
-		else {
-			System.out.println("No messages have been received");
+	}
+	
+	/**
+	 * Finds the next captured message in a direction, skipping handshake messages
+	 * @param position The position to start from
+	 * @param step 1 to go forward, -1 to go back
+	 * @return The position of the message, or -1 if there is none
+	 */
+	private static long nextCaptured(long position, int step) {
+		try {
+			for (long next = position + step; next >= 0 && next < captures.size(); next += step) {
+				if (captures.get(next).getKind() == CaptureLog.MESSAGE) {
+					return next;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Error reading capture log");
+		}
+		return -1;
+	}
+	
+	/**
+	 * Prints a captured message
+	 * @param position The position of the message in the capture log
+	 * @return The message
+	 */
+	private static String showCaptured(long position) {
+		try {
+			CaptureLog.Record record = captures.get(position);
+			String message = new InterceptedMessage(WireFormat.JSON, record.getBytes()).getText();
+			System.out.format("Captured message %d from connection %d at %tT\n\n",
+					position, record.getConnection(), record.getTimestamp());
+			try {
+				formatMessage(message);
+			} catch (RuntimeException e) {
+				//Captured by an earlier run in another mode
+				System.out.format("Message: %s\n\n", message);
+			}
+			return message;
+		} catch (IOException e) {
+			System.err.println("Error reading capture log");
+			return "";
+		}
+	}
+	
+	/**
+	 * Appends a message from Alice to the capture log
+	 * @param message The message
+	 * @param kind CaptureLog.HANDSHAKE or CaptureLog.MESSAGE
+	 */
+	private static void capture(String message, int kind) {
+		try {
+			InterceptedMessage intercepted = InterceptedMessage.fromJson(message);
+			int number = (kind == CaptureLog.MESSAGE) ? intercepted.getNumber(mode) : -1;
+			captures.append(intercepted.getBytes(), number, connection, kind);
+		} catch (IOException e) {
+			System.err.println("Error capturing message");
+		}
+	}
+	
+	/**
+	 * Sends the handshake and messages of one captured connection to Bob and reports the rate
+	 * Bob only accepts the handshake within its freshness window, so older captures show how
+	 * Bob handles a replayed session
+	 * @param hostname Bob's host
+	 * @param bobPort Bob's port
+	 * @param options The workload options
+	 */
+	private static void sendWorkload(String hostname, int bobPort, Options options) {
+		try (CaptureLog log = new CaptureLog(new File(options.get("workload", "capture")))) {
+			long position = log.findConnection(options.getInt("connection", 0), 0);
+			if (position < 0) {
+				System.err.println("No such connection in the capture log");
+				return;
+			}
+			int replayed = log.get(position).getConnection();
+			boolean pace = options.has("pace");
+			Socket socket = new Socket(hostname, bobPort);
+			OutputStream output = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+			long start = System.nanoTime();
+			long firstTimestamp = log.get(position).getTimestamp();
+			long messages = 0;
+			long bytes = 0;
+			for (; position >= 0; position = log.findConnection(replayed, position + 1)) {
+				CaptureLog.Record record = log.get(position);
+				if (pace) {
+					//Keep the gaps between messages as they were captured
+					long wait = (record.getTimestamp() - firstTimestamp) - (System.nanoTime() - start) / 1000000;
+					if (wait > 0) {
+						output.flush();
+						Thread.sleep(wait);
+					}
+				}
+				output.write(record.getBytes());
+				messages++;
+				bytes += record.getBytes().length;
+			}
+			output.flush();
+			socket.close();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.format("Sent %d captured messages (%d bytes) of connection %d in %.3f s (%.0f messages/sec)\n",
+					messages, bytes, replayed, seconds, messages / seconds);
+		} catch (IOException | InterruptedException e) {
+			System.err.println("Error sending workload: " + e.getMessage());
 		}
 	}
 
@@ -431,6 +672,11 @@ public class Mallory {
 			System.out.format("Encrypted Message: %s\n\nTag: %s\n\n",
 					message.getString("Encrypted Message"),
 					message.getString("MAC"));
+			break;
+		case AEAD:
+			System.out.format("Message Number: %d\n\nEncrypted Message: %s\n\n",
+					message.getInt("Message Number"),
+					message.getString("Encrypted Message"));
 		}
 	}
 
@@ -0,0 +1,52 @@
+/**
+ * A decoded channel message together with its message number
+ * Messages on a logical stream are numbered within that stream; stream 0 is the connection
+ * itself, used when streams are not in use
+ */
+public class Message {
+	private final int stream;
+	private final int number;
+	private final String text;
+	
+	/**
+	 * Constructor for a message outside any stream
+	 * @param number The message number
+	 * @param text The message text
+	 */
+	public Message(int number, String text) {
+		this(0, number, text);
+	}
+	
+	/**
+	 * Constructor
+	 * @param stream The logical stream the message belongs to, or 0 for none
+	 * @param number The message number within the stream
+	 * @param text The message text
+	 */
+	public Message(int stream, int number, String text) {
+		this.stream = stream;
+		this.number = number;
+		this.text = text;
+	}
+	
+	/**
+	 * @return The logical stream the message belongs to, or 0 for none
+	 */
+	public int getStream() {
+		return stream;
+	}
+	
+	/**
+	 * @return The message number
+	 */
+	public int getNumber() {
+		return number;
+	}
+	
+	/**
+	 * @return The message text
+	 */
+	public String getText() {
+		return text;
+	}
+}
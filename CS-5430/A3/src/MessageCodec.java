@@ -0,0 +1,164 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encodes channel messages on Alice's side and decodes them on Bob's side
+ * in a fashion specified by the mode and the wire format
+ */
+public abstract class MessageCodec {
+	//Length of the AES-GCM authentication tag in bytes
+	public static final int GCM_TAG_LENGTH = 16;
+	
+	protected final Mode mode;
+	protected SessionKeys keys;
+	protected final Mac mac;
+	private Cipher gcm;
+	
+	/**
+	 * Constructor
+	 * @param mode The mode to run in
+	 * @param keys The keys for the session
+	 * @throws GeneralSecurityException If the MAC cannot be initialized
+	 */
+	protected MessageCodec(Mode mode, SessionKeys keys) throws GeneralSecurityException {
+		this.mode = mode;
+		this.keys = keys;
+		//A pooled MAC would still hold another session's key, so only take one to re-key it
+		if (keys.getMACKey() != null) {
+			mac = CryptoContext.mac("HmacSHA256");
+			mac.init(keys.getMACKey());
+		}
+		else {
+			mac = Mac.getInstance("HmacSHA256");
+		}
+		if (mode == Mode.AEAD) {
+			gcm = CryptoContext.cipher("AES/GCM/NoPadding");
+		}
+	}
+	
+	/**
+	 * Returns the codec's cryptographic engines to the calling thread's pool. The codec must
+	 * not be used afterwards
+	 */
+	public void close() {
+		CryptoContext.release(mac);
+		CryptoContext.release(gcm);
+	}
+	
+	/**
+	 * Switches to new keys for every message from now on
+	 * @param next The new keys
+	 * @throws GeneralSecurityException If the MAC cannot be initialized with the new key
+	 */
+	protected void rekey(SessionKeys next) throws GeneralSecurityException {
+		keys = next;
+		mac.init(next.getMACKey());
+	}
+	
+	/**
+	 * Creates a codec for the given wire format
+	 * @param format The wire format
+	 * @param mode The mode to run in
+	 * @param keys The keys for the session
+	 * @param sending True for the sending (Alice) side, false for the receiving (Bob) side
+	 * @return The codec
+	 * @throws GeneralSecurityException If the keys are invalid
+	 */
+	public static MessageCodec create(WireFormat format, Mode mode, SessionKeys keys, boolean sending)
+			throws GeneralSecurityException {
+		switch(format) {
+		case BINARY:
+			return new BinaryCodec(mode, keys);
+		default:
+			return new JsonCodec(mode, keys, sending);
+		}
+	}
+	
+	/**
+	 * Sends a message over output
+	 * @param messageNumber The number of the message
+	 * @param message The message to send
+	 * @param output The output stream to send over
+	 * @throws IOException If there is an error
+	 */
+	public abstract void writeMessage(int messageNumber, String message, DataOutputStream output)
+			throws IOException;
+	
+	/**
+	 * Sends several queued messages over output. Formats which cannot pack messages together
+	 * send them one at a time
+	 * @param messages The messages to send, in order
+	 * @param output The output stream to send over
+	 * @throws IOException If there is an error
+	 */
+	public void writeBatch(List<Message> messages, DataOutputStream output) throws IOException {
+		for (Message message : messages) {
+			writeMessage(message.getNumber(), message.getText(), output);
+		}
+	}
+	
+	/**
+	 * Reads the next unit sent over input, printing a warning if it has been tampered with
+	 * @param input The input stream to read from
+	 * @return The messages it held, empty if they could not be recovered
+	 * @throws IOException If there is an error reading
+	 */
+	public abstract List<Message> readMessages(DataInputStream input) throws IOException;
+	
+	/**
+	 * Encrypts and authenticates plaintext with AES-GCM. The nonce is derived from the
+	 * message number and the number is also bound to the ciphertext as associated data,
+	 * so a single pass gives both confidentiality and integrity
+	 * @param messageNumber The number of the message
+	 * @param plaintext The plaintext
+	 * @return The ciphertext followed by the tag
+	 * @throws GeneralSecurityException If encryption fails
+	 */
+	protected byte[] seal(int messageNumber, byte[] plaintext) throws GeneralSecurityException {
+		gcm.init(Cipher.ENCRYPT_MODE, keys.getSessionKey(), nonce(messageNumber));
+		gcm.updateAAD(associatedData(messageNumber));
+		return gcm.doFinal(plaintext);
+	}
+	
+	/**
+	 * Decrypts and verifies the output of seal
+	 * @param messageNumber The claimed number of the message
+	 * @param ciphertext The ciphertext followed by the tag
+	 * @return The plaintext
+	 * @throws GeneralSecurityException If the message or its number has been tampered with
+	 */
+	protected byte[] open(int messageNumber, byte[] ciphertext) throws GeneralSecurityException {
+		gcm.init(Cipher.DECRYPT_MODE, keys.getSessionKey(), nonce(messageNumber));
+		gcm.updateAAD(associatedData(messageNumber));
+		return gcm.doFinal(ciphertext);
+	}
+	
+	/**
+	 * Builds the 96 bit GCM nonce for a message. The first four bytes of the session IV act as
+	 * a per-session salt and the remaining eight bytes hold the message number, so a nonce is
+	 * never repeated under one session key as long as message numbers are not
+	 * @param messageNumber The number of the message
+	 * @return The GCM parameters
+	 */
+	private GCMParameterSpec nonce(int messageNumber) {
+		byte[] nonce = ByteBuffer.allocate(12).put(keys.getIv().getIV(), 0, 4)
+				.putLong(messageNumber & 0xffffffffL).array();
+		return new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce);
+	}
+	
+	/**
+	 * @param messageNumber The number of the message
+	 * @return The associated data bound to the message
+	 */
+	private static byte[] associatedData(int messageNumber) {
+		return ByteBuffer.allocate(4).putInt(messageNumber).array();
+	}
+}
@@ -5,7 +5,8 @@ public enum Mode {
 	PLAINTEXT,
 	ENCRYPTION,
 	MAC,
-	MAC_ENCRYPTION;
+	MAC_ENCRYPTION,
+	AEAD;
 	
 	public static Mode fromString(String s) {
 		switch(s.toUpperCase()) {
@@ -20,6 +21,11 @@ public enum Mode {
 		case "MAC_ENC":
 		case "ENCRYPTION THEN MAC":
 			return MAC_ENCRYPTION;
+		case "AEAD":
+		case "GCM":
+		case "AES_GCM":
+		case "AESGCM":
+			return AEAD;
 		default: 
 			return PLAINTEXT;
 		}
@@ -33,6 +39,8 @@ public enum Mode {
 			return "encryption";
 		case MAC_ENCRYPTION:
 			return "encryption then MAC";
+		case AEAD:
+			return "authenticated encryption (AES-GCM)";
 		default:
 			return "plaintext";
 		}
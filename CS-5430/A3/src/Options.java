@@ -0,0 +1,61 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Optional trailing command line arguments shared by the demo programs.
+ * Each argument is either a bare flag (e.g. server) or a key=value pair (e.g. threads=8).
+ * Options always follow the positional arguments of the full command line form.
+ */
+public class Options {
+	//Parsed options. Bare flags map to an empty string
+	private final Map<String,String> options = new HashMap<>();
+
+	/**
+	 * Constructor. Parses args starting at index first
+	 * @param args The command line arguments
+	 * @param first The index of the first optional argument
+	 */
+	public Options(String[] args, int first) {
+		for (int i = first; i < args.length; i++) {
+			String arg = args[i];
+			int split = arg.indexOf('=');
+			if (split < 0) {
+				options.put(arg.toLowerCase(), "");
+			}
+			else {
+				options.put(arg.substring(0, split).toLowerCase(), arg.substring(split + 1));
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the flag or key was given
+	 * @param name The name of the option
+	 * @return Whether the option is present
+	 */
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	/**
+	 * Returns the value of a key=value option
+	 * @param name The name of the option
+	 * @param fallback The value to use if the option is missing
+	 * @return The value of the option or fallback
+	 */
+	public String get(String name, String fallback) {
+		String value = options.get(name);
+		return (value == null || value.isEmpty()) ? fallback : value;
+	}
+
+	/**
+	 * Returns the value of a numeric key=value option
+	 * @param name The name of the option
+	 * @param fallback The value to use if the option is missing
+	 * @return The value of the option or fallback
+	 */
+	public int getInt(String name, int fallback) {
+		String value = options.get(name);
+		return (value == null || value.isEmpty()) ? fallback : Integer.parseInt(value);
+	}
+}
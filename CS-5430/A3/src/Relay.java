@@ -0,0 +1,246 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mallory's headless relay for one connection from Alice
+ * Opens its own connection to Bob, passes the handshake through and then applies the relay
+ * rules to every message, recording it in the capture log if there is one. With no rules and no
+ * capture log the stream is copied straight through without being split into messages at all.
+ * Unchanged messages are forwarded as the exact bytes received and writes are only flushed
+ * when no more input is waiting, so the relay keeps up with Alice. Anything Bob sends back,
+ * such as stream window updates, is copied to Alice untouched.
+ */
+public class Relay implements Runnable {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Socket fromAlice;
+	private final String bobHost;
+	private final int bobPort;
+	private final Mode mode;
+	private final WireFormat format;
+	private final List<RelayRule> rules;
+	private final ScheduledExecutorService scheduler;
+	private final CaptureLog capture;
+	private int connection;
+
+	private OutputStream toBob;
+	private final AtomicInteger pendingDelays = new AtomicInteger();
+	private long forwarded = 0;
+	private long dropped = 0;
+	private long modified = 0;
+	private long delayed = 0;
+	private long replayed = 0;
+
+	/**
+	 * Constructor
+	 * @param fromAlice The accepted connection from Alice
+	 * @param bobHost Bob's host, or null for loopback
+	 * @param bobPort Bob's port
+	 * @param mode The mode Alice and Bob are running in
+	 * @param format The wire format Alice and Bob are using
+	 * @param rules The rules to apply, possibly empty
+	 * @param scheduler The scheduler for delayed messages
+	 * @param capture The log to record Alice's messages in, or null
+	 */
+	public Relay(Socket fromAlice, String bobHost, int bobPort, Mode mode, WireFormat format,
+			List<RelayRule> rules, ScheduledExecutorService scheduler, CaptureLog capture) {
+		this.fromAlice = fromAlice;
+		this.bobHost = bobHost;
+		this.bobPort = bobPort;
+		this.mode = mode;
+		this.format = format;
+		this.rules = rules;
+		this.scheduler = scheduler;
+		this.capture = capture;
+	}
+
+	/**
+	 * Relays the connection until Alice closes it
+	 */
+	public void run() {
+		try (Socket toBobSocket = new Socket(bobHost, bobPort)) {
+			Thread backChannel = startBackChannel(toBobSocket);
+			DataInputStream incoming = new DataInputStream(
+					new BufferedInputStream(ChannelMetrics.counting(fromAlice.getInputStream()), BUFFER_SIZE));
+			OutputStream outgoing = toBobSocket.getOutputStream();
+
+			//Pass through session key or resumption request, and the MAC key if there is one
+			DataOutputStream handshake = new DataOutputStream(outgoing);
+			if (capture != null) {
+				connection = capture.newConnection();
+			}
+			String first = incoming.readUTF();
+			handshake.writeUTF(first);
+			capture(InterceptedMessage.fromJson(first), -1, CaptureLog.HANDSHAKE);
+			if (!Mallory.isSingleMessageHandshake(first)) {
+				String second = incoming.readUTF();
+				handshake.writeUTF(second);
+				capture(InterceptedMessage.fromJson(second), -1, CaptureLog.HANDSHAKE);
+			}
+
+			if (rules.isEmpty() && capture == null) {
+				long bytes = incoming.transferTo(outgoing);
+				System.out.format("Alice closed connection after %d bytes\n", bytes);
+			}
+			else {
+				toBob = new BufferedOutputStream(outgoing, BUFFER_SIZE);
+				relayMessages(incoming);
+			}
+			//Let Bob finish and close his side first, so nothing he sends back resets the connection
+			toBobSocket.shutdownOutput();
+			backChannel.join();
+		} catch (IOException e) {
+			System.err.println("Relay connection failed: " + e.getMessage());
+		} catch (InterruptedException e) {}
+		finally {
+			try {
+				fromAlice.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Starts a thread copying whatever Bob sends to Alice until Bob closes the connection
+	 * @param toBobSocket The connection to Bob
+	 * @return The thread
+	 */
+	private Thread startBackChannel(final Socket toBobSocket) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					toBobSocket.getInputStream().transferTo(fromAlice.getOutputStream());
+				} catch (IOException e) {
+					//One side has closed the connection
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Applies the rules to each message until Alice closes the connection, then waits for
+	 * delayed messages to go out
+	 * @param incoming The stream from Alice
+	 * @throws IOException If there is an error relaying
+	 */
+	private void relayMessages(DataInputStream incoming) throws IOException {
+		int position = 0;
+		try {
+			while(true) {
+				InterceptedMessage message = InterceptedMessage.read(incoming, format);
+				position++;
+				ChannelMetrics.countMessage();
+				int number = message.getNumber(mode);
+				capture(message, number, CaptureLog.MESSAGE);
+				RelayRule rule = RelayRule.find(rules, mode, (number < 0) ? position : number, message);
+				apply(rule, message);
+				if (incoming.available() == 0) {
+					flush();
+				}
+			}
+		} catch (EOFException e) {
+			System.out.println("Alice closed connection");
+		}
+		try {
+			while (pendingDelays.get() > 0) {
+				Thread.sleep(10);
+			}
+		} catch (InterruptedException e) {}
+		flush();
+		System.out.format("Relayed %d messages: %d forwarded, %d dropped, %d modified, %d delayed, %d replayed\n",
+				position, forwarded, dropped, modified, delayed, replayed);
+	}
+
+	/**
+	 * Records a message from Alice if there is a capture log
+	 * @param message The message
+	 * @param number The message number, or -1 if it is not visible
+	 * @param kind CaptureLog.HANDSHAKE or CaptureLog.MESSAGE
+	 * @throws IOException If the log cannot be extended
+	 */
+	private void capture(InterceptedMessage message, int number, int kind) throws IOException {
+		if (capture != null) {
+			capture.append(message.getBytes(), number, connection, kind);
+		}
+	}
+
+	/**
+	 * Does what a rule says with a message
+	 * @param rule The rule, or null to forward the message
+	 * @param message The message
+	 * @throws IOException If there is an error sending
+	 */
+	private void apply(RelayRule rule, final InterceptedMessage message) throws IOException {
+		RelayRule.Action action = (rule == null) ? RelayRule.Action.FORWARD : rule.getAction();
+		switch(action) {
+		case FORWARD:
+			send(message);
+			forwarded++;
+			break;
+		case DROP:
+			dropped++;
+			break;
+		case MODIFY:
+			send(message.tamper(mode, rule.getText()));
+			modified++;
+			break;
+		case DELAY:
+			delayed++;
+			pendingDelays.incrementAndGet();
+			scheduler.schedule(new Runnable() {public void run() {sendLater(message);}},
+					rule.getDelay(), TimeUnit.MILLISECONDS);
+			break;
+		case REPLAY:
+			send(message);
+			for (int i = 0; i < rule.getTimes(); i++) {
+				send(message);
+			}
+			replayed++;
+			break;
+		}
+	}
+
+	/**
+	 * Sends a delayed message from the scheduler thread
+	 * @param message The message
+	 */
+	private void sendLater(InterceptedMessage message) {
+		try {
+			send(message);
+			flush();
+		} catch (IOException e) {
+			System.err.println("Error sending delayed message");
+		} finally {
+			pendingDelays.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Writes a message to Bob
+	 * @param message The message
+	 * @throws IOException If there is an error writing
+	 */
+	private synchronized void send(InterceptedMessage message) throws IOException {
+		message.write(toBob);
+	}
+
+	/**
+	 * Flushes buffered messages to Bob
+	 * @throws IOException If there is an error writing
+	 */
+	private synchronized void flush() throws IOException {
+		toBob.flush();
+	}
+}
@@ -0,0 +1,188 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * One rule for Mallory's headless relay, saying what to do with the messages it matches
+ * A rules file has one rule per line, with blank lines and lines starting with # ignored:
+ *
+ * action [condition...] [parameter...]
+ *
+ * Actions
+ * forward               pass the message on unchanged
+ * drop                  do not pass the message on
+ * modify [text=<t>]     replace the visible message text with t, or flip a bit of the
+ *                       ciphertext in modes where the text is hidden
+ * delay millis=<n>      pass the message on n milliseconds later, after messages behind it
+ * replay [times=<n>]    pass the message on followed by n copies (default 1)
+ *
+ * Conditions, all of which must hold
+ * number=<n> or <a>-<b> message number, or position in the stream when the number is hidden
+ * every=<n>             message numbers divisible by n
+ * pattern=<regex>       the message text contains a match (use \s for spaces)
+ * mode=<mode>           Mallory is running in this mode
+ *
+ * The first matching rule applies. Messages which match no rule are forwarded.
+ */
+public class RelayRule {
+	enum Action {FORWARD, DROP, MODIFY, DELAY, REPLAY};
+
+	private static final String DEFAULT_TEXT = "Modified by Mallory";
+
+	private final Action action;
+	private int first = Integer.MIN_VALUE;
+	private int last = Integer.MAX_VALUE;
+	private int every = 0;
+	private Pattern pattern;
+	private Mode mode;
+	private String text = DEFAULT_TEXT;
+	private long delay = 0;
+	private int times = 1;
+
+	/**
+	 * Constructor
+	 * @param action What to do with matched messages
+	 */
+	public RelayRule(Action action) {
+		this.action = action;
+	}
+
+	/**
+	 * Parses one rule
+	 * @param line The rule
+	 * @return The rule
+	 * @throws IllegalArgumentException If the rule is malformed
+	 */
+	public static RelayRule parse(String line) {
+		String[] words = line.trim().split("\\s+");
+		RelayRule rule;
+		try {
+			rule = new RelayRule(Action.valueOf(words[0].toUpperCase()));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown action " + words[0]);
+		}
+		for (int i = 1; i < words.length; i++) {
+			int split = words[i].indexOf('=');
+			if (split < 0) {
+				throw new IllegalArgumentException("Expected name=value but found " + words[i]);
+			}
+			String name = words[i].substring(0, split).toLowerCase();
+			String value = words[i].substring(split + 1);
+			switch(name) {
+			case "number":
+				int dash = value.indexOf('-', 1);
+				rule.first = Integer.parseInt(dash < 0 ? value : value.substring(0, dash));
+				rule.last = (dash < 0) ? rule.first : Integer.parseInt(value.substring(dash + 1));
+				break;
+			case "every":
+				rule.every = Integer.parseInt(value);
+				break;
+			case "pattern":
+				rule.pattern = Pattern.compile(value);
+				break;
+			case "mode":
+				rule.mode = Mode.fromString(value);
+				break;
+			case "text":
+				rule.text = value;
+				break;
+			case "millis":
+				rule.delay = Long.parseLong(value);
+				break;
+			case "times":
+				rule.times = Integer.parseInt(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown rule option " + name);
+			}
+		}
+		if (rule.action == Action.DELAY && rule.delay <= 0) {
+			throw new IllegalArgumentException("delay needs millis=<n>");
+		}
+		return rule;
+	}
+
+	/**
+	 * Reads a rules file
+	 * @param file The file
+	 * @return The rules in order
+	 * @throws IOException If the file cannot be read or a rule is malformed
+	 */
+	public static List<RelayRule> load(File file) throws IOException {
+		List<RelayRule> rules = new ArrayList<>();
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(file.toPath())) {
+			lineNumber++;
+			if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+				continue;
+			}
+			try {
+				rules.add(parse(line));
+			} catch (IllegalArgumentException e) {
+				throw new IOException(file + " line " + lineNumber + ": " + e.getMessage());
+			}
+		}
+		return rules;
+	}
+
+	/**
+	 * Finds the rule which applies to a message
+	 * @param rules The rules in order
+	 * @param mode The mode Mallory is running in
+	 * @param number The message number
+	 * @param message The message
+	 * @return The first matching rule, or null if none match
+	 */
+	public static RelayRule find(List<RelayRule> rules, Mode mode, int number, InterceptedMessage message) {
+		for (RelayRule rule : rules) {
+			if (rule.matches(mode, number, message)) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param mode The mode Mallory is running in
+	 * @param number The message number
+	 * @param message The message
+	 * @return Whether the rule applies to the message
+	 */
+	public boolean matches(Mode mode, int number, InterceptedMessage message) {
+		return (this.mode == null || this.mode == mode)
+				&& number >= first && number <= last
+				&& (every == 0 || number % every == 0)
+				&& (pattern == null || pattern.matcher(message.getText()).find());
+	}
+
+	/**
+	 * @return What to do with matched messages
+	 */
+	public Action getAction() {
+		return action;
+	}
+
+	/**
+	 * @return The replacement text for modify
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @return The delay in milliseconds for delay
+	 */
+	public long getDelay() {
+		return delay;
+	}
+
+	/**
+	 * @return The number of copies for replay
+	 */
+	public int getTimes() {
+		return times;
+	}
+}
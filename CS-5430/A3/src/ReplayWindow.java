@@ -0,0 +1,100 @@
+/**
+ * Sliding window check against replayed messages, in the style of IPsec (RFC 4303 and 6479)
+ * Remembers which of the last size message numbers below the highest one seen have arrived, so
+ * messages may arrive out of order within the window but each number is accepted only once.
+ * The bitmap is a ring of 64 bit words with one spare word, so moving the window forward only
+ * clears the words it moves past. Nothing is allocated after construction.
+ * Not thread safe; each session has its own window.
+ */
+public class ReplayWindow {
+	public static final int DEFAULT_SIZE = 1024;
+
+	/**
+	 * The outcome of checking a message number
+	 */
+	public enum Result {
+		NEXT,      //one more than the highest number so far
+		SKIPPED,   //more than one above the highest number so far, numbers in between are missing
+		LATE,      //below the highest number but inside the window and not seen before
+		DUPLICATE, //inside the window and already seen
+		STALE;     //too far below the highest number to tell
+
+		/**
+		 * @return Whether the message should be delivered
+		 */
+		public boolean isAccepted() {
+			return this == NEXT || this == SKIPPED || this == LATE;
+		}
+	};
+
+	private final long[] bitmap;
+	private final int wordMask;
+	private final long size;
+	private long highest = 0;
+
+	/**
+	 * Constructor
+	 * @param size How far below the highest number a message may be and still be accepted
+	 */
+	public ReplayWindow(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Replay window size must be positive");
+		}
+		//Enough words for the window plus a spare, rounded up to a power of two
+		int needed = (size + 63) / 64 + 1;
+		int words = Integer.highestOneBit(needed - 1) << 1;
+		bitmap = new long[words];
+		wordMask = words - 1;
+		this.size = size;
+	}
+
+	/**
+	 * Checks a message number and records it if it is accepted
+	 * Message numbers start at 1
+	 * @param received The message number
+	 * @return The outcome
+	 */
+	public Result check(int received) {
+		long number = received;
+		if (number <= 0) {
+			return Result.STALE;
+		}
+		if (number > highest) {
+			//Clear the words the window moves past, at most the whole ring
+			long oldWord = highest >>> 6;
+			long newWord = number >>> 6;
+			long clear = Math.min(newWord - oldWord, bitmap.length);
+			for (long i = 1; i <= clear; i++) {
+				bitmap[(int)((oldWord + i) & wordMask)] = 0;
+			}
+			Result result = (number == highest + 1) ? Result.NEXT : Result.SKIPPED;
+			highest = number;
+			bitmap[(int)((number >>> 6) & wordMask)] |= 1L << (number & 63);
+			return result;
+		}
+		if (highest - number >= size) {
+			return Result.STALE;
+		}
+		int word = (int)((number >>> 6) & wordMask);
+		long bit = 1L << (number & 63);
+		if ((bitmap[word] & bit) != 0) {
+			return Result.DUPLICATE;
+		}
+		bitmap[word] |= bit;
+		return Result.LATE;
+	}
+
+	/**
+	 * @return The highest message number accepted so far, or 0 if there has been none
+	 */
+	public long getHighest() {
+		return highest;
+	}
+
+	/**
+	 * @return The window size
+	 */
+	public long getSize() {
+		return size;
+	}
+}
@@ -0,0 +1,92 @@
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bob's cache of resumable sessions, shared by all sessions of a server
+ * Entries expire after a time to live, and once the cache is full the oldest are evicted
+ */
+public class ResumptionCache {
+	private final int capacity;
+	private final long ttl;
+	private final LinkedHashMap<String, ResumptionTicket> tickets;
+	private long hits = 0;
+	private long misses = 0;
+	
+	/**
+	 * Constructor
+	 * @param capacity The largest number of tickets to hold
+	 * @param ttl How long a ticket stays valid in milliseconds
+	 */
+	public ResumptionCache(int capacity, long ttl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+		tickets = new LinkedHashMap<String, ResumptionTicket>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ResumptionTicket> eldest) {
+				return size() > ResumptionCache.this.capacity;
+			}
+		};
+	}
+	
+	/**
+	 * Makes a session resumable
+	 * @param keys The keys of the session
+	 * @throws GeneralSecurityException If the ticket cannot be computed
+	 */
+	public void store(SessionKeys keys) throws GeneralSecurityException {
+		ResumptionTicket ticket = ResumptionTicket.issue(keys, ttl);
+		synchronized(this) {
+			tickets.put(ticket.getId(), ticket);
+		}
+	}
+	
+	/**
+	 * Looks a ticket up, leaving it in the cache until redeem is called, so that a request
+	 * with a bad proof cannot use up someone else's ticket
+	 * @param id The ticket identifier
+	 * @return The ticket, or null if it is unknown or has expired
+	 */
+	public synchronized ResumptionTicket find(String id) {
+		ResumptionTicket ticket = tickets.get(id);
+		if (ticket == null || ticket.isExpired()) {
+			if (ticket != null) {
+				tickets.remove(id);
+			}
+			misses++;
+			return null;
+		}
+		return ticket;
+	}
+	
+	/**
+	 * Removes a ticket whose proof has been verified, so that it cannot be used twice
+	 * @param id The ticket identifier
+	 * @param ticket The ticket find returned
+	 * @return Whether the ticket was still in the cache, false if another session took it first
+	 */
+	public synchronized boolean redeem(String id, ResumptionTicket ticket) {
+		if (!tickets.remove(id, ticket)) {
+			misses++;
+			return false;
+		}
+		hits++;
+		return true;
+	}
+	
+	/**
+	 * @return The number of successful lookups
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * @return The number of lookups of unknown or expired tickets, and of tickets already redeemed
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,160 @@
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * A ticket which lets Alice resume a session with Bob using only symmetric cryptography
+ * Both sides compute the same ticket from the keys of a session, so nothing extra is sent.
+ * Each ticket is single use: resuming derives new session keys and from them a new ticket
+ */
+public class ResumptionTicket {
+	private static final int ID_LENGTH = 16;
+	
+	private final byte[] id;
+	private final SessionKeys keys;
+	private final long expires;
+	
+	/**
+	 * Constructor
+	 * @param id The ticket identifier
+	 * @param keys The keys of the session the ticket resumes
+	 * @param expires When the ticket expires in milliseconds since the epoch
+	 */
+	private ResumptionTicket(byte[] id, SessionKeys keys, long expires) {
+		this.id = id;
+		this.keys = keys;
+		this.expires = expires;
+	}
+	
+	/**
+	 * Creates the ticket for a session
+	 * @param keys The keys of the session
+	 * @param lifetime How long the ticket stays valid in milliseconds
+	 * @return The ticket
+	 * @throws GeneralSecurityException If HMAC-SHA256 is unavailable
+	 */
+	public static ResumptionTicket issue(SessionKeys keys, long lifetime) throws GeneralSecurityException {
+		Mac mac = CryptoContext.mac("HmacSHA256");
+		mac.init(keys.getMACKey());
+		byte[] id = Arrays.copyOf(mac.doFinal("A3 resumption ticket".getBytes(StandardCharsets.UTF_8)),
+				ID_LENGTH);
+		CryptoContext.release(mac);
+		return new ResumptionTicket(id, keys, System.currentTimeMillis() + lifetime);
+	}
+	
+	/**
+	 * @return The ticket identifier as Base64
+	 */
+	public String getId() {
+		return Base64.getEncoder().encodeToString(id);
+	}
+	
+	/**
+	 * @return Whether the ticket has expired
+	 */
+	public boolean isExpired() {
+		return System.currentTimeMillis() > expires;
+	}
+	
+	/**
+	 * Computes the proof that the sender of a resumption request holds the session keys
+	 * @param nonce The fresh nonce of the request
+	 * @param timestamp The timestamp of the request
+	 * @return The proof
+	 * @throws GeneralSecurityException If HMAC-SHA256 is unavailable
+	 */
+	public byte[] proof(byte[] nonce, long timestamp) throws GeneralSecurityException {
+		Mac mac = CryptoContext.mac("HmacSHA256");
+		mac.init(keys.getMACKey());
+		mac.update(id);
+		mac.update(nonce);
+		byte[] proof = mac.doFinal(ByteBuffer.allocate(8).putLong(timestamp).array());
+		CryptoContext.release(mac);
+		return proof;
+	}
+	
+	/**
+	 * Derives the keys of the resumed session
+	 * @param nonce The fresh nonce of the resumption request
+	 * @return The new session keys
+	 * @throws GeneralSecurityException If HMAC-SHA256 is unavailable
+	 */
+	public SessionKeys resume(byte[] nonce) throws GeneralSecurityException {
+		return keys.derive(nonce, "A3 resumption");
+	}
+	
+	/**
+	 * Saves the ticket to a file
+	 * The file holds the session's secret keys in the clear, so it is written to a temporary
+	 * file readable only by its owner and then moved into place. A ticket file anyone else can
+	 * read lets them resume the session and decrypt traffic captured from it
+	 * @param file The file to write
+	 * @throws IOException If there is an error
+	 */
+	public void save(File file) throws IOException {
+		JsonObject ticket = Json.createObjectBuilder()
+				.add("Ticket", getId())
+				.add("Session Key", encode(keys.getSessionKey().getEncoded()))
+				.add("IV", encode(keys.getIv().getIV()))
+				.add("MAC Key", encode(keys.getMACKey().getEncoded()))
+				.add("Expires", expires)
+				.build();
+		Path target = file.getAbsoluteFile().toPath();
+		//Temporary files are created owner only (rw-------)
+		Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temporary, ticket.toString().getBytes(StandardCharsets.UTF_8));
+			Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+	
+	/**
+	 * Loads a ticket saved with save
+	 * @param file The file to read
+	 * @return The ticket, or null if there is no usable ticket in the file
+	 */
+	public static ResumptionTicket load(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		try (Reader reader = new FileReader(file)) {
+			JsonObject ticket = Json.createReader(reader).readObject();
+			Base64.Decoder decoder = Base64.getDecoder();
+			byte[] sessionKey = decoder.decode(ticket.getString("Session Key"));
+			byte[] macKey = decoder.decode(ticket.getString("MAC Key"));
+			SessionKeys keys = new SessionKeys(new SecretKeySpec(sessionKey, "AES"),
+					new IvParameterSpec(decoder.decode(ticket.getString("IV"))),
+					new SecretKeySpec(macKey, "HmacSHA256"));
+			return new ResumptionTicket(decoder.decode(ticket.getString("Ticket")), keys,
+					ticket.getJsonNumber("Expires").longValue());
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Ignoring unreadable resumption ticket");
+			return null;
+		}
+	}
+	
+	/**
+	 * @param bytes The bytes to encode
+	 * @return bytes as Base64
+	 */
+	private static String encode(byte[] bytes) {
+		return Base64.getEncoder().encodeToString(bytes);
+	}
+}
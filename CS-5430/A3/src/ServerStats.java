@@ -0,0 +1,160 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters shared by all sessions of a multi-session Bob
+ * A reporter thread periodically prints connection and message rates so hosts can be sized
+ */
+public class ServerStats {
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong activeSessions = new AtomicLong();
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong fullHandshakes = new AtomicLong();
+	private final AtomicLong fullHandshakeNanos = new AtomicLong();
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+	private final AtomicLong resumedHandshakeNanos = new AtomicLong();
+	private final AtomicLong queuedHandshakes = new AtomicLong();
+	private final AtomicLong handshakeWaitNanos = new AtomicLong();
+	private final AtomicLong rejectedHandshakes = new AtomicLong();
+
+	/**
+	 * Records a newly accepted connection
+	 */
+	public void connectionOpened() {
+		connections.incrementAndGet();
+		activeSessions.incrementAndGet();
+	}
+
+	/**
+	 * Records a session ending
+	 */
+	public void connectionClosed() {
+		activeSessions.decrementAndGet();
+	}
+
+	/**
+	 * Records a received message
+	 */
+	public void messageReceived() {
+		messages.incrementAndGet();
+	}
+
+	/**
+	 * Records a completed handshake
+	 * @param resumed Whether the handshake resumed an earlier session
+	 * @param nanos How long the handshake took in nanoseconds
+	 */
+	public void handshakeCompleted(boolean resumed, long nanos) {
+		if (resumed) {
+			resumedHandshakes.incrementAndGet();
+			resumedHandshakeNanos.addAndGet(nanos);
+		}
+		else {
+			fullHandshakes.incrementAndGet();
+			fullHandshakeNanos.addAndGet(nanos);
+		}
+	}
+
+	/**
+	 * Records a handshake taken from the handshake pool's queue to be run
+	 * @param waitNanos How long it waited for a thread in nanoseconds
+	 */
+	public void handshakeDequeued(long waitNanos) {
+		queuedHandshakes.incrementAndGet();
+		handshakeWaitNanos.addAndGet(waitNanos);
+	}
+
+	/**
+	 * Records a handshake shed by the handshake pool
+	 */
+	public void handshakeRejected() {
+		rejectedHandshakes.incrementAndGet();
+	}
+	
+	/**
+	 * @return The total number of accepted connections
+	 */
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * @return The number of sessions currently open
+	 */
+	public long getActiveSessions() {
+		return activeSessions.get();
+	}
+
+	/**
+	 * @return The total number of received messages
+	 */
+	public long getMessages() {
+		return messages.get();
+	}
+
+	/**
+	 * Starts a daemon thread which prints rates every interval milliseconds
+	 * @param interval The reporting interval in milliseconds
+	 */
+	public void startReporter(final long interval) {
+		Thread reporter = new Thread(new Runnable() {public void run() {report(interval);}});
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Reporter loop
+	 * @param interval The reporting interval in milliseconds
+	 */
+	private void report(long interval) {
+		long lastConnections = 0;
+		long lastMessages = 0;
+		long lastTime = System.nanoTime();
+		try {
+			while(true) {
+				Thread.sleep(interval);
+				long now = System.nanoTime();
+				long currentConnections = connections.get();
+				long currentMessages = messages.get();
+				double seconds = (now - lastTime) / 1e9;
+				if (currentConnections == lastConnections && currentMessages == lastMessages
+						&& activeSessions.get() == 0) {
+					lastTime = now;
+					continue; //Nothing to report while idle
+				}
+				System.out.format("Stats: %.1f connections/sec, %.1f messages/sec, %d active sessions\n",
+						(currentConnections - lastConnections) / seconds,
+						(currentMessages - lastMessages) / seconds,
+						activeSessions.get());
+				reportHandshakes();
+				lastConnections = currentConnections;
+				lastMessages = currentMessages;
+				lastTime = now;
+			}
+		} catch (InterruptedException e) {}
+	}
+
+	/**
+	 * Prints the mean handshake latency of each kind so far, if there have been any
+	 */
+	private void reportHandshakes() {
+		long full = fullHandshakes.get();
+		long resumed = resumedHandshakes.get();
+		if (full > 0) {
+			System.out.format("Stats: mean full handshake %.2f ms over %d\n",
+					fullHandshakeNanos.get() / 1e6 / full, full);
+		}
+		if (resumed > 0) {
+			System.out.format("Stats: mean resumed handshake %.2f ms over %d\n",
+					resumedHandshakeNanos.get() / 1e6 / resumed, resumed);
+		}
+		long queued = queuedHandshakes.get();
+		long rejected = rejectedHandshakes.get();
+		if (queued + rejected > 0) {
+			System.out.format("Stats: %d handshakes queued, mean wait %.2f ms, %d shed\n",
+					queued, (queued == 0) ? 0 : handshakeWaitNanos.get() / 1e6 / queued, rejected);
+		}
+		if (full + resumed > 0) {
+			System.out.println("Stats: " + CryptoContext.summary());
+		}
+	}
+}
@@ -0,0 +1,81 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The symmetric keys agreed for one session
+ */
+public class SessionKeys {
+	//Sizes in bytes of derived keys
+	private static final int AES_KEY_LENGTH = 16;
+	private static final int MAC_KEY_LENGTH = 32;
+	private static final int IV_LENGTH = 16;
+	
+	//Bytes of key material needed to build a set of session keys
+	public static final int KEY_MATERIAL_LENGTH = AES_KEY_LENGTH + MAC_KEY_LENGTH + IV_LENGTH;
+	
+	private final SecretKey sessionKey;
+	private final IvParameterSpec iv;
+	private final SecretKey MACKey;
+	
+	/**
+	 * Constructor
+	 * @param sessionKey The AES session key
+	 * @param iv The initialization vector sent with the session key
+	 * @param MACKey The HMAC key
+	 */
+	public SessionKeys(SecretKey sessionKey, IvParameterSpec iv, SecretKey MACKey) {
+		this.sessionKey = sessionKey;
+		this.iv = iv;
+		this.MACKey = MACKey;
+	}
+	
+	/**
+	 * @return The AES session key
+	 */
+	public SecretKey getSessionKey() {
+		return sessionKey;
+	}
+	
+	/**
+	 * @return The initialization vector sent with the session key
+	 */
+	public IvParameterSpec getIv() {
+		return iv;
+	}
+	
+	/**
+	 * @return The HMAC key
+	 */
+	public SecretKey getMACKey() {
+		return MACKey;
+	}
+	
+	/**
+	 * Derives a fresh, independent set of session keys from these ones
+	 * @param salt A non-secret value which makes the derivation unique, or null
+	 * @param label A label binding the new keys to their purpose
+	 * @return The derived keys
+	 * @throws GeneralSecurityException If HMAC-SHA256 is unavailable
+	 */
+	public SessionKeys derive(byte[] salt, String label) throws GeneralSecurityException {
+		byte[] secret = ByteBuffer.allocate(sessionKey.getEncoded().length + MACKey.getEncoded().length)
+				.put(sessionKey.getEncoded()).put(MACKey.getEncoded()).array();
+		return fromKeyMaterial(Hkdf.derive(salt, secret, label, KEY_MATERIAL_LENGTH));
+	}
+	
+	/**
+	 * Splits derived key material into an AES key, an HMAC key and an IV
+	 * @param material At least KEY_MATERIAL_LENGTH bytes of key material
+	 * @return The session keys
+	 */
+	public static SessionKeys fromKeyMaterial(byte[] material) {
+		return new SessionKeys(
+				new SecretKeySpec(material, 0, AES_KEY_LENGTH, "AES"),
+				new IvParameterSpec(material, AES_KEY_LENGTH + MAC_KEY_LENGTH, IV_LENGTH),
+				new SecretKeySpec(material, AES_KEY_LENGTH, MAC_KEY_LENGTH, "HmacSHA256"));
+	}
+}
@@ -0,0 +1,192 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Bob's side of multiplexed logical streams over one connection
+ * Each stream has its own replay window and its own thread delivering its messages, so a slow
+ * stream does not hold up the others or the connection. The threads are virtual when the JVM
+ * has them, so a server with many sessions of many streams does not need an OS thread each.
+ * As a stream's messages are handed to the delivery queue their bytes are granted back to
+ * Alice in window updates, once half a window has built up, so a full delivery queue stops
+ * the grants.
+ * Messages beyond a stream's window are dropped, since a well behaved sender never sends them.
+ */
+public class StreamReceiver {
+	//Marks the end of a stream's queue
+	private static final Message END = new Message(0, 0, "");
+
+	//Runs every session's stream deliveries
+	private static final ExecutorService deliverers = TaskThreads.newExecutor();
+
+	/**
+	 * The state of one stream and the thread delivering its messages
+	 */
+	private class Stream implements Runnable {
+		private final int id;
+		private final ReplayWindow replayWindow;
+		private final BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+		private final Future<?> delivering;
+		private long outstanding = 0;
+		private int consumed = 0;
+
+		/**
+		 * Constructor. Starts delivering the stream
+		 * @param id The stream number
+		 */
+		private Stream(int id) {
+			this.id = id;
+			replayWindow = new ReplayWindow(replayWindowSize);
+			delivering = deliverers.submit(this);
+		}
+
+		/**
+		 * Delivers messages until the stream is closed
+		 */
+		public void run() {
+			try {
+				while(true) {
+					Message message = queue.take();
+					if (message == END) {
+						return;
+					}
+					deliver(message);
+					consumed(this, length(message));
+				}
+			} catch (InterruptedException e) {
+				//Session is shutting down
+			} catch (IOException e) {
+				System.err.format("Stream %d stopped: %s\n", id, e.getMessage());
+			}
+		}
+	}
+
+	private final BinaryCodec codec;
+	private final DataOutputStream output;
+	private final DeliveryQueue delivery;
+	private final int replayWindowSize;
+	private final Map<Integer,Stream> streams = new HashMap<>();
+	private int updates = 0;
+
+	/**
+	 * Constructor
+	 * @param codec The codec for the session, used to authenticate window updates
+	 * @param output The stream back to Alice which window updates are sent over
+	 * @param delivery Where to deliver messages
+	 * @param replayWindowSize How far out of order a stream's messages may arrive
+	 */
+	public StreamReceiver(BinaryCodec codec, DataOutputStream output, DeliveryQueue delivery,
+			int replayWindowSize) {
+		this.codec = codec;
+		this.output = output;
+		this.delivery = delivery;
+		this.replayWindowSize = replayWindowSize;
+	}
+
+	/**
+	 * Hands a received message to its stream. Called by the session's reading thread only
+	 * @param message The message
+	 */
+	public void receive(Message message) {
+		if (message.getStream() < 1 || message.getStream() > StreamSender.MAX_STREAMS) {
+			System.err.format("Warning: Message for invalid stream %d dropped\n", message.getStream());
+			return;
+		}
+		Stream stream = streams.get(message.getStream());
+		if (stream == null) {
+			stream = new Stream(message.getStream());
+			streams.put(stream.id, stream);
+		}
+		if (!BobSession.checkMessageNumber(stream.replayWindow, message.getNumber())) {
+			return;
+		}
+		synchronized(stream) {
+			if (stream.outstanding >= StreamSender.WINDOW) {
+				System.err.format(
+						"Warning: Stream %d exceeded its flow control window, message dropped\n", stream.id);
+				return;
+			}
+			stream.outstanding += length(message);
+		}
+		stream.queue.add(message);
+	}
+
+	/**
+	 * Delivers the messages already received on every stream and stops the delivery threads
+	 */
+	public void close() {
+		for (Stream stream : streams.values()) {
+			stream.queue.add(END);
+		}
+		try {
+			for (Stream stream : streams.values()) {
+				stream.delivering.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {}
+	}
+
+	/**
+	 * Delivers one message of a stream, blocking while the delivery queue is full
+	 * @param message The message
+	 * @throws IOException If the message cannot be delivered
+	 */
+	protected void deliver(Message message) throws IOException {
+		delivery.put(message);
+	}
+
+	/**
+	 * Records that a message has been delivered, granting its bytes back to Alice once half a
+	 * window has been delivered since the last grant
+	 * @param stream The stream
+	 * @param bytes The length of the message
+	 */
+	private void consumed(Stream stream, int bytes) {
+		int credit;
+		synchronized(stream) {
+			stream.outstanding -= bytes;
+			stream.consumed += bytes;
+			//Alice only stalls with a whole window outstanding, so waiting for half is safe
+			if (stream.consumed < StreamSender.WINDOW / 2) {
+				return;
+			}
+			credit = stream.consumed;
+			stream.consumed = 0;
+		}
+		sendUpdate(stream.id, credit);
+	}
+
+	/**
+	 * Sends a window update to Alice
+	 * @param stream The stream
+	 * @param credit The bytes granted
+	 */
+	private void sendUpdate(int stream, int credit) {
+		synchronized(output) {
+			try {
+				updates++;
+				codec.encodeWindowUpdate(updates, stream, credit).write(output);
+				output.flush();
+			} catch (IOException e) {
+				//Alice has gone; her messages are still delivered
+			} catch (GeneralSecurityException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @param message A message
+	 * @return The length of its text in bytes, which is what flow control counts
+	 */
+	private static int length(Message message) {
+		return message.getText().getBytes(StandardCharsets.UTF_8).length;
+	}
+}
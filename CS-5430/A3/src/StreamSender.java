@@ -0,0 +1,190 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Alice's side of multiplexed logical streams over one connection
+ * Each stream numbers its own messages and has its own flow control window: Alice may have at
+ * most WINDOW bytes of a stream's messages outstanding before Bob grants more credit with a
+ * window update. A stream which has run out of credit queues its messages without holding up
+ * the others. Window updates are read from the connection by a background thread, and
+ * closing only shuts down Alice's half of the connection, so that Bob can finish sending
+ * window updates without the connection being reset under the messages he has not yet read.
+ */
+public class StreamSender implements Runnable {
+	//Bytes of message text each stream may have outstanding, shared with StreamReceiver
+	public static final int WINDOW = 64 * 1024;
+
+	//Streams may be numbered from 1 to MAX_STREAMS, shared with StreamReceiver
+	public static final int MAX_STREAMS = 256;
+
+	/**
+	 * The state of one stream
+	 */
+	private static class Stream {
+		private final Queue<Message> pending = new ArrayDeque<>();
+		private int number = 0;
+		private long credit = WINDOW;
+	}
+
+	private final BinaryCodec codec;
+	private final DataOutputStream output;
+	private final Socket connection;
+	private final DataInputStream control;
+	private final Map<Integer,Stream> streams = new HashMap<>();
+	private final Thread thread;
+	private int sequence = 0;
+	private int lastUpdate = 0;
+	private int pending = 0;
+	private boolean closed = false;
+
+	/**
+	 * Constructor. Starts the thread reading window updates
+	 * @param codec The codec to encode messages with
+	 * @param output A buffered stream to send over the connection
+	 * @param connection The connection to Bob, which window updates arrive on
+	 * @throws IOException If the connection cannot be read
+	 */
+	public StreamSender(BinaryCodec codec, DataOutputStream output, Socket connection)
+			throws IOException {
+		this.codec = codec;
+		this.output = output;
+		this.connection = connection;
+		this.control = new DataInputStream(connection.getInputStream());
+		thread = new Thread(this);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Sends a message on a stream, or queues it until the stream has credit
+	 * Never blocks on another stream's window
+	 * @param stream The stream, from 1 to MAX_STREAMS
+	 * @param text The message
+	 * @throws IOException If there is an error sending
+	 * @throws IllegalArgumentException If the stream number is out of range
+	 */
+	public synchronized void send(int stream, String text) throws IOException {
+		if (stream < 1 || stream > MAX_STREAMS) {
+			throw new IllegalArgumentException("Streams are numbered from 1 to " + MAX_STREAMS);
+		}
+		Stream state = streams.get(stream);
+		if (state == null) {
+			state = new Stream();
+			streams.put(stream, state);
+		}
+		state.number++;
+		state.pending.add(new Message(stream, state.number, text));
+		pending++;
+		if (drain(state)) {
+			output.flush();
+		}
+		else if (state.pending.size() == 1) {
+			System.err.format("Stream %d is out of credit, queueing its messages\n", stream);
+		}
+	}
+
+	/**
+	 * Waits until every queued message has been sent, then shuts down Alice's half of the
+	 * connection and waits for Bob to close his
+	 * @throws IOException If there is an error shutting down or the wait is interrupted
+	 */
+	public void close() throws IOException {
+		try {
+			synchronized(this) {
+				while (pending > 0 && !closed) {
+					wait();
+				}
+				if (pending > 0) {
+					System.err.format("%d queued stream messages were never sent\n", pending);
+				}
+				output.flush();
+			}
+			connection.shutdownOutput();
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while closing", e);
+		}
+	}
+
+	/**
+	 * Reads window updates until the connection closes
+	 */
+	public void run() {
+		try {
+			while(true) {
+				Frame frame = Frame.read(control);
+				if (!codec.verifyWindowUpdate(frame) || frame.getNumber() <= lastUpdate) {
+					System.err.println(
+							"Warning: Invalid window update - likely the result of tampering");
+					ChannelMetrics.countMacFailure();
+					continue;
+				}
+				lastUpdate = frame.getNumber();
+				ByteBuffer body = ByteBuffer.wrap(frame.getBody());
+				grant(body.getInt(), body.getInt());
+			}
+		} catch (EOFException e) {
+			//Bob closed the connection
+		} catch (IOException e) {
+			System.err.println("Error reading window updates: " + e.getMessage());
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+		} finally {
+			synchronized(this) {
+				closed = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Adds credit to a stream and sends whatever it now allows
+	 * @param stream The stream
+	 * @param credit The number of bytes granted
+	 * @throws IOException If there is an error sending
+	 */
+	private synchronized void grant(int stream, int credit) throws IOException {
+		Stream state = streams.get(stream);
+		if (state == null || credit <= 0) {
+			System.err.format("Warning: Window update for unused stream %d ignored\n", stream);
+			return;
+		}
+		state.credit += credit;
+		if (drain(state)) {
+			output.flush();
+		}
+	}
+
+	/**
+	 * Sends queued messages of a stream while it has credit. A message may take the credit
+	 * below zero so that messages larger than the window can still be sent
+	 * @param state The stream
+	 * @return Whether anything was sent
+	 * @throws IOException If there is an error sending
+	 */
+	private boolean drain(Stream state) throws IOException {
+		boolean sent = false;
+		while (state.credit > 0 && !state.pending.isEmpty()) {
+			Message message = state.pending.remove();
+			sequence++;
+			codec.writeStreamMessage(sequence, message, output);
+			state.credit -= message.getText().getBytes(StandardCharsets.UTF_8).length;
+			pending--;
+			sent = true;
+		}
+		if (pending == 0) {
+			notifyAll();
+		}
+		return sent;
+	}
+}
@@ -0,0 +1,32 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs tasks which spend most of their time waiting, such as sessions and the streams within
+ * them, on a thread each
+ * Uses one virtual thread per task when the running JVM supports them, so thousands of tasks
+ * cost no more than thousands of objects, and falls back to a cached pool of daemon platform
+ * threads otherwise.
+ */
+public final class TaskThreads {
+	private TaskThreads() {}
+
+	/**
+	 * @return A new executor which runs each task on a thread of its own
+	 */
+	public static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,169 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+
+/**
+ * Bob's side of file transfers over the binary format
+ * Each chunk is verified and written straight to a .part file in the receiving directory, so a
+ * transfer takes the same memory however large it is. The file gets its real name only once
+ * the chunk flagged LAST arrives. A chunk out of sequence or failing authentication abandons
+ * the transfer and deletes what was received, as does the session ending part way through.
+ */
+public class TransferReceiver {
+	private final BinaryCodec codec;
+	private final File directory;
+	private int transfers = 0;
+
+	//The transfer in progress, if transfer is not null
+	private BinaryCodec transfer;
+	private String name;
+	private File part;
+	private OutputStream file;
+	private long expected;
+	private long received;
+	private int nextIndex;
+
+	/**
+	 * Constructor
+	 * @param codec The codec of the session
+	 * @param directory The directory to save received files in, created when needed
+	 */
+	public TransferReceiver(BinaryCodec codec, File directory) {
+		this.codec = codec;
+		this.directory = directory;
+	}
+
+	/**
+	 * Handles one chunk
+	 * @param frame The CHUNK frame
+	 */
+	public void receive(Frame frame) {
+		try {
+			if (frame.getNumber() == 0) {
+				start(frame);
+				return;
+			}
+			if (transfer == null) {
+				return; //Rest of an abandoned transfer
+			}
+			if (frame.getNumber() != nextIndex) {
+				System.err.println("Warning: Transfer chunk out of sequence - likely the result of tampering");
+				if (frame.getNumber() < nextIndex) {
+					ChannelMetrics.countReplay();
+				}
+				else {
+					ChannelMetrics.countGap();
+				}
+				abandon();
+				return;
+			}
+			ByteBuffer payload = transfer.decodeChunk(frame);
+			if (payload == null) {
+				abandon();
+				return;
+			}
+			byte flags = payload.get();
+			file.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+			received += payload.remaining();
+			nextIndex++;
+			if ((flags & TransferSender.LAST) != 0) {
+				finish();
+			}
+		} catch (IOException e) {
+			System.err.println("Error saving transfer: " + e.getMessage());
+			abandon();
+		}
+	}
+
+	/**
+	 * Abandons any transfer in progress, since the session is ending
+	 */
+	public void close() {
+		if (transfer != null) {
+			System.err.format("Transfer of %s incomplete\n", name);
+			abandon();
+		}
+	}
+
+	/**
+	 * Opens a new transfer from its first chunk
+	 * @param frame Chunk 0
+	 * @throws IOException If the file cannot be created
+	 */
+	private void start(Frame frame) throws IOException {
+		if (transfer != null) {
+			System.err.format("Transfer of %s interrupted by another\n", name);
+			abandon();
+		}
+		transfers++;
+		try {
+			transfer = codec.forTransfer(transfers);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not derive transfer keys", e);
+		}
+		name = "transfer" + transfers;
+		ByteBuffer payload = transfer.decodeChunk(frame);
+		if (payload == null || payload.remaining() < 9) {
+			abandon();
+			return;
+		}
+		payload.get();
+		expected = payload.getLong();
+		String sent = new String(payload.array(), payload.arrayOffset() + payload.position(),
+				payload.remaining(), StandardCharsets.UTF_8);
+		//Never let the sender choose where the file goes
+		String base = new File(sent).getName();
+		if (!base.isEmpty() && !base.equals(".") && !base.equals("..")) {
+			name = base;
+		}
+		directory.mkdirs();
+		part = new File(directory, name + ".part");
+		file = new FileOutputStream(part);
+		received = 0;
+		nextIndex = 1;
+		System.out.format("Receiving %s\n", name);
+	}
+
+	/**
+	 * Gives a complete transfer its real name
+	 * @throws IOException If the file cannot be closed or renamed
+	 */
+	private void finish() throws IOException {
+		file.close();
+		file = null;
+		File target = new File(directory, name);
+		Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		if (expected >= 0 && received != expected) {
+			System.err.format("Warning: Received %d bytes of %s, expected %d\n", received, name, expected);
+		}
+		System.out.format("Received %s, %d bytes\n", target.getPath(), received);
+		transfer.close();
+		transfer = null;
+	}
+
+	/**
+	 * Deletes whatever was received of the transfer in progress
+	 */
+	private void abandon() {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {}
+			file = null;
+		}
+		if (part != null && part.delete()) {
+			System.err.format("Transfer of %s abandoned\n", name);
+		}
+		part = null;
+		if (transfer != null) {
+			transfer.close();
+			transfer = null;
+		}
+	}
+}
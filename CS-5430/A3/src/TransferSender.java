@@ -0,0 +1,90 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * Alice's side of file transfers over the binary format
+ * A transfer is read and sent a chunk at a time through one reused buffer, so it takes the
+ * same memory however large it is and has no 64 KB limit. Chunk 0 holds the size and name,
+ * each following chunk up to CHUNK_SIZE bytes of data, and the last chunk is flagged LAST so
+ * that Bob can tell a complete transfer from a truncated one. Every chunk is numbered and
+ * protected under keys derived for the transfer, so chunks cannot be reordered, replayed or
+ * moved between transfers without Bob noticing in the modes which have a MAC.
+ */
+public class TransferSender {
+	//Bytes of data in each chunk
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	//Chunk flags, shared with TransferReceiver
+	public static final byte LAST = 1;
+
+	private final BinaryCodec codec;
+	private final DataOutputStream output;
+	private int transfers = 0;
+
+	/**
+	 * Constructor
+	 * @param codec The codec of the session
+	 * @param output The stream to send over
+	 */
+	public TransferSender(BinaryCodec codec, DataOutputStream output) {
+		this.codec = codec;
+		this.output = output;
+	}
+
+	/**
+	 * Sends a file
+	 * @param file The file
+	 * @return The number of bytes sent
+	 * @throws IOException If the file cannot be read or there is an error sending
+	 */
+	public long send(File file) throws IOException {
+		try (InputStream input = new FileInputStream(file)) {
+			return send(file.getName(), input, file.length());
+		}
+	}
+
+	/**
+	 * Sends everything read from a stream until it ends
+	 * @param name The name Bob saves the data under
+	 * @param input The stream
+	 * @param size The number of bytes expected, or -1 if it is not known
+	 * @return The number of bytes sent
+	 * @throws IOException If the stream cannot be read or there is an error sending
+	 */
+	public long send(String name, InputStream input, long size) throws IOException {
+		transfers++;
+		BinaryCodec transfer;
+		try {
+			transfer = codec.forTransfer(transfers);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not derive transfer keys", e);
+		}
+		try {
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			byte[] header = ByteBuffer.allocate(8 + nameBytes.length).putLong(size).put(nameBytes).array();
+			transfer.encodeChunk(0, (byte)0, header, header.length).write(output);
+
+			byte[] buffer = new byte[CHUNK_SIZE];
+			int index = 0;
+			long sent = 0;
+			int read;
+			while ((read = input.readNBytes(buffer, 0, CHUNK_SIZE)) > 0) {
+				transfer.encodeChunk(++index, (byte)0, buffer, read).write(output);
+				sent += read;
+			}
+			transfer.encodeChunk(++index, LAST, buffer, 0).write(output);
+			output.flush();
+			return sent;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not encrypt transfer", e);
+		} finally {
+			transfer.close();
+		}
+	}
+}
@@ -0,0 +1,26 @@
+/**
+ * Enum specifying how channel messages are laid out on the wire
+ */
+public enum WireFormat {
+	JSON,
+	BINARY;
+	
+	public static WireFormat fromString(String s) {
+		switch(s.toUpperCase()) {
+		case "BINARY":
+		case "BIN":
+			return BINARY;
+		default:
+			return JSON;
+		}
+	}
+	
+	public String toString() {
+		switch(this) {
+		case BINARY:
+			return "binary";
+		default:
+			return "JSON";
+		}
+	}
+}
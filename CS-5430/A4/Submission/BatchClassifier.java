@@ -0,0 +1,185 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Classifies a stream of passwords, one a line, on several threads sharing one dictionary
+ * The passwords are read in chunks which the threads classify, and the results are written
+ * in the order of the input as each chunk at the head finishes. Only a few chunks per thread
+ * are read ahead, so a file of any size streams through in bounded memory. Each result is
+ * strong or weak, decided as for a single password, and weak passwords are counted by the
+ * first rule of comprehensive8 they failed.
+ */
+public class BatchClassifier {
+	public static final int DEFAULT_CHUNK = 4096;
+
+	//Chunks read ahead for each thread, enough to keep the threads busy while one is written
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private final WordScanner dictionary;
+	private final int threads;
+	private final int chunk;
+
+	//Totals of the last run
+	private long strong = 0;
+	private long weak = 0;
+	private final long[] failures = new long[Classify.Rule.values().length];
+	private long elapsedNanos = 0;
+
+	/**
+	 * Constructor
+	 * @param dictionary The automaton of the dictionary, shared by every thread
+	 * @param threads The number of threads to classify on
+	 * @param chunk The number of passwords a thread classifies at a time
+	 */
+	public BatchClassifier(WordScanner dictionary, int threads, int chunk) {
+		this.dictionary = dictionary;
+		this.threads = Math.max(1, threads);
+		this.chunk = Math.max(1, chunk);
+	}
+
+	/**
+	 * The results of one chunk
+	 */
+	private static class Results {
+		//strong, or weak and the rule failed, for each password
+		final Classify.Rule[] rules;
+		final boolean[] strong;
+
+		Results(int count) {
+			rules = new Classify.Rule[count];
+			strong = new boolean[count];
+		}
+	}
+
+	/**
+	 * Classifies every line of input, writing strong or weak for each in order
+	 * @param input The passwords, one a line
+	 * @param output Where to write the results, one a line
+	 * @throws IOException If the input cannot be read or the output written
+	 */
+	public void run(BufferedReader input, Writer output) throws IOException {
+		final AtomicInteger created = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "classify-" + created.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long start = System.nanoTime();
+		Deque<Future<Results>> pending = new ArrayDeque<Future<Results>>();
+		try {
+			boolean more = true;
+			while (more || !pending.isEmpty()) {
+				//Read ahead until the window is full, then write the oldest chunk
+				while (more && pending.size() < CHUNKS_PER_THREAD * threads) {
+					final List<String> passwords = new ArrayList<String>(chunk);
+					String line;
+					while (passwords.size() < chunk && (line = input.readLine()) != null) {
+						passwords.add(line);
+					}
+					more = passwords.size() == chunk;
+					if (passwords.isEmpty()) {
+						break;
+					}
+					pending.add(workers.submit(new Callable<Results>() {
+						public Results call() {
+							return classify(passwords);
+						}
+					}));
+				}
+				if (!pending.isEmpty()) {
+					write(pending.remove().get(), output);
+				}
+			}
+			output.flush();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Classifying failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			workers.shutdownNow();
+			elapsedNanos = System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Classifies a chunk of passwords as Classify does a single one
+	 * @param passwords The passwords
+	 * @return Their results
+	 */
+	private Results classify(List<String> passwords) {
+		Results results = new Results(passwords.size());
+		for (int i = 0; i < passwords.size(); i++) {
+			String password = passwords.get(i);
+			if (Classify.basic16(password)) {
+				results.strong[i] = true;
+			}
+			else {
+				results.rules[i] = Classify.comprehensive8Failure(password, dictionary);
+				results.strong[i] = results.rules[i] == null;
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Writes and counts the results of a chunk
+	 * @param results The results
+	 * @param output Where to write them
+	 * @throws IOException If they cannot be written
+	 */
+	private void write(Results results, Writer output) throws IOException {
+		for (int i = 0; i < results.strong.length; i++) {
+			if (results.strong[i]) {
+				strong++;
+				output.write("strong\n");
+			}
+			else {
+				weak++;
+				failures[results.rules[i].ordinal()]++;
+				output.write("weak\n");
+			}
+		}
+	}
+
+	/**
+	 * @return The throughput and the weak passwords by the rule they failed, over several lines
+	 */
+	public String summary() {
+		long total = strong + weak;
+		double seconds = elapsedNanos / 1e9;
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format("Classified %d passwords in %.2f s on %d threads, %.0f passwords/sec\n",
+				total, seconds, threads, (seconds > 0) ? total / seconds : 0));
+		summary.append(String.format("strong %d (%.1f%%), weak %d (%.1f%%)\n",
+				strong, percent(strong, total), weak, percent(weak, total)));
+		summary.append("Weak passwords by the first rule of comprehensive8 failed:\n");
+		for (Classify.Rule rule : Classify.Rule.values()) {
+			summary.append(String.format("  %-10s %10d (%.1f%%)\n", rule.name().toLowerCase(),
+					failures[rule.ordinal()], percent(failures[rule.ordinal()], total)));
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * @param count A count
+	 * @param total The total it is part of
+	 * @return count as a percentage of total, 0 if total is 0
+	 */
+	private static double percent(long count, long total) {
+		return (total == 0) ? 0 : 100.0 * count / total;
+	}
+}
@@ -0,0 +1,246 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A blocked Bloom filter over the hashes of a WordList's words, which rules most absent words
+ * out before the hash table is probed
+ * The filter is split into blocks of 512 bits, the size of a cache line, and every bit for a
+ * word is set in the one block its hash picks. A check touches a single cache line where a
+ * plain Bloom filter touches one per hash function. Since the number of words in a block
+ * varies, a blocked filter needs more bits than a plain one for the same false positive rate,
+ * so it is sized from the rate of a blocked filter rather than the textbook formula. The
+ * filter only sees 32 bit hashes, so rates far below the number of words over 2^32 are not met.
+ * The bits are kept outside the Java heap, little endian, so a snapshot can hold them as is.
+ */
+public class BloomFilter {
+	//Bits, longs and bytes in a block
+	private static final int BLOCK_BITS = 512;
+	private static final int BLOCK_LONGS = BLOCK_BITS / 64;
+	public static final int BLOCK_BYTES = BLOCK_BITS / 8;
+
+	//Each bit within a block is picked by 9 bits of hash, 7 of which fit in a long
+	private static final int BIT_INDEX_BITS = 9;
+	private static final int PROBES_PER_LONG = 64 / BIT_INDEX_BITS;
+
+	//The most hash functions worth using, reached at about a one in a million rate
+	private static final int MAX_HASHES = 16;
+
+	private final ByteBuffer bits;
+	private final int blocks;
+	private final int hashes;
+
+	//Checks the filter ruled out, checks it let through, and of those the ones which turned
+	//out not to be words
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder passed = new LongAdder();
+	private final LongAdder falsePositives = new LongAdder();
+
+	/**
+	 * Builds a filter of the given hashes
+	 * @param wordHashes The words' hashes, as WordList computes them
+	 * @param count The number of hashes to use from the start of wordHashes
+	 * @param falsePositiveRate The rate of false positives to size the filter for, between 0
+	 * and 1 exclusive
+	 */
+	public BloomFilter(int[] wordHashes, int count, double falsePositiveRate) {
+		blocks = blocksFor(count, falsePositiveRate);
+		hashes = hashesFor(falsePositiveRate);
+		long[] words = new long[blocks * BLOCK_LONGS];
+		for (int i = 0; i < count; i++) {
+			long x = mix(wordHashes[i]);
+			int base = block(x) * BLOCK_LONGS;
+			long probes = 0;
+			for (int j = 0; j < hashes; j++) {
+				if (j % PROBES_PER_LONG == 0) {
+					probes = probes(x, j);
+				}
+				int bit = (int)(probes >>> (64 - BIT_INDEX_BITS));
+				probes <<= BIT_INDEX_BITS;
+				words[base + (bit >>> 6)] |= 1L << bit;
+			}
+		}
+		bits = ByteBuffer.allocateDirect(blocks * BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		bits.asLongBuffer().put(words);
+	}
+
+	/**
+	 * Wraps the bits of a filter mapped from a snapshot
+	 * @param bits The bits, blocks times BLOCK_BYTES long
+	 * @param hashes The number of hash functions the filter was built with
+	 */
+	public BloomFilter(ByteBuffer bits, int hashes) {
+		this.bits = bits.order(ByteOrder.LITTLE_ENDIAN);
+		this.blocks = bits.capacity() / BLOCK_BYTES;
+		this.hashes = hashes;
+	}
+
+	/**
+	 * @param count The number of words
+	 * @param falsePositiveRate The rate of false positives
+	 * @return The number of blocks a filter of that many words needs for that rate
+	 */
+	public static int blocksFor(int count, double falsePositiveRate) {
+		//Start from the size of a plain filter and grow it until a blocked one is good enough
+		double bitsPerWord = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+		int hashes = hashesFor(falsePositiveRate);
+		long blocks = (long)Math.max(1, Math.ceil(count * bitsPerWord / BLOCK_BITS));
+		while (blocks < Integer.MAX_VALUE / BLOCK_BYTES
+				&& blockedRate((double)count / blocks, hashes) > falsePositiveRate) {
+			blocks += Math.max(1, blocks / 32);
+		}
+		return (int)Math.min(blocks, Integer.MAX_VALUE / BLOCK_BYTES);
+	}
+
+	/**
+	 * Estimates the false positive rate of a blocked filter. The number of words in a block is
+	 * Poisson distributed, and a block holding c words gives about the rate of a plain filter
+	 * of BLOCK_BITS bits holding c words
+	 * @param wordsPerBlock The mean number of words in a block
+	 * @param hashes The number of hash functions
+	 * @return The estimated rate
+	 */
+	private static double blockedRate(double wordsPerBlock, int hashes) {
+		double rate = 0;
+		double probability = Math.exp(-wordsPerBlock);
+		int most = (int)(wordsPerBlock + 10 * Math.sqrt(wordsPerBlock) + 10);
+		for (int c = 0; c <= most; c++) {
+			if (c > 0) {
+				probability *= wordsPerBlock / c;
+			}
+			rate += probability * Math.pow(1 - Math.pow(1 - 1.0 / BLOCK_BITS, (double)hashes * c), hashes);
+		}
+		return rate;
+	}
+
+	/**
+	 * @param falsePositiveRate The rate of false positives
+	 * @return The number of hash functions which gives that rate with the fewest bits
+	 */
+	public static int hashesFor(double falsePositiveRate) {
+		int hashes = (int)Math.round(-Math.log(falsePositiveRate) / Math.log(2));
+		return Math.max(1, Math.min(MAX_HASHES, hashes));
+	}
+
+	/**
+	 * Checks whether a word may be in the filter, counting the result
+	 * @param wordHash The word's hash, as WordList computes it
+	 * @return False if the word is certainly absent, true if it may be present
+	 */
+	public boolean mightContain(int wordHash) {
+		long x = mix(wordHash);
+		int base = block(x) * BLOCK_BYTES;
+		long probes = 0;
+		for (int j = 0; j < hashes; j++) {
+			if (j % PROBES_PER_LONG == 0) {
+				probes = probes(x, j);
+			}
+			int bit = (int)(probes >>> (64 - BIT_INDEX_BITS));
+			probes <<= BIT_INDEX_BITS;
+			if ((bits.getLong(base + 8 * (bit >>> 6)) & (1L << bit)) == 0) {
+				rejected.increment();
+				return false;
+			}
+		}
+		passed.increment();
+		return true;
+	}
+
+	/**
+	 * Counts a word the filter let through which turned out not to be in the list
+	 */
+	public void falsePositive() {
+		falsePositives.increment();
+	}
+
+	/**
+	 * @return The filter's bits, as a snapshot holds them
+	 */
+	public ByteBuffer getBits() {
+		return bits.duplicate();
+	}
+
+	/**
+	 * @return The number of 512 bit blocks
+	 */
+	public int getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * @return The number of hash functions
+	 */
+	public int getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * @return The number of checks the filter ruled out
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * @return The number of checks the filter let through
+	 */
+	public long getPassed() {
+		return passed.sum();
+	}
+
+	/**
+	 * @return The number of checks the filter let through which were not words
+	 */
+	public long getFalsePositives() {
+		return falsePositives.sum();
+	}
+
+	/**
+	 * @return The fraction of absent words the filter let through, 0 before any were checked
+	 */
+	public double getFalsePositiveRate() {
+		long absent = getRejected() + getFalsePositives();
+		return (absent == 0) ? 0 : (double)getFalsePositives() / absent;
+	}
+
+	/**
+	 * @return The filter's size and statistics as one line
+	 */
+	public String summary() {
+		return String.format("%d KB, %d hashes: %d rejected, %d passed, %d false positives (%.3f%%)",
+				blocks * BLOCK_BYTES / 1024, hashes, getRejected(), getPassed(), getFalsePositives(),
+				100 * getFalsePositiveRate());
+	}
+
+	/**
+	 * Spreads a word's 32 bit hash over 64 bits, so that the block and the bits within it are
+	 * picked by different bits
+	 * @param wordHash The hash
+	 * @return The mixed hash
+	 */
+	private static long mix(int wordHash) {
+		long x = (wordHash & 0xFFFFFFFFL) * 0x9E3779B97F4A7C15L;
+		x ^= x >>> 29;
+		x *= 0xBF58476D1CE4E5B9L;
+		x ^= x >>> 32;
+		return x;
+	}
+
+	/**
+	 * @param x A mixed hash
+	 * @param round The number of probes already taken
+	 * @return Bits for the next PROBES_PER_LONG probes, from the top down
+	 */
+	private static long probes(long x, int round) {
+		long y = (x + round) * 0xC2B2AE3D27D4EB4FL;
+		return y ^ (y >>> 31);
+	}
+
+	/**
+	 * @param x A mixed hash
+	 * @return The block it picks, from its high bits, without needing a power of two of blocks
+	 */
+	private int block(long x) {
+		return (int)(((x >>> 32) * blocks) >>> 32);
+	}
+}
@@ -1,4 +1,14 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -6,6 +16,19 @@ import java.util.*;
  *
  */
 public class Classify {
+	//The Unix dictionary, and the snapshots of it and of its automaton which runs map instead
+	//of reading and building them
+	private static final String DICTIONARY = "/usr/share/dict/words/";
+	private static final String SNAPSHOT = new File(System.getProperty("user.home"), ".words.snapshot").getPath();
+	private static final String SCANNER_SNAPSHOT = new File(System.getProperty("user.home"), ".words.scanner").getPath();
+
+	/**
+	 * The checks of comprehensive8, in the order they are made, for reporting which one a
+	 * password failed
+	 */
+	public enum Rule {
+		LENGTH, UPPERCASE, LOWERCASE, DIGIT, SYMBOL, DICTIONARY
+	}
 
 	/**
 	 * Runs a comprehensive8 check (see Kelly et al) on pass using the input dictionary
@@ -22,13 +45,22 @@ public class Classify {
 	 * If the password passes all the above checks the function returns true
 	 * Otherwise it returns false
 	 * @param pass The password to evaluate
-	 * @param dictionary The dictionary to run checks against
+	 * @param dictionary The automaton of the dictionary to run checks against
 	 * @return Either true or false according to the above procedure
 	 */
-	public static boolean comprehensive8(String pass, WordList dictionary) {
+	public static boolean comprehensive8(String pass, WordScanner dictionary) {
+		return comprehensive8Failure(pass, dictionary) == null;
+	}
+
+	/**
+	 * Runs a comprehensive8 check as comprehensive8 does, reporting the first check failed
+	 * @param pass The password to evaluate
+	 * @param dictionary The automaton of the dictionary to run checks against
+	 * @return The first check the password failed, or null if it passes
+	 */
+	public static Rule comprehensive8Failure(String pass, WordScanner dictionary) {
 		int len = pass.length();
-		Character cha;
-		String chastring;
+		char cha;
 		boolean UppercaseFound = false;
 		boolean LowercaseFound = false;
 		boolean DigitFound = false;
@@ -36,7 +68,7 @@ public class Classify {
 		
 		// Check if password is at least 8 characters
 		if (len < 8) {
-			return false;
+			return Rule.LENGTH;
 		}
 		
 		// First pass: 
@@ -54,12 +86,21 @@ public class Classify {
 				DigitFound = Character.isDigit(cha);
 			}
 			if (!SymbolFound) {
-				chastring = cha.toString();
-				SymbolFound = chastring.matches("[^\\p{L}\\p{Nd}]+"); // Check for symbol with regex
+				// Same as matching [^\\p{L}\\p{Nd}] for every char, without a regex per char
+				SymbolFound = !Character.isLetter(cha) && !Character.isDigit(cha);
 			}
 		}	
-		if ((!UppercaseFound) || (!LowercaseFound) || (!DigitFound) || (!SymbolFound)) {
-			return false;
+		if (!UppercaseFound) {
+			return Rule.UPPERCASE;
+		}
+		if (!LowercaseFound) {
+			return Rule.LOWERCASE;
+		}
+		if (!DigitFound) {
+			return Rule.DIGIT;
+		}
+		if (!SymbolFound) {
+			return Rule.SYMBOL;
 		}
 		
 		// Doing a check on the entire number/symbol-stripped password is 
@@ -89,39 +130,12 @@ public class Classify {
 		// rather than checking password stripped of non-alphabetic characters.
 		// (Otherwise something like A!345bcdfgh, when stripped to Abcdfgh, 
 		// would ping as containing the word "Ab".) 
-		
-		String[] substrings = pass.split("[^\\p{Alpha}]"); 
-		// ^ Only works for English letters, but this is what the Unix dictionary has anyway
-	    List<String> substringsList = new ArrayList<String>();
-	    for(String s : substrings) {
-	       if(s != null && s.length() > 0) {
-	    	   substringsList.add(s);	// takes care of removing "" strings post-split
-	       }
-	    }
-	    substrings = substringsList.toArray(new String[substringsList.size()]);
-		
-		boolean lowercaseSubstringIsWord = false;
-		boolean capitalizedSubstringIsWord = false;
-		String subs = "";
-		String lowercaseSubs = "";
-		String capitalizedSubs = "";
-		for (int k = 0; k < substrings.length; k++) {
-			if (substrings[k].length() > 1) {
-			    for (int i = 2; i < substrings[k].length(); i++) {
-			        for (int j = 0; j+i <= substrings[k].length(); j++) {
-					  subs = substrings[k].substring(j, j+i); 
-					  lowercaseSubs = subs.toLowerCase();
-					  lowercaseSubstringIsWord = dictionary.contains(lowercaseSubs);
-					  capitalizedSubs = capitalize(subs);
-					  capitalizedSubstringIsWord = dictionary.contains(capitalizedSubs);
-					  
-					  // No words in Unix dictionary that are neither capitalized nor lowercase
-					  if (lowercaseSubstringIsWord || capitalizedSubstringIsWord) {
-						  return false;
-					  }
-			        }
-			    }
-			}
+		// Each substring is checked lowercased and capitalized, as before, but the automaton
+		// finds them all in one pass over the password instead of looking each one up.
+		// As before, a whole substring is not itself checked, only the pieces of it.
+		// Only works for English letters, but this is what the Unix dictionary has anyway
+		if (dictionary.containsWord(pass)) {
+			return Rule.DICTIONARY;
 		}
 		
 		// These shouldn't be needed with the substring checking: rather, it is inconsistent
@@ -152,7 +166,7 @@ public class Classify {
 		}
 		*/
 		
-		return true;
+		return null;
 	}
 	
 	/**
@@ -175,22 +189,86 @@ public class Classify {
 		return cap;
 	}
 	
+	/**
+	 * Classifies every line of a file, or of standard input, on several threads, writing the
+	 * results in order and then a summary to standard error. Exits with status 1 and a message
+	 * on standard error if the options are invalid or the input cannot be classified
+	 * @param scanner The automaton of the dictionary
+	 * @param args The command line: batch=<file or -> [threads=<n>] [chunk=<passwords>] [out=<file>]
+	 */
+	public static void batch(WordScanner scanner, String[] args) {
+		Map<String,String> options = new HashMap<String,String>();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (split > 0) {
+				options.put(arg.substring(0, split).toLowerCase(), arg.substring(split + 1));
+			}
+		}
+		String in = options.get("batch");
+		String out = options.get("out");
+		int threads = positive(options.get("threads"), Runtime.getRuntime().availableProcessors());
+		int chunk = positive(options.get("chunk"), BatchClassifier.DEFAULT_CHUNK);
+		if (in.isEmpty() || threads == 0 || chunk == 0) {
+			System.err.println("Usage: classify batch=<file or -> [threads=<n>] [chunk=<passwords>] [out=<file>]");
+			System.err.println("       threads and chunk must be positive whole numbers");
+			System.exit(1);
+		}
+		BatchClassifier classifier = new BatchClassifier(scanner, threads, chunk);
+		try (BufferedReader input = new BufferedReader(new InputStreamReader(
+					in.equals("-") ? System.in : new FileInputStream(in), StandardCharsets.UTF_8));
+				Writer output = new BufferedWriter(new OutputStreamWriter(
+					(out == null) ? System.out : new FileOutputStream(out), StandardCharsets.UTF_8), 1 << 16)) {
+			classifier.run(input, output);
+		} catch (FileNotFoundException e) {
+			System.err.println("File not found: " + e.getMessage());
+			System.exit(1);
+		} catch (IOException | IllegalStateException e) {
+			System.err.println("Batch classification failed: " + e);
+			System.exit(1);
+		}
+		System.err.print(classifier.summary());
+	}
+
+	/**
+	 * Reads a numeric option
+	 * @param value The option's value, or null if it was not given
+	 * @param defaultValue The value to use if it was not given
+	 * @return The option as a number, defaultValue if it was not given, or 0 if it is not a
+	 * positive whole number
+	 */
+	private static int positive(String value, int defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Math.max(0, Integer.parseInt(value.trim()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
 	/**
 	 * Main driver method
+	 * Call as classify <password>, or classify batch=<file or -> [threads=<n>] [chunk=<passwords>]
+	 * [out=<file>] to classify every line of a file
 	 */
 	public static void main(String[] args) {
 		if(args.length == 0) {
 			System.out.println("Usage: classify <password>");
+			System.out.println("       classify batch=<file or -> [threads=<n>] [chunk=<passwords>] [out=<file>]");
 			System.exit(0);
 		}
 		
 		//long starttime = System.currentTimeMillis();
 		
-		//Load unix dictionary as wordlist
+		//Load unix dictionary as wordlist and its automaton, from their snapshots when those
+		//are up to date
 		WordList w = new WordList();
+		WordScanner scanner = null;
 		try {
 			//long loadStart = System.currentTimeMillis();
-			w.loadFromFile("/usr/share/dict/words/");
+			w.load(DICTIONARY, SNAPSHOT);
+			scanner = WordScanner.load(w, DICTIONARY, SCANNER_SNAPSHOT);
 			//long loadEnd = System.currentTimeMillis();
 			//System.out.format("Finished Loading File. Load time: %d\n", loadEnd - loadStart);
 		} catch (FileNotFoundException e) {
@@ -198,6 +276,11 @@ public class Classify {
 			System.exit(0);
 		}
 		
+		if (args[0].startsWith("batch=")) {
+			batch(scanner, args);
+			return;
+		}
+		
 		//Run comprehensive8 and basic16 on first command line arg. Returns strong if either passes
 		// Runs basic16 first, to prevent passwords already designated strong 
 		// from being checked again, and potentially requiring 
@@ -208,7 +291,7 @@ public class Classify {
 			System.out.println("strong");
 		}
 		else {
-			passesComprehensive8 = comprehensive8(args[0], w);
+			passesComprehensive8 = comprehensive8(args[0], scanner);
 			System.out.println(passesComprehensive8 ? "strong" : "weak");
 			//System.out.println("Time elapsed: " + (System.currentTimeMillis() - starttime));
 		}
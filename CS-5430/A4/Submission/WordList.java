@@ -3,49 +3,88 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * A class representing a large wordlist which can be queried
  * Has utility methods for reading in its contents from a file
+ * The words are kept outside the Java heap in one buffer, as their UTF-8 bytes each preceded by
+ * its length, with an open addressing hash table of where each word starts.
+ * That costs about the size of the file plus eight bytes a word, where a HashSet costs a String,
+ * its array and a hash node per word, and checking a word allocates nothing.
+ * The buffers can be saved as a snapshot file, which later runs map instead of reading the
+ * wordlist, so they start without loading anything and share one copy in the page cache.
+ * A blocked Bloom filter can be put in front of the table, to answer most checks of words
+ * which are not in the list from one cache line where a miss would otherwise probe the table
+ * until a free slot. It only pays once the table no longer fits in cache, so it is built only
+ * when a false positive rate is set, and a snapshot holds it only if one was.
  * @author reubenrappaport
  *
  */
 public class WordList {
-	//The set of words in the list
-	Set<String> wordlist;
-	
-	// We initialize the set with an initial capacity equal to the expected size / load factor 
-	// in order to avoid having to expand it
-	// private static final int EXPECTED_SIZE = (int)5.1e6; // for OpenWall wordlist
-	// private static final int EXPECTED_SIZE = 236000; // for Unix dictionary
-	private static final int EXPECTED_SIZE = 314700; // 236000 / 0.75 load factor
-	
-	//The load factor with which we initialize the set
-	private static final float LOAD_FACTOR = 0.75f;
-	
-	/**
-	 * Constructor. Initialized the hash set using the parameters defined above
-	 */
-	public WordList() {
-		wordlist = new HashSet<String>(EXPECTED_SIZE, LOAD_FACTOR);
-	}
-	
-	/**
-	 * Loads the wordlist from a file
+	//Marks a free slot in the table, which otherwise holds a word's position plus one
+	private static final int EMPTY = 0;
+
+	//The table is kept at most half full, since most lookups are misses and a miss probes
+	//until it finds a free slot
+	private static final int SLOTS_PER_WORD = 2;
+
+	//Constants of the FNV-1a hash
+	private static final int FNV_OFFSET = 0x811C9DC5;
+	private static final int FNV_PRIME = 0x01000193;
+
+	//Snapshot header: magic, version, source length and modification time, size, longest
+	//word, the lengths of the words and the table, then the filter's blocks and hashes. The
+	//table follows the words, aligned, and the filter follows the table on a cache line
+	private static final int SNAPSHOT_MAGIC = 0x57524453; //"WRDS"
+	private static final int SNAPSHOT_VERSION = 2;
+	private static final int SNAPSHOT_HEADER = 48;
+
+	//Each thread's buffer for encoding the word being looked up
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>();
+
+	//The words in the order first loaded, each as its length and then its UTF-8 bytes
+	private ByteBuffer words = ByteBuffer.allocateDirect(0);
+
+	//One more than the position in words of each word, at the slot its hash picks or the next
+	//free one after it. Little endian, as in snapshots
+	private IntBuffer table = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+
+	//The number of words and the length in bytes of the longest
+	private int size = 0;
+	private int maxLength = 0;
+
+	//The filter's false positive rate, 0 for no filter, and the filter of the words loaded
+	private double falsePositiveRate = 0;
+	private BloomFilter filter = null;
+
+	/**
+	 * Loads the wordlist from a file, adding to any words already loaded
 	 * @param filename The file from which to load
 	 * @throws FileNotFoundException If the file does not exist
 	 */
 	public void loadFromFile(String filename) throws FileNotFoundException {
 		File file = new File(filename);
 		BufferedReader reader = new BufferedReader(new FileReader(file));
+		Builder builder = new Builder();
+		builder.addAll(this);
 		String s;
 		try {
 			s = reader.readLine();
 			while(s != null) {
 				if (s.length() > 0 && s.charAt(0) != '#') { //Check if the line is a comment
-					wordlist.add(s);
+					builder.add(s.getBytes(StandardCharsets.UTF_8));
 				}
 				s = reader.readLine();
 			}
@@ -53,14 +92,635 @@ public class WordList {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		builder.build(this);
+	}
+
+	/**
+	 * Loads the wordlist from a snapshot of a file if the snapshot is up to date, otherwise
+	 * from the file itself, then writing the snapshot for next time. Replaces any words
+	 * already loaded
+	 * @param filename The file from which to load
+	 * @param snapshot The snapshot of the file
+	 * @throws FileNotFoundException If the file does not exist
+	 */
+	public void load(String filename, String snapshot) throws FileNotFoundException {
+		File file = new File(filename);
+		if (!file.isFile()) {
+			throw new FileNotFoundException(filename);
+		}
+		try {
+			if (loadSnapshot(snapshot, file)) {
+				return;
+			}
+		} catch (IOException e) {
+			System.err.println("Could not read snapshot " + snapshot + ": " + e.getMessage());
+		}
+		words = ByteBuffer.allocateDirect(0);
+		size = 0;
+		loadFromFile(filename);
+		try {
+			writeSnapshot(snapshot, file);
+		} catch (IOException e) {
+			System.err.println("Could not write snapshot " + snapshot + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Maps a snapshot as the wordlist, replacing any words already loaded, if it was written
+	 * from the source file as it is now
+	 * @param snapshot The snapshot
+	 * @param source The file the snapshot should have been written from
+	 * @return Whether the snapshot was loaded, false if it is missing, stale or not a snapshot
+	 * @throws IOException If the snapshot cannot be read
+	 */
+	public boolean loadSnapshot(String snapshot, File source) throws IOException {
+		File file = new File(snapshot);
+		if (!file.isFile()) {
+			return false;
+		}
+		ByteBuffer mapped;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < SNAPSHOT_HEADER || channel.size() > Integer.MAX_VALUE) {
+				return false;
+			}
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (mapped.getInt(0) != SNAPSHOT_MAGIC || mapped.getInt(4) != SNAPSHOT_VERSION
+				|| mapped.getLong(8) != source.length() || mapped.getLong(16) != source.lastModified()) {
+			return false;
+		}
+		int wordsLength = mapped.getInt(32);
+		int slots = mapped.getInt(36);
+		int blocks = mapped.getInt(40);
+		int hashes = mapped.getInt(44);
+		int tableStart = align(SNAPSHOT_HEADER + wordsLength);
+		long filterStart = alignBlock(tableStart + 4L * slots);
+		if (wordsLength < 0 || slots <= 0 || Integer.bitCount(slots) != 1 || blocks < 0
+				|| filterStart + (long)BloomFilter.BLOCK_BYTES * blocks != mapped.capacity()) {
+			return false;
+		}
+		words = slice(mapped, SNAPSHOT_HEADER, wordsLength);
+		table = slice(mapped, tableStart, 4 * slots).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		size = mapped.getInt(24);
+		maxLength = mapped.getInt(28);
+		//A filter built for another rate is rebuilt, which is quick next to loading the words
+		if (falsePositiveRate > 0 && blocks > 0 && hashes == BloomFilter.hashesFor(falsePositiveRate)
+				&& blocks == BloomFilter.blocksFor(size, falsePositiveRate)) {
+			filter = new BloomFilter(slice(mapped, (int)filterStart, BloomFilter.BLOCK_BYTES * blocks), hashes);
+		}
+		else {
+			buildFilter();
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the wordlist as a snapshot which loadSnapshot can map. The snapshot is written
+	 * to a temporary file and then moved into place, so a process mapping it never sees it
+	 * half written
+	 * @param snapshot The snapshot
+	 * @param source The file the wordlist was loaded from, whose length and modification time
+	 * are recorded so that a stale snapshot can be recognised
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	public void writeSnapshot(String snapshot, File source) throws IOException {
+		Path target = new File(snapshot).getAbsoluteFile().toPath();
+		int wordsLength = words.capacity();
+		int slots = table.capacity();
+		ByteBuffer filterBytes = (filter != null) ? filter.getBits() : ByteBuffer.allocate(0);
+		ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER);
+		header.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION);
+		header.putLong(source.length()).putLong(source.lastModified());
+		header.putInt(size).putInt(maxLength).putInt(wordsLength).putInt(slots);
+		header.putInt((filter != null) ? filter.getBlocks() : 0).putInt((filter != null) ? filter.getHashes() : 0);
+		header.flip();
+		int tableStart = align(SNAPSHOT_HEADER + wordsLength);
+		ByteBuffer padding = ByteBuffer.allocate(tableStart - SNAPSHOT_HEADER - wordsLength);
+		ByteBuffer tableBytes = ByteBuffer.allocate(4 * slots).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < slots; i++) {
+			tableBytes.putInt(table.get(i));
+		}
+		tableBytes.flip();
+		ByteBuffer filterPadding = ByteBuffer.allocate((int)(alignBlock(tableStart + 4L * slots) - tableStart - 4L * slots));
+
+		Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				ByteBuffer[] parts = {header, slice(words, 0, wordsLength), padding, tableBytes, filterPadding, filterBytes};
+				long total = SNAPSHOT_HEADER + wordsLength + padding.capacity() + tableBytes.capacity()
+						+ filterPadding.capacity() + filterBytes.capacity();
+				long written = 0;
+				while (written < total) {
+					written += channel.write(parts);
+				}
+			}
+			Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Compiles a wordlist into a snapshot, for running ahead of time
+	 * Call as WordList <wordlist> <snapshot>
+	 */
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.out.println("Usage: WordList <wordlist> <snapshot>");
+			System.exit(0);
+		}
+		WordList w = new WordList();
+		try {
+			long start = System.nanoTime();
+			w.loadFromFile(args[0]);
+			w.writeSnapshot(args[1], new File(args[0]));
+			System.out.format("Wrote %d words to %s in %d ms\n", w.size(), args[1],
+					(System.nanoTime() - start) / 1000000);
+		} catch (FileNotFoundException e) {
+			System.out.println("Wordlist not found.");
+		} catch (IOException e) {
+			System.out.println("Could not write snapshot: " + e.getMessage());
+		}
 	}
-	
+
 	/**
 	 * Returns true if the wordlist contains s false otherwise
 	 * @param s The string to check if the wordlist contains
 	 * @return True if the wordlist contains s false otherwise
 	 */
 	public boolean contains(String s) {
-		return wordlist.contains(s);
+		//Every char takes at least one byte
+		if (s.length() > maxLength) {
+			return false;
+		}
+		//Most words are ASCII, whose chars are their bytes, so hash and compare the chars directly
+		int h = FNV_OFFSET;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				return containsEncoded(s);
+			}
+			h = (h ^ c) * FNV_PRIME;
+		}
+		h = finish(h);
+		if (filter != null && !filter.mightContain(h)) {
+			return false;
+		}
+		int mask = table.capacity() - 1;
+		for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+			int position = table.get(slot);
+			if (position == EMPTY) {
+				missed();
+				return false;
+			}
+			if (matches(position - 1, s)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Looks up a word which is not all ASCII by its UTF-8 encoding
+	 * @param s The word
+	 * @return Whether the list contains it
+	 */
+	private boolean containsEncoded(String s) {
+		byte[] bytes = scratch.get();
+		if (bytes == null || bytes.length < maxLength) {
+			bytes = new byte[maxLength];
+			scratch.set(bytes);
+		}
+		int length = encode(s, bytes, maxLength);
+		if (length < 0) {
+			return false;
+		}
+		int h = hash(bytes, 0, length);
+		if (filter != null && !filter.mightContain(h)) {
+			return false;
+		}
+		int mask = table.capacity() - 1;
+		for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+			int position = table.get(slot);
+			if (position == EMPTY) {
+				missed();
+				return false;
+			}
+			if (matches(position - 1, bytes, length)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Counts a word the filter let through which was not in the table
+	 */
+	private void missed() {
+		if (filter != null) {
+			filter.falsePositive();
+		}
+	}
+
+	/**
+	 * Sets the false positive rate of the Bloom filter in front of the table, rebuilding the
+	 * filter of any words already loaded. There is no filter until this is called. Smaller rates
+	 * take more memory, about 1.3 bytes a word at 1% and 2.8 bytes at 0.01%
+	 * @param rate The rate, or 0 for no filter
+	 */
+	public void setFalsePositiveRate(double rate) {
+		if (rate < 0 || rate >= 1) {
+			throw new IllegalArgumentException("False positive rate must be at least 0 and below 1: " + rate);
+		}
+		falsePositiveRate = rate;
+		buildFilter();
+	}
+
+	/**
+	 * @return The Bloom filter in front of the table, whose statistics count the checks since it
+	 * was built, or null if there is none
+	 */
+	public BloomFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Builds the filter of the words loaded, at the rate set
+	 */
+	private void buildFilter() {
+		if (falsePositiveRate == 0 || size == 0) {
+			filter = null;
+			return;
+		}
+		int[] hashes = new int[size];
+		byte[] word = new byte[maxLength];
+		int position = 0;
+		for (int i = 0; i < size; i++) {
+			int length = readLength(words, position);
+			int start = position + lengthSize(length);
+			for (int j = 0; j < length; j++) {
+				word[j] = words.get(start + j);
+			}
+			hashes[i] = hash(word, 0, length);
+			position = start + length;
+		}
+		filter = new BloomFilter(hashes, size, falsePositiveRate);
+	}
+
+	/**
+	 * @return The number of distinct words in the list
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Every word in the list, in the order first loaded
+	 */
+	public List<String> toList() {
+		List<String> list = new ArrayList<String>(size);
+		int position = 0;
+		for (int i = 0; i < size; i++) {
+			int length = readLength(words, position);
+			int start = position + lengthSize(length);
+			byte[] word = new byte[length];
+			for (int j = 0; j < length; j++) {
+				word[j] = words.get(start + j);
+			}
+			list.add(new String(word, StandardCharsets.UTF_8));
+			position = start + length;
+		}
+		return list;
+	}
+
+	/**
+	 * @param position A position in a snapshot
+	 * @return The position rounded up to a multiple of four
+	 */
+	private static int align(int position) {
+		return (position + 3) & ~3;
+	}
+
+	/**
+	 * @param position A position in a snapshot
+	 * @return The position rounded up to a whole Bloom filter block, so blocks lie on cache lines
+	 */
+	private static long alignBlock(long position) {
+		return (position + BloomFilter.BLOCK_BYTES - 1) & ~(long)(BloomFilter.BLOCK_BYTES - 1);
+	}
+
+	/**
+	 * Takes part of a buffer as a buffer of its own
+	 * @param buffer The buffer
+	 * @param start Where the part starts
+	 * @param length The length of the part
+	 * @return The part, whose position 0 is start in buffer
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int start, int length) {
+		ByteBuffer part = buffer.duplicate();
+		part.limit(start + length);
+		part.position(start);
+		return part.slice();
+	}
+
+	/**
+	 * Checks whether the word at a position is an ASCII string
+	 * @param position The position of the word's length in words
+	 * @param s The string, all ASCII
+	 * @return Whether they are the same
+	 */
+	private boolean matches(int position, String s) {
+		int length = s.length();
+		if (readLength(words, position) != length) {
+			return false;
+		}
+		int start = position + lengthSize(length);
+		for (int i = 0; i < length; i++) {
+			if (words.get(start + i) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether the word at a position has the given bytes
+	 * @param position The position of the word's length in words
+	 * @param bytes The bytes to compare with
+	 * @param length The number of bytes to compare
+	 * @return Whether they are the same
+	 */
+	private boolean matches(int position, byte[] bytes, int length) {
+		int wordLength = readLength(words, position);
+		if (wordLength != length) {
+			return false;
+		}
+		int start = position + lengthSize(length);
+		for (int i = 0; i < length; i++) {
+			if (words.get(start + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes a string as UTF-8 as String.getBytes does, replacing unpaired surrogates with '?'
+	 * @param s The string
+	 * @param out Where to write the bytes
+	 * @param limit The most bytes to write
+	 * @return The number of bytes written, or -1 if the encoding is longer than limit
+	 */
+	private static int encode(String s, byte[] out, int limit) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			int c = s.charAt(i);
+			int bytes;
+			if (c < 0x80) {
+				bytes = 1;
+			}
+			else if (c < 0x800) {
+				bytes = 2;
+			}
+			else if (!Character.isSurrogate((char)c)) {
+				bytes = 3;
+			}
+			else if (Character.isHighSurrogate((char)c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				c = Character.toCodePoint((char)c, s.charAt(++i));
+				bytes = 4;
+			}
+			else {
+				c = '?';
+				bytes = 1;
+			}
+			if (length + bytes > limit) {
+				return -1;
+			}
+			switch(bytes) {
+			case 1:
+				out[length++] = (byte)c;
+				break;
+			case 2:
+				out[length++] = (byte)(0xC0 | (c >> 6));
+				out[length++] = (byte)(0x80 | (c & 0x3F));
+				break;
+			case 3:
+				out[length++] = (byte)(0xE0 | (c >> 12));
+				out[length++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				out[length++] = (byte)(0x80 | (c & 0x3F));
+				break;
+			default:
+				out[length++] = (byte)(0xF0 | (c >> 18));
+				out[length++] = (byte)(0x80 | ((c >> 12) & 0x3F));
+				out[length++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				out[length++] = (byte)(0x80 | (c & 0x3F));
+				break;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Hashes a word's bytes with FNV-1a
+	 * @param bytes The array holding the word
+	 * @param offset Where the word starts
+	 * @param length The length of the word
+	 * @return The hash
+	 */
+	private static int hash(byte[] bytes, int offset, int length) {
+		int h = FNV_OFFSET;
+		for (int i = offset; i < offset + length; i++) {
+			h = (h ^ (bytes[i] & 0xFF)) * FNV_PRIME;
+		}
+		return finish(h);
+	}
+
+	/**
+	 * Mixes the high bits of an FNV-1a hash into the low bits used for the slot
+	 * @param h The hash
+	 * @return The finished hash
+	 */
+	private static int finish(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * Reads a word's length, stored seven bits a byte with the high bit set on all but the last
+	 * @param buffer The buffer
+	 * @param position Where the length starts
+	 * @return The length
+	 */
+	private static int readLength(ByteBuffer buffer, int position) {
+		int length = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get(position++);
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return length;
+	}
+
+	/**
+	 * Writes a word's length as readLength reads it
+	 * @param out The array to write to
+	 * @param position Where to write
+	 * @param length The length
+	 * @return The position after the length
+	 */
+	private static int writeLength(byte[] out, int position, int length) {
+		while (length >= 0x80) {
+			out[position++] = (byte)(0x80 | (length & 0x7F));
+			length >>>= 7;
+		}
+		out[position++] = (byte)length;
+		return position;
+	}
+
+	/**
+	 * @param length A word's length
+	 * @return The number of bytes its length takes
+	 */
+	private static int lengthSize(int length) {
+		int bytes = 1;
+		while (length >= 0x80) {
+			length >>>= 7;
+			bytes++;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Gathers words on the heap while a list is loaded, then drops duplicates and lays them out
+	 * as the list's buffers, copying them off the heap only once they are built
+	 */
+	private static class Builder {
+		private byte[] data = new byte[1 << 16];
+		private int dataLength = 0;
+		private int[] starts = new int[1 << 12];
+		private int[] lengths = new int[1 << 12];
+		private int count = 0;
+
+		/**
+		 * Adds a word
+		 * @param word Its UTF-8 bytes
+		 */
+		void add(byte[] word) {
+			reserve(word.length);
+			System.arraycopy(word, 0, data, dataLength, word.length);
+			append(word.length);
+		}
+
+		/**
+		 * Adds every word already in a list
+		 * @param list The list
+		 */
+		void addAll(WordList list) {
+			int position = 0;
+			for (int i = 0; i < list.size; i++) {
+				int length = readLength(list.words, position);
+				int start = position + lengthSize(length);
+				reserve(length);
+				for (int j = 0; j < length; j++) {
+					data[dataLength + j] = list.words.get(start + j);
+				}
+				append(length);
+				position = start + length;
+			}
+		}
+
+		/**
+		 * Makes room for a word
+		 * @param length The word's length
+		 */
+		private void reserve(int length) {
+			if (dataLength + length > data.length) {
+				data = Arrays.copyOf(data, Math.max(2 * data.length, dataLength + length));
+			}
+			if (count == starts.length) {
+				starts = Arrays.copyOf(starts, 2 * count);
+				lengths = Arrays.copyOf(lengths, 2 * count);
+			}
+		}
+
+		/**
+		 * Records the word just copied to the end of data
+		 * @param length The word's length
+		 */
+		private void append(int length) {
+			starts[count] = dataLength;
+			lengths[count] = length;
+			dataLength += length;
+			count++;
+		}
+
+		/**
+		 * Replaces a list's contents with the words gathered
+		 * @param list The list
+		 */
+		void build(WordList list) {
+			long bytes = 0;
+			for (int i = 0; i < count; i++) {
+				bytes += lengthSize(lengths[i]) + lengths[i];
+			}
+			if (bytes > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Word list too large");
+			}
+			byte[] words = new byte[(int)bytes];
+			ByteBuffer wordsBuffer = ByteBuffer.wrap(words);
+			int slots = Integer.highestOneBit(Math.max(1, SLOTS_PER_WORD * count - 1)) << 1;
+			int[] table = new int[slots];
+			int[] hashes = new int[count];
+			int position = 0;
+			int unique = 0;
+			int maxLength = 0;
+			for (int word = 0; word < count; word++) {
+				int h = hash(data, starts[word], lengths[word]);
+				int slot = h & (slots - 1);
+				while (table[slot] != EMPTY && !same(wordsBuffer, table[slot] - 1, word)) {
+					slot = (slot + 1) & (slots - 1);
+				}
+				if (table[slot] != EMPTY) {
+					continue; //Duplicate
+				}
+				table[slot] = position + 1;
+				position = writeLength(words, position, lengths[word]);
+				System.arraycopy(data, starts[word], words, position, lengths[word]);
+				position += lengths[word];
+				hashes[unique] = h;
+				unique++;
+				maxLength = Math.max(maxLength, lengths[word]);
+			}
+			list.words = ByteBuffer.allocateDirect(position).put(words, 0, position);
+			list.table = ByteBuffer.allocateDirect(4 * slots).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(table);
+			list.size = unique;
+			list.maxLength = maxLength;
+			list.filter = (list.falsePositiveRate > 0 && unique > 0)
+					? new BloomFilter(hashes, unique, list.falsePositiveRate) : null;
+		}
+
+		/**
+		 * Checks whether a word already laid out is the same as a gathered word
+		 * @param words The words laid out so far
+		 * @param position The position of the word laid out
+		 * @param word The index of the gathered word
+		 * @return Whether they are the same
+		 */
+		private boolean same(ByteBuffer words, int position, int word) {
+			int length = readLength(words, position);
+			if (length != lengths[word]) {
+				return false;
+			}
+			int start = position + lengthSize(length);
+			for (int i = 0; i < length; i++) {
+				if (words.get(start + i) != data[starts[word] + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
 	}
 }
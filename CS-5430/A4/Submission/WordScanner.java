@@ -0,0 +1,523 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An Aho-Corasick automaton over the words of a WordList, for finding every dictionary word
+ * inside a password in one pass
+ * Only runs of ASCII letters are searched, as when the password is split on [^\p{Alpha}], and a
+ * word matches a piece of a run the way comprehensive8 has always checked them: a lowercase word
+ * matches in any case, and a word starting with a capital matches when the first letter matches
+ * in either case and the rest match exactly. As in that check, a word which is a whole run is
+ * not counted, only words inside a longer run. The automaton runs on letters folded to lowercase
+ * and the case of a match is checked against a bitmask of which of the last 64 letters were
+ * capitals, so a scan allocates nothing. Words of one letter, longer than 63 letters or with
+ * anything but ASCII letters in them can never match and are left out.
+ * The automaton is a handful of flat arrays. Building it takes about a second for the Unix
+ * dictionary, so like the WordList it is saved as a snapshot which later runs map.
+ */
+public class WordScanner {
+	//Longest word which can be matched, so that its case fits in the mask
+	private static final int MAX_LENGTH = 63;
+
+	//What ends at a node: an all lowercase word, a capitalized word, or a word with other capitals
+	private static final byte LOWER = 1;
+	private static final byte CAPITALIZED = 2;
+	private static final byte MIXED = 4;
+
+	//Snapshot header: magic, version, source length and modification time, then the number of
+	//nodes, edges and mixed case masks. The masks follow, then the int arrays and the byte
+	//arrays, all little endian so that the longs stay aligned
+	private static final int SNAPSHOT_MAGIC = 0x5753434E; //"WSCN"
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final int SNAPSHOT_HEADER = 40;
+
+	//Children of node n are edges childStart[n] to childStart[n + 1], sorted by letter
+	private final IntBuffer childStart;
+	private final ByteBuffer childLetter;
+	private final IntBuffer childNode;
+
+	//Longest proper suffix of each node which is also in the trie, and the nearest node on that
+	//chain at which a word ends, 0 for none
+	private final IntBuffer fail;
+	private final IntBuffer output;
+
+	//The length of each node's string and what ends there
+	private final ByteBuffer depth;
+	private final ByteBuffer ends;
+
+	//Case masks of the words with MIXED capitals, sorted by node
+	private final IntBuffer mixedNode;
+	private final LongBuffer mixedMask;
+
+	/**
+	 * Builds the automaton
+	 * @param dictionary The words to find
+	 */
+	public WordScanner(WordList dictionary) {
+		//Build the trie of the words which can match, folded to lowercase, with nodes numbered
+		//as they are created and each node's children as a list
+		int capacity = 1024;
+		int[] firstChild = new int[capacity];
+		int[] nextSibling = new int[capacity];
+		byte[] letter = new byte[capacity];
+		byte[] nodeDepth = new byte[capacity];
+		byte[] nodeEnds = new byte[capacity];
+		int nodes = 1;
+		List<long[]> mixed = new ArrayList<long[]>();
+		for (String word : dictionary.toList()) {
+			//A word with a capital after a lowercase first letter can never match
+			long mask = caseMask(word);
+			if (word.length() < 2 || word.length() > MAX_LENGTH || !isLetters(word)
+					|| (mask != 0 && !Character.isUpperCase(word.charAt(0)))) {
+				continue;
+			}
+			int node = 0;
+			for (int i = 0; i < word.length(); i++) {
+				byte next = (byte)(Character.toLowerCase(word.charAt(i)) - 'a');
+				int child = firstChild[node];
+				while (child != 0 && letter[child] != next) {
+					child = nextSibling[child];
+				}
+				if (child == 0) {
+					if (nodes == capacity) {
+						capacity *= 2;
+						firstChild = Arrays.copyOf(firstChild, capacity);
+						nextSibling = Arrays.copyOf(nextSibling, capacity);
+						letter = Arrays.copyOf(letter, capacity);
+						nodeDepth = Arrays.copyOf(nodeDepth, capacity);
+						nodeEnds = Arrays.copyOf(nodeEnds, capacity);
+					}
+					child = nodes++;
+					letter[child] = next;
+					nodeDepth[child] = (byte)(i + 1);
+					nextSibling[child] = firstChild[node];
+					firstChild[node] = child;
+				}
+				node = child;
+			}
+			if (mask == 0) {
+				nodeEnds[node] |= LOWER;
+			}
+			else if (mask == 1L << (word.length() - 1)) {
+				nodeEnds[node] |= CAPITALIZED;
+			}
+			else {
+				nodeEnds[node] |= MIXED;
+				mixed.add(new long[] {node, mask & ~(1L << (word.length() - 1))});
+			}
+		}
+
+		//Renumber the nodes in breadth first order, so that each node's children are the edges
+		//up to the next node's and the failure links can be built in order of node
+		int[] starts = new int[nodes + 1];
+		int[] targets = new int[nodes - 1];
+		byte[] letters = new byte[nodes - 1];
+		int[] queue = new int[nodes];
+		int[] renumbered = new int[nodes];
+		int[] children = new int[26];
+		int tail = 1;
+		int edges = 0;
+		for (int head = 0; head < nodes; head++) {
+			int node = queue[head];
+			starts[head] = edges;
+			//Lay the children out in order of letter
+			int count = 0;
+			for (int child = firstChild[node]; child != 0; child = nextSibling[child]) {
+				int i = count++;
+				while (i > 0 && letter[children[i - 1]] > letter[child]) {
+					children[i] = children[i - 1];
+					i--;
+				}
+				children[i] = child;
+			}
+			for (int i = 0; i < count; i++) {
+				int child = children[i];
+				renumbered[child] = tail;
+				queue[tail++] = child;
+				targets[edges] = renumbered[child];
+				letters[edges] = letter[child];
+				edges++;
+			}
+		}
+		starts[nodes] = edges;
+		byte[] nodeDepths = new byte[nodes];
+		byte[] nodeKinds = new byte[nodes];
+		for (int i = 0; i < nodes; i++) {
+			nodeDepths[i] = nodeDepth[queue[i]];
+			nodeKinds[i] = nodeEnds[queue[i]];
+		}
+		childStart = IntBuffer.wrap(starts);
+		childLetter = ByteBuffer.wrap(letters);
+		childNode = IntBuffer.wrap(targets);
+		depth = ByteBuffer.wrap(nodeDepths);
+		ends = ByteBuffer.wrap(nodeKinds);
+
+		//Failure and output links. A node's suffixes are shallower, so have lower numbers
+		int[] failure = new int[nodes];
+		int[] out = new int[nodes];
+		for (int node = 0; node < nodes; node++) {
+			for (int edge = starts[node]; edge < starts[node + 1]; edge++) {
+				int child = targets[edge];
+				int f = 0;
+				if (node != 0) {
+					f = failure[node];
+					while (f != 0 && step(f, letters[edge]) == 0) {
+						f = failure[f];
+					}
+					f = step(f, letters[edge]);
+				}
+				failure[child] = f;
+				out[child] = (nodeKinds[f] != 0) ? f : out[f];
+			}
+		}
+		fail = IntBuffer.wrap(failure);
+		output = IntBuffer.wrap(out);
+
+		//Mixed case masks, sorted by their renumbered node for binary search
+		long[][] sorted = mixed.toArray(new long[mixed.size()][]);
+		for (long[] entry : sorted) {
+			entry[0] = renumbered[(int)entry[0]];
+		}
+		Arrays.sort(sorted, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[0], b[0]);
+			}
+		});
+		int[] mixedNodes = new int[sorted.length];
+		long[] mixedMasks = new long[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			mixedNodes[i] = (int)sorted[i][0];
+			mixedMasks[i] = sorted[i][1];
+		}
+		mixedNode = IntBuffer.wrap(mixedNodes);
+		mixedMask = LongBuffer.wrap(mixedMasks);
+	}
+
+	/**
+	 * Wraps the sections of a mapped snapshot
+	 * @param buffers The sections, in the order they are written
+	 */
+	private WordScanner(ByteBuffer[] buffers) {
+		mixedMask = buffers[0].asLongBuffer();
+		childStart = buffers[1].asIntBuffer();
+		childNode = buffers[2].asIntBuffer();
+		fail = buffers[3].asIntBuffer();
+		output = buffers[4].asIntBuffer();
+		mixedNode = buffers[5].asIntBuffer();
+		childLetter = buffers[6];
+		depth = buffers[7];
+		ends = buffers[8];
+	}
+
+	/**
+	 * Maps the automaton for a wordlist from its snapshot if that is up to date, otherwise
+	 * builds it and writes the snapshot for next time
+	 * @param dictionary The words to find
+	 * @param filename The file the words were loaded from
+	 * @param snapshot The snapshot of the automaton
+	 * @return The automaton
+	 */
+	public static WordScanner load(WordList dictionary, String filename, String snapshot) {
+		File source = new File(filename);
+		try {
+			WordScanner mapped = loadSnapshot(snapshot, source);
+			if (mapped != null) {
+				return mapped;
+			}
+		} catch (IOException e) {
+			System.err.println("Could not read snapshot " + snapshot + ": " + e.getMessage());
+		}
+		WordScanner scanner = new WordScanner(dictionary);
+		try {
+			scanner.writeSnapshot(snapshot, source);
+		} catch (IOException e) {
+			System.err.println("Could not write snapshot " + snapshot + ": " + e.getMessage());
+		}
+		return scanner;
+	}
+
+	/**
+	 * Maps a snapshot as an automaton, if it was written from the source file as it is now
+	 * @param snapshot The snapshot
+	 * @param source The file the snapshot's words should have been loaded from
+	 * @return The automaton, or null if the snapshot is missing, stale or not a snapshot
+	 * @throws IOException If the snapshot cannot be read
+	 */
+	public static WordScanner loadSnapshot(String snapshot, File source) throws IOException {
+		File file = new File(snapshot);
+		if (!file.isFile()) {
+			return null;
+		}
+		ByteBuffer mapped;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < SNAPSHOT_HEADER || channel.size() > Integer.MAX_VALUE) {
+				return null;
+			}
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		mapped.order(ByteOrder.LITTLE_ENDIAN);
+		if (mapped.getInt(0) != SNAPSHOT_MAGIC || mapped.getInt(4) != SNAPSHOT_VERSION
+				|| mapped.getLong(8) != source.length() || mapped.getLong(16) != source.lastModified()) {
+			return null;
+		}
+		int nodes = mapped.getInt(24);
+		int edges = mapped.getInt(28);
+		int mixed = mapped.getInt(32);
+		if (nodes <= 0 || edges != nodes - 1 || mixed < 0
+				|| SNAPSHOT_HEADER + sectionsLength(nodes, edges, mixed) != mapped.capacity()) {
+			return null;
+		}
+		int[] lengths = sectionLengths(nodes, edges, mixed);
+		ByteBuffer[] buffers = new ByteBuffer[lengths.length];
+		int position = SNAPSHOT_HEADER;
+		for (int i = 0; i < lengths.length; i++) {
+			buffers[i] = slice(mapped, position, lengths[i]);
+			position += lengths[i];
+		}
+		return new WordScanner(buffers);
+	}
+
+	/**
+	 * Writes the automaton as a snapshot which loadSnapshot can map. The snapshot is written
+	 * to a temporary file and then moved into place, so a process mapping it never sees it
+	 * half written
+	 * @param snapshot The snapshot
+	 * @param source The file the words were loaded from, whose length and modification time
+	 * are recorded so that a stale snapshot can be recognised
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	public void writeSnapshot(String snapshot, File source) throws IOException {
+		Path target = new File(snapshot).getAbsoluteFile().toPath();
+		int nodes = fail.capacity();
+		int edges = childNode.capacity();
+		int mixed = mixedNode.capacity();
+		ByteBuffer bytes = ByteBuffer.allocate((int)(SNAPSHOT_HEADER + sectionsLength(nodes, edges, mixed)))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		bytes.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION);
+		bytes.putLong(source.length()).putLong(source.lastModified());
+		bytes.putInt(nodes).putInt(edges).putInt(mixed).putInt(0);
+		for (int i = 0; i < mixed; i++) {
+			bytes.putLong(mixedMask.get(i));
+		}
+		for (IntBuffer ints : new IntBuffer[] {childStart, childNode, fail, output, mixedNode}) {
+			for (int i = 0; i < ints.capacity(); i++) {
+				bytes.putInt(ints.get(i));
+			}
+		}
+		for (ByteBuffer part : new ByteBuffer[] {childLetter, depth, ends}) {
+			for (int i = 0; i < part.capacity(); i++) {
+				bytes.put(part.get(i));
+			}
+		}
+		bytes.flip();
+
+		Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+			}
+			Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Checks whether any run of letters in a string contains a dictionary word of two or more
+	 * letters, not counting a word which is the whole run
+	 * @param text The string to scan
+	 * @return Whether a word was found
+	 */
+	public boolean containsWord(CharSequence text) {
+		int state = 0;
+		long capitals = 0;
+		int run = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			int letter;
+			if (c >= 'a' && c <= 'z') {
+				letter = c - 'a';
+				capitals <<= 1;
+			}
+			else if (c >= 'A' && c <= 'Z') {
+				letter = c - 'A';
+				capitals = (capitals << 1) | 1;
+			}
+			else {
+				//Words never span a break between runs
+				state = 0;
+				capitals = 0;
+				run = 0;
+				continue;
+			}
+			run++;
+			int next;
+			while ((next = step(state, letter)) == 0 && state != 0) {
+				state = fail.get(state);
+			}
+			state = next;
+			//A word as long as the run so far is the whole run if the run ends here
+			boolean runEnds = i + 1 == text.length() || !isLetter(text.charAt(i + 1));
+			for (int node = (ends.get(state) != 0) ? state : output.get(state); node != 0; node = output.get(node)) {
+				if ((!runEnds || depth.get(node) != run) && matches(node, capitals)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The number of nodes in the automaton
+	 */
+	public int size() {
+		return fail.capacity();
+	}
+
+	/**
+	 * Checks whether the letters just scanned match a word ending at a node in case
+	 * @param node The node
+	 * @param capitals Which of the letters scanned were capitals, the last in the lowest bit
+	 * @return Whether a word ending at the node matches
+	 */
+	private boolean matches(int node, long capitals) {
+		byte kind = ends.get(node);
+		if ((kind & LOWER) != 0) {
+			return true;
+		}
+		//The letters after the first must match exactly
+		long rest = capitals & ((1L << (depth.get(node) - 1)) - 1);
+		if ((kind & CAPITALIZED) != 0 && rest == 0) {
+			return true;
+		}
+		if ((kind & MIXED) != 0) {
+			for (int i = firstMixed(node); i < mixedNode.capacity() && mixedNode.get(i) == node; i++) {
+				if (mixedMask.get(i) == rest) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param node A node with MIXED words
+	 * @return The index of the first of their masks
+	 */
+	private int firstMixed(int node) {
+		int low = 0;
+		int high = mixedNode.capacity();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (mixedNode.get(middle) < node) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Follows the trie edge for a letter
+	 * @param node The node to leave
+	 * @param letter The letter, 0 to 25
+	 * @return The child, or 0 if there is none
+	 */
+	private int step(int node, int letter) {
+		for (int edge = childStart.get(node); edge < childStart.get(node + 1); edge++) {
+			int edgeLetter = childLetter.get(edge);
+			if (edgeLetter == letter) {
+				return childNode.get(edge);
+			}
+			if (edgeLetter > letter) {
+				break;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param nodes The number of nodes
+	 * @param edges The number of edges
+	 * @param mixed The number of mixed case masks
+	 * @return The length in bytes of each section of a snapshot, in order
+	 */
+	private static int[] sectionLengths(int nodes, int edges, int mixed) {
+		return new int[] {8 * mixed, 4 * (nodes + 1), 4 * edges, 4 * nodes, 4 * nodes, 4 * mixed,
+				edges, nodes, nodes};
+	}
+
+	/**
+	 * @param nodes The number of nodes
+	 * @param edges The number of edges
+	 * @param mixed The number of mixed case masks
+	 * @return The length in bytes of a snapshot after its header
+	 */
+	private static long sectionsLength(int nodes, int edges, int mixed) {
+		return 8L * mixed + 4L * (nodes + 1) + 4L * edges + 8L * nodes + 4L * mixed + edges + 2L * nodes;
+	}
+
+	/**
+	 * Takes part of a buffer as a buffer of its own, in the same byte order
+	 * @param buffer The buffer
+	 * @param start Where the part starts
+	 * @param length The length of the part
+	 * @return The part, whose position 0 is start in buffer
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int start, int length) {
+		ByteBuffer part = buffer.duplicate();
+		part.limit(start + length);
+		part.position(start);
+		return part.slice().order(buffer.order());
+	}
+
+	/**
+	 * @param word A word of ASCII letters
+	 * @return Which of its letters are capitals, the last in the lowest bit
+	 */
+	private static long caseMask(String word) {
+		long mask = 0;
+		for (int i = 0; i < word.length(); i++) {
+			mask = (mask << 1) | (Character.isUpperCase(word.charAt(i)) ? 1 : 0);
+		}
+		return mask;
+	}
+
+	/**
+	 * @param word A word
+	 * @return Whether it is all ASCII letters
+	 */
+	private static boolean isLetters(String word) {
+		for (int i = 0; i < word.length(); i++) {
+			if (!isLetter(word.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param c A char
+	 * @return Whether it is an ASCII letter
+	 */
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+}
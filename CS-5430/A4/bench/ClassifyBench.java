@@ -0,0 +1,109 @@
+import java.io.FileNotFoundException;
+import java.util.Random;
+
+/**
+ * Compares the dictionary substring check of comprehensive8 done the old way, looking up every
+ * substring of every run of letters lowercased and capitalized, with one pass of the WordScanner
+ * automaton, for random passwords of increasing length
+ * Call as
+ * ClassifyBench <wordlist> [iterations]
+ */
+public class ClassifyBench {
+	private static final int[] LENGTHS = {8, 12, 16, 24, 32, 48, 64};
+
+	//Mostly letters, so that the runs are long
+	private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789!@#$%";
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: ClassifyBench <wordlist> [iterations]");
+			System.exit(0);
+		}
+		int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+		WordList dictionary = new WordList();
+		try {
+			dictionary.loadFromFile(args[0]);
+		} catch (FileNotFoundException e) {
+			System.out.println("Wordlist not found.");
+			System.exit(0);
+		}
+		long start = System.nanoTime();
+		WordScanner scanner = new WordScanner(dictionary);
+		System.out.format("Built automaton of %d nodes from %d words in %d ms\n", scanner.size(),
+				dictionary.size(), (System.nanoTime() - start) / 1000000);
+
+		System.out.format("%8s %10s %14s %14s %8s\n", "length", "words", "substring ns", "automaton ns", "speedup");
+		Random random = new Random(1);
+		for (int length : LENGTHS) {
+			String[] passwords = new String[1024];
+			for (int i = 0; i < passwords.length; i++) {
+				char[] chars = new char[length];
+				for (int j = 0; j < length; j++) {
+					chars[j] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+				}
+				passwords[i] = new String(chars);
+			}
+			int found = 0;
+			for (String password : passwords) {
+				boolean expected = containsWordBySubstrings(password, dictionary);
+				if (expected != scanner.containsWord(password)) {
+					System.out.println("Mismatch on " + password);
+				}
+				found += expected ? 1 : 0;
+			}
+			//Warm up both, then time them
+			time(passwords, iterations, dictionary, null);
+			time(passwords, iterations, null, scanner);
+			double substrings = time(passwords, iterations, dictionary, null);
+			double automaton = time(passwords, iterations, null, scanner);
+			System.out.format("%8d %9.0f%% %14.0f %14.0f %7.1fx\n", length, 100.0 * found / passwords.length,
+					substrings, automaton, substrings / automaton);
+		}
+	}
+
+	/**
+	 * Times checking passwords one way or the other
+	 * @param passwords The passwords, checked in turn
+	 * @param iterations The number of checks
+	 * @param dictionary The dictionary to look substrings up in, or null to use scanner
+	 * @param scanner The automaton
+	 * @return Mean nanoseconds per check
+	 */
+	private static double time(String[] passwords, int iterations, WordList dictionary, WordScanner scanner) {
+		int found = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			String password = passwords[i % passwords.length];
+			boolean contains = (dictionary != null) ? containsWordBySubstrings(password, dictionary)
+					: scanner.containsWord(password);
+			found += contains ? 1 : 0;
+		}
+		long elapsed = System.nanoTime() - start;
+		//Use the result so the checks are not optimised away
+		if (found < 0) {
+			System.out.println(found);
+		}
+		return (double)elapsed / iterations;
+	}
+
+	/**
+	 * The substring check comprehensive8 did before the automaton, kept as the reference. Like
+	 * the automaton it does not count a word which is a whole run
+	 * @param pass The password
+	 * @param dictionary The dictionary
+	 * @return Whether a substring of two or more letters is a word, lowercased or capitalized
+	 */
+	private static boolean containsWordBySubstrings(String pass, WordList dictionary) {
+		for (String run : pass.split("[^\\p{Alpha}]")) {
+			for (int i = 2; i < run.length(); i++) {
+				for (int j = 0; j + i <= run.length(); j++) {
+					String subs = run.substring(j, j + i);
+					if (dictionary.contains(subs.toLowerCase()) || dictionary.contains(Classify.capitalize(subs))) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+}
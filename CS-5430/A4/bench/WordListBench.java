@@ -0,0 +1,75 @@
+import java.io.FileNotFoundException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures WordList.contains for words in the list and for near misses, with no Bloom filter and
+ * with filters of several false positive rates, and reports each filter's statistics
+ * Call as
+ * WordListBench <wordlist> [iterations]
+ */
+public class WordListBench {
+	private static final double[] RATES = {0, 0.1, 0.01, 0.001, 0.0001};
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: WordListBench <wordlist> [iterations]");
+			System.exit(0);
+		}
+		int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 2000000;
+		WordList dictionary = new WordList();
+		try {
+			dictionary.loadFromFile(args[0]);
+		} catch (FileNotFoundException e) {
+			System.out.println("Wordlist not found.");
+			System.exit(0);
+		}
+
+		//Words and the same words with their last letter changed, which are mostly not words,
+		//as the substrings of a password mostly are not
+		List<String> words = dictionary.toList();
+		Random random = new Random(1);
+		String[] hits = new String[1 << 16];
+		String[] misses = new String[1 << 16];
+		for (int i = 0; i < hits.length; i++) {
+			String word = words.get(random.nextInt(words.size()));
+			hits[i] = word;
+			misses[i] = word.substring(0, word.length() - 1) + (char)('a' + random.nextInt(26));
+		}
+
+		System.out.format("%-8s %10s %10s   %s\n", "rate", "hit ns", "miss ns", "filter");
+		for (double rate : RATES) {
+			dictionary.setFalsePositiveRate(rate);
+			//Warm up, then time
+			time(dictionary, hits, iterations);
+			time(dictionary, misses, iterations);
+			dictionary.setFalsePositiveRate(rate);
+			double hit = time(dictionary, hits, iterations);
+			double miss = time(dictionary, misses, iterations);
+			BloomFilter filter = dictionary.getFilter();
+			System.out.format("%-8s %10.1f %10.1f   %s\n", (rate == 0) ? "none" : Double.toString(rate), hit, miss,
+					(filter != null) ? filter.summary() : "");
+		}
+	}
+
+	/**
+	 * Times checking words
+	 * @param dictionary The list to check them in
+	 * @param words The words, checked in turn
+	 * @param iterations The number of checks
+	 * @return Mean nanoseconds per check
+	 */
+	private static double time(WordList dictionary, String[] words, int iterations) {
+		int found = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			found += dictionary.contains(words[i & (words.length - 1)]) ? 1 : 0;
+		}
+		long elapsed = System.nanoTime() - start;
+		//Use the result so the checks are not optimised away
+		if (found < 0) {
+			System.out.println(found);
+		}
+		return (double)elapsed / iterations;
+	}
+}
@@ -6,6 +6,9 @@ import java.util.*;
  *
  */
 public class Classify {
+	//The Unix dictionary, and the snapshot of it which runs map instead of reading it
+	private static final String DICTIONARY = "/usr/share/dict/words/";
+	private static final String SNAPSHOT = new File(System.getProperty("user.home"), ".words.snapshot").getPath();
 
 	/**
 	 * Runs a comprehensive8 check (see Kelly et al) on pass using the input dictionary
@@ -112,10 +115,10 @@ public class Classify {
 	 */
 	public static void main(String[] args) {
 		
-		//Load unix dictionary as wordlist
+		//Load unix dictionary as wordlist, from its snapshot when that is up to date
 		WordList w = new WordList();
 		try {
-			w.loadFromFile("/usr/share/dict/words/");
+			w.load(DICTIONARY, SNAPSHOT);
 		} catch (FileNotFoundException e) {
 			System.out.println("Unix dictionary not found.");
 			System.exit(0);